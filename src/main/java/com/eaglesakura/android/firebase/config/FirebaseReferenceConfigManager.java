@@ -2,11 +2,11 @@ package com.eaglesakura.android.firebase.config;
 
 import com.google.firebase.remoteconfig.FirebaseRemoteConfig;
 
-import com.eaglesakura.android.db.DBOpenType;
-import com.eaglesakura.android.db.TextKeyValueStore;
 import com.eaglesakura.android.error.NetworkNotConnectException;
 import com.eaglesakura.android.firebase.FbLog;
 import com.eaglesakura.android.firebase.database.FirebaseData;
+import com.eaglesakura.android.firebase.database.dump.FirebaseDumpCodec;
+import com.eaglesakura.android.firebase.database.dump.FirebaseDumpStore;
 import com.eaglesakura.json.JSON;
 import com.eaglesakura.lambda.CancelCallback;
 import com.eaglesakura.util.EnvironmentUtil;
@@ -88,30 +88,20 @@ public class FirebaseReferenceConfigManager<T> {
         restore();
     }
 
-    protected void restore() {
-        TextKeyValueStore kvs = new TextKeyValueStore(mContext, mContext.getDatabasePath(FirebaseData.DUMP_DATABASE_FILE_NAME), TextKeyValueStore.TABLE_NAME_DEFAULT);
-        try {
-            kvs.open(DBOpenType.Read);
+    protected FirebaseDumpStore getDumpStore() {
+        return FirebaseDumpStore.getInstance(mContext, mContext.getDatabasePath(FirebaseData.DUMP_DATABASE_FILE_NAME));
+    }
 
-            TextKeyValueStore.Data data = kvs.get(getDatabaseKey());
-            if (data != null && !StringUtil.isEmpty(data.value)) {
-                mCurrentConfig = JSON.decodeOrNull(data.value, mConfigRootModelClass);
-                mFetchDate = new Date(data.date);
-            }
-        } finally {
-            kvs.close();
+    protected void restore() {
+        FirebaseDumpStore.Entry data = getDumpStore().get(getDatabaseKey());
+        if (data != null && !StringUtil.isEmpty(data.getValue())) {
+            mCurrentConfig = FirebaseDumpCodec.decode(data.getValue(), mConfigRootModelClass);
+            mFetchDate = new Date(data.getDate());
         }
     }
 
     protected void dump() {
-        TextKeyValueStore kvs = new TextKeyValueStore(mContext, mContext.getDatabasePath(FirebaseData.DUMP_DATABASE_FILE_NAME), TextKeyValueStore.TABLE_NAME_DEFAULT);
-        try {
-            kvs.open(DBOpenType.Write);
-
-            kvs.putDirect(getDatabaseKey(), JSON.encodeOrNull(mCurrentConfig));
-        } finally {
-            kvs.close();
-        }
+        getDumpStore().put(getDatabaseKey(), JSON.encodeOrNull(mCurrentConfig));
     }
 
     protected String getDatabaseKey() {
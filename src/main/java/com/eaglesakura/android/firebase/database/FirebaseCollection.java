@@ -0,0 +1,730 @@
+package com.eaglesakura.android.firebase.database;
+
+import com.google.firebase.FirebaseApp;
+import com.google.firebase.database.ChildEventListener;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.ValueEventListener;
+
+import com.eaglesakura.android.firebase.database.dump.FirebaseDumpCodec;
+import com.eaglesakura.android.firebase.database.dump.FirebaseDumpStore;
+import com.eaglesakura.collection.AnonymousBroadcaster;
+import com.eaglesakura.json.JSON;
+import com.eaglesakura.util.StringUtil;
+
+import android.content.Context;
+import android.support.annotation.IntRange;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Firebase databaseの1階層下の子要素を個別に管理する。
+ *
+ * FirebaseDataと異なり、子要素の追加・変更・削除・移動を差分として反映するため、
+ * 1要素の変更で全体の再デコードが発生しない。
+ * Dumpも子要素単位で行い、前回のDumpから変更された子要素のみを書き込む。
+ */
+public class FirebaseCollection<T> {
+
+    /**
+     * 並び順のKeyと子要素のKeyを区切る文字
+     *
+     * Firebaseのパスに使えない'#'を含め、子階層に接続したコレクションの並び順と衝突させない。
+     */
+    static final String CHILD_DUMP_KEY_SEPARATOR = "#child/";
+
+    /**
+     * 子要素の変更種別
+     */
+    public enum ChangeType {
+        Added,
+        Changed,
+        Removed,
+        Moved,
+    }
+
+    /**
+     * 1つの子要素に対する変更
+     */
+    public static class Change<T> {
+        @NonNull
+        final ChangeType mType;
+
+        @NonNull
+        final String mKey;
+
+        @Nullable
+        final T mValue;
+
+        @Nullable
+        final String mPreviousKey;
+
+        Change(@NonNull ChangeType type, @NonNull String key, @Nullable T value, @Nullable String previousKey) {
+            mType = type;
+            mKey = key;
+            mValue = value;
+            mPreviousKey = previousKey;
+        }
+
+        @NonNull
+        public ChangeType getType() {
+            return mType;
+        }
+
+        @NonNull
+        public String getKey() {
+            return mKey;
+        }
+
+        /**
+         * 変更後の値を取得する。Removedの場合は削除された値となる。
+         */
+        @Nullable
+        public T getValue() {
+            return mValue;
+        }
+
+        /**
+         * 直前に並ぶ子要素のKeyを取得する。先頭の場合はnullとなる。
+         */
+        @Nullable
+        public String getPreviousKey() {
+            return mPreviousKey;
+        }
+    }
+
+    public interface OnChangedListener<T> {
+        /**
+         * 子要素が変更された
+         *
+         * @param self    変更されたコレクション
+         * @param changes 変更内容
+         */
+        void onCollectionChanged(FirebaseCollection<T> self, List<Change<T>> changes);
+    }
+
+    /**
+     * 子要素の変換用class
+     */
+    @NonNull
+    final Class<T> mValueClass;
+
+    /**
+     * 子要素のKey順序
+     */
+    final List<String> mKeys = new ArrayList<>();
+
+    /**
+     * デコード済みの子要素
+     */
+    final Map<String, T> mValues = new HashMap<>();
+
+    /**
+     * 更新カウンタ
+     */
+    int mSyncCount;
+
+    DatabaseReference mReference;
+
+    /**
+     * 最後に受信したエラー
+     */
+    @Nullable
+    DatabaseError mLastError;
+
+    /**
+     * 前回のDump以降に追加・変更された子要素
+     */
+    final Set<String> mDirtyKeys = new HashSet<>();
+
+    /**
+     * 前回のDump以降に削除された子要素
+     */
+    final Set<String> mRemovedKeys = new HashSet<>();
+
+    /**
+     * 前回Dumpを行ったKey
+     *
+     * 異なるKeyへDumpする場合は全要素を書き込む。
+     */
+    @Nullable
+    String mLastDumpKey;
+
+    /**
+     * Dumpから復旧し、サーバー上での存在をまだ確認していない子要素
+     */
+    final Set<String> mUnconfirmedKeys = new HashSet<>();
+
+    /**
+     * Dumpから復旧した子要素のDump形式
+     *
+     * 再接続時に同じ値を受信した場合は書き込みを省く。
+     */
+    final Map<String, String> mRestoredValues = new HashMap<>();
+
+    @NonNull
+    private final Object lock = new Object();
+
+    /**
+     * 参照へのパス
+     */
+    private String mPath;
+
+    /**
+     * コールバック登録
+     */
+    private AnonymousBroadcaster mBroadcaster = new AnonymousBroadcaster();
+
+    private ChildEventListener mChildListener = new ChildEventListener() {
+        @Override
+        public void onChildAdded(DataSnapshot dataSnapshot, String previousChildName) {
+            T value = FirebaseModelAdapter.decode(dataSnapshot, mValueClass);
+            String key = dataSnapshot.getKey();
+            synchronized (lock) {
+                mKeys.remove(key);
+                insertKey(key, previousChildName);
+                mValues.put(key, value);
+                mUnconfirmedKeys.remove(key);
+                markChanged(key, value);
+            }
+            dispatchChange(new Change<>(ChangeType.Added, key, value, previousChildName));
+        }
+
+        @Override
+        public void onChildChanged(DataSnapshot dataSnapshot, String previousChildName) {
+            T value = FirebaseModelAdapter.decode(dataSnapshot, mValueClass);
+            String key = dataSnapshot.getKey();
+            synchronized (lock) {
+                if (!mValues.containsKey(key)) {
+                    insertKey(key, previousChildName);
+                }
+                mValues.put(key, value);
+                mUnconfirmedKeys.remove(key);
+                markChanged(key, value);
+            }
+            dispatchChange(new Change<>(ChangeType.Changed, key, value, previousChildName));
+        }
+
+        @Override
+        public void onChildRemoved(DataSnapshot dataSnapshot) {
+            String key = dataSnapshot.getKey();
+            T value;
+            synchronized (lock) {
+                mKeys.remove(key);
+                value = mValues.remove(key);
+                mDirtyKeys.remove(key);
+                mRemovedKeys.add(key);
+                mUnconfirmedKeys.remove(key);
+                mRestoredValues.remove(key);
+                ++mSyncCount;
+                mLastError = null;
+            }
+            dispatchChange(new Change<>(ChangeType.Removed, key, value, null));
+        }
+
+        @Override
+        public void onChildMoved(DataSnapshot dataSnapshot, String previousChildName) {
+            String key = dataSnapshot.getKey();
+            T value;
+            synchronized (lock) {
+                mKeys.remove(key);
+                insertKey(key, previousChildName);
+                value = mValues.get(key);
+                ++mSyncCount;
+                mLastError = null;
+            }
+            dispatchChange(new Change<>(ChangeType.Moved, key, value, previousChildName));
+        }
+
+        @Override
+        public void onCancelled(DatabaseError databaseError) {
+            synchronized (lock) {
+                mLastError = databaseError;
+            }
+        }
+    };
+
+    public FirebaseCollection(@NonNull Class<T> valueClass) {
+        mValueClass = valueClass;
+    }
+
+    /**
+     * previousKeyの直後にkeyを挿入する
+     *
+     * lockを保持した状態で呼び出す。
+     */
+    private void insertKey(String key, @Nullable String previousKey) {
+        if (previousKey == null) {
+            mKeys.add(0, key);
+            return;
+        }
+
+        int index = mKeys.indexOf(previousKey);
+        if (index < 0) {
+            mKeys.add(key);
+        } else {
+            mKeys.add(index + 1, key);
+        }
+    }
+
+    /**
+     * 変更された子要素を記録する
+     *
+     * lockを保持した状態で呼び出す。
+     */
+    private void markDirty(String key) {
+        mDirtyKeys.add(key);
+        mRemovedKeys.remove(key);
+        ++mSyncCount;
+        mLastError = null;
+    }
+
+    /**
+     * 受信した子要素を記録する
+     *
+     * Dumpから復旧した値と同じ場合、次回のDump対象としない。
+     * lockを保持した状態で呼び出す。
+     */
+    private void markChanged(String key, @Nullable T value) {
+        String restored = mRestoredValues.remove(key);
+        if (restored != null && restored.equals(encodeDumpValue(value))) {
+            ++mSyncCount;
+            mLastError = null;
+        } else {
+            markDirty(key);
+        }
+    }
+
+    /**
+     * 子要素をDump形式に変換する
+     */
+    @NonNull
+    private static String encodeDumpValue(@Nullable Object value) {
+        String text = value != null ? FirebaseDumpCodec.getDefault().encode(value) : null;
+        return text != null ? text : "";
+    }
+
+    private void dispatchChange(Change<T> change) {
+        dispatchChanges(Collections.singletonList(change));
+    }
+
+    private void dispatchChanges(List<Change<T>> changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+        mBroadcaster.safeEach(OnChangedListener.class, listener -> {
+            listener.onCollectionChanged(FirebaseCollection.this, changes);
+        });
+    }
+
+    public String getPath() {
+        return mPath;
+    }
+
+    @NonNull
+    public Class<T> getValueClass() {
+        return mValueClass;
+    }
+
+    public FirebaseCollection<T> registerOnChangedListener(OnChangedListener obj) {
+        mBroadcaster.register(obj);
+        return this;
+    }
+
+    public FirebaseCollection<T> weakRegisterOnChangedListener(OnChangedListener obj) {
+        mBroadcaster.weakRegister(obj);
+        return this;
+    }
+
+    public FirebaseCollection<T> unregister(OnChangedListener obj) {
+        mBroadcaster.unregister(obj);
+        return this;
+    }
+
+    public FirebaseCollection<T> connect(String path) {
+        mPath = path;
+        mReference = FirebaseDatabase.getInstance().getReference(path);
+        mReference.addChildEventListener(mChildListener);
+        reconcileRestoredKeys();
+        return this;
+    }
+
+    /**
+     * データ同期を切断する
+     */
+    public void disconnect() {
+        if (mReference != null) {
+            mReference.removeEventListener(mChildListener);
+        }
+    }
+
+    /**
+     * Dumpから復旧した子要素のうち、サーバー上に存在しないものを削除する
+     *
+     * オフライン中にサーバーで削除された子要素は、子要素のリスナへ通知されないため、
+     * 同じ参照の値を1度だけ取得して照合する。
+     */
+    private void reconcileRestoredKeys() {
+        final DatabaseReference reference = mReference;
+        synchronized (lock) {
+            if (reference == null || mUnconfirmedKeys.isEmpty()) {
+                return;
+            }
+        }
+
+        reference.addListenerForSingleValueEvent(new ValueEventListener() {
+            @Override
+            public void onDataChange(DataSnapshot dataSnapshot) {
+                Set<String> serverKeys = new HashSet<>();
+                for (DataSnapshot child : dataSnapshot.getChildren()) {
+                    serverKeys.add(child.getKey());
+                }
+
+                List<Change<T>> changes = new ArrayList<>();
+                synchronized (lock) {
+                    if (reference != mReference) {
+                        return;
+                    }
+                    for (String key : new ArrayList<>(mUnconfirmedKeys)) {
+                        if (serverKeys.contains(key)) {
+                            continue;
+                        }
+                        mKeys.remove(key);
+                        T value = mValues.remove(key);
+                        mDirtyKeys.remove(key);
+                        mRemovedKeys.add(key);
+                        mRestoredValues.remove(key);
+                        changes.add(new Change<>(ChangeType.Removed, key, value, null));
+                    }
+                    mUnconfirmedKeys.clear();
+                    if (!changes.isEmpty()) {
+                        ++mSyncCount;
+                    }
+                }
+                dispatchChanges(changes);
+            }
+
+            @Override
+            public void onCancelled(DatabaseError databaseError) {
+                synchronized (lock) {
+                    mLastError = databaseError;
+                }
+            }
+        });
+    }
+
+    /**
+     * 子要素を取得する
+     */
+    @Nullable
+    public T get(String key) {
+        synchronized (lock) {
+            return mValues.get(key);
+        }
+    }
+
+    /**
+     * 並び順通りに子要素のKeyを取得する
+     */
+    @NonNull
+    public List<String> getKeys() {
+        synchronized (lock) {
+            return new ArrayList<>(mKeys);
+        }
+    }
+
+    /**
+     * 並び順通りに子要素を取得する
+     */
+    @NonNull
+    public List<T> getValues() {
+        synchronized (lock) {
+            List<T> result = new ArrayList<>(mKeys.size());
+            for (String key : mKeys) {
+                result.add(mValues.get(key));
+            }
+            return result;
+        }
+    }
+
+    /**
+     * 子要素数を取得する
+     */
+    @IntRange(from = 0)
+    public int size() {
+        synchronized (lock) {
+            return mKeys.size();
+        }
+    }
+
+    /**
+     * 子要素の更新回数を取得する
+     */
+    @IntRange(from = 0)
+    public int getSyncCount() {
+        synchronized (lock) {
+            return mSyncCount;
+        }
+    }
+
+    /**
+     * 最後のエラーを取得する
+     */
+    @Nullable
+    public DatabaseError getLastError() {
+        synchronized (lock) {
+            return mLastError;
+        }
+    }
+
+    /**
+     * ダミーデータを与える
+     *
+     * 受信した値と同じく更新回数を加算し、次回のDump対象とする。
+     *
+     * @param values 子要素。Mapの列挙順を並び順とする。
+     */
+    public FirebaseCollection<T> mock(Map<String, T> values) {
+        List<Change<T>> changes = new ArrayList<>();
+        synchronized (lock) {
+            for (String key : mKeys) {
+                if (!values.containsKey(key)) {
+                    mRemovedKeys.add(key);
+                }
+            }
+            mKeys.clear();
+            mValues.clear();
+            mDirtyKeys.clear();
+            mUnconfirmedKeys.clear();
+            mRestoredValues.clear();
+            String previousKey = null;
+            for (Map.Entry<String, T> entry : values.entrySet()) {
+                mKeys.add(entry.getKey());
+                mValues.put(entry.getKey(), entry.getValue());
+                mDirtyKeys.add(entry.getKey());
+                mRemovedKeys.remove(entry.getKey());
+                changes.add(new Change<>(ChangeType.Added, entry.getKey(), entry.getValue(), previousKey));
+                previousKey = entry.getKey();
+            }
+            ++mSyncCount;
+            mLastError = null;
+        }
+        dispatchChanges(changes);
+        return this;
+    }
+
+    /**
+     * LocalDumpを行う際のKeyを指定する
+     */
+    protected String getDumpKey(@Nullable String optionalKey) {
+        String key = mPath;
+        if (!StringUtil.isEmpty(optionalKey)) {
+            return key + "@" + optionalKey;
+        } else {
+            return key;
+        }
+    }
+
+    /**
+     * 子要素をDumpする際のKeyを取得する
+     */
+    private static String getChildDumpKey(String dumpKey, String childKey) {
+        return dumpKey + CHILD_DUMP_KEY_SEPARATOR + childKey;
+    }
+
+    protected File getDatabasePath(Context context) {
+        return context.getDatabasePath(FirebaseData.DUMP_DATABASE_FILE_NAME);
+    }
+
+    private Context getContext() {
+        return FirebaseApp.getInstance().getApplicationContext();
+    }
+
+    /**
+     * Dumpデータの保存先を取得する
+     */
+    @NonNull
+    protected FirebaseDumpStore getDumpStore() {
+        Context context = getContext();
+        return FirebaseDumpStore.getInstance(context, getDatabasePath(context));
+    }
+
+    /**
+     * データをローカルストレージに保存する
+     */
+    public FirebaseCollection<T> dump() {
+        return dump(null);
+    }
+
+    /**
+     * データをローカルストレージに保存する
+     *
+     * 並び順を1行、子要素をそれぞれ1行として保持する。子要素は {@link FirebaseDumpCodec#getDefault()} の形式で保持する。
+     * 前回と同じKeyへDumpする場合、変更された子要素のみを書き込む。
+     *
+     * @param optionalKey Keyに付与される文字。指定されない場合はデフォルトのKeyで保持する。
+     * @return this
+     */
+    public FirebaseCollection<T> dump(@Nullable String optionalKey) {
+        final String key = getDumpKey(optionalKey);
+
+        // 並び順と子要素は同じ書き込みで反映する。nullの値は削除となる
+        Map<String, String> rows = new HashMap<>();
+        synchronized (lock) {
+            Set<String> targets = key.equals(mLastDumpKey) ? mDirtyKeys : mValues.keySet();
+            for (String childKey : targets) {
+                rows.put(getChildDumpKey(key, childKey), encodeDumpValue(mValues.get(childKey)));
+            }
+            for (String childKey : mRemovedKeys) {
+                rows.put(getChildDumpKey(key, childKey), null);
+            }
+            rows.put(key, JSON.encodeOrNull(mKeys.toArray(new String[mKeys.size()])));
+            mDirtyKeys.clear();
+            mRemovedKeys.clear();
+            mLastDumpKey = key;
+        }
+
+        getDumpStore().putAll(rows);
+        return this;
+    }
+
+    /**
+     * ローカルにDumpされたデータを削除する
+     */
+    public FirebaseCollection<T> removeDumpValue(@Nullable String optionalKey) {
+        final String key = getDumpKey(optionalKey);
+        removeDumpValue(getDumpStore(), key);
+
+        synchronized (lock) {
+            if (key.equals(mLastDumpKey)) {
+                mLastDumpKey = null;
+            }
+        }
+        return this;
+    }
+
+    private static void removeDumpValue(FirebaseDumpStore store, String key) {
+        FirebaseDumpStore.Entry data = store.get(key);
+        if (data != null && !StringUtil.isEmpty(data.getValue())) {
+            String[] childKeys = JSON.decodeOrNull(data.getValue(), String[].class);
+            if (childKeys != null) {
+                for (String childKey : childKeys) {
+                    store.remove(getChildDumpKey(key, childKey));
+                }
+            }
+        }
+        store.remove(key);
+    }
+
+    /**
+     * Dumpした値を復旧する
+     */
+    public FirebaseCollection<T> restore() {
+        return restore(null, 0);
+    }
+
+    /**
+     * Dumpした値を復旧する
+     *
+     * @param optionalKey Keyに付与される文字。指定されない場合はデフォルトのKeyで保持する。
+     * @return this
+     */
+    public FirebaseCollection<T> restore(@Nullable String optionalKey) {
+        return restore(optionalKey, 0);
+    }
+
+    /**
+     * Dumpした値を復旧する。
+     *
+     * 既に子要素を受信している場合、このメソッドは何もしない。
+     * 復旧した子要素はAddedとしてリスナへ通知される。
+     * 接続中の場合、サーバーの値を1度取得し、オフライン中に削除された子要素をRemovedとして通知する。
+     *
+     * @param optionalKey  Keyに付与される文字。指定されない場合はデフォルトのKeyで保持する。
+     * @param expireTimeMs Dumpしたデータが有効な時間（ミリ秒）, Dumpしたデータが1時間有効であれば1000*3600を指定する。期限切れの場合は削除する。0以下の場合は常に有効
+     * @return this
+     */
+    public FirebaseCollection<T> restore(@Nullable String optionalKey, long expireTimeMs) {
+        final String key = getDumpKey(optionalKey);
+        FirebaseDumpStore store = getDumpStore();
+
+        FirebaseDumpStore.Entry data = store.get(key);
+        if (data == null || StringUtil.isEmpty(data.getValue())) {
+            return this;
+        }
+
+        if (expireTimeMs > 0 && System.currentTimeMillis() > (data.getDate() + expireTimeMs)) {
+            // データを削除する
+            removeDumpValue(store, key);
+            return this;
+        }
+
+        String[] childKeys = JSON.decodeOrNull(data.getValue(), String[].class);
+        if (childKeys == null) {
+            return this;
+        }
+
+        List<String> childDumpKeys = new ArrayList<>(childKeys.length);
+        for (String childKey : childKeys) {
+            childDumpKeys.add(getChildDumpKey(key, childKey));
+        }
+        Map<String, FirebaseDumpStore.Entry> children = store.getAll(childDumpKeys);
+
+        List<String> keys = new ArrayList<>();
+        Map<String, T> values = new HashMap<>();
+        Map<String, String> texts = new HashMap<>();
+        for (String childKey : childKeys) {
+            FirebaseDumpStore.Entry child = children.get(getChildDumpKey(key, childKey));
+            if (child == null) {
+                continue;
+            }
+
+            keys.add(childKey);
+            values.put(childKey, FirebaseDumpCodec.decode(child.getValue(), mValueClass));
+            texts.put(childKey, child.getValue());
+        }
+
+        List<Change<T>> changes = new ArrayList<>();
+        synchronized (lock) {
+            // Restore前に同期が完了していたら、最新版を使うべきである。
+            if (mSyncCount > 0 || !mKeys.isEmpty()) {
+                return this;
+            }
+
+            mKeys.addAll(keys);
+            mValues.putAll(values);
+            mUnconfirmedKeys.addAll(keys);
+            mRestoredValues.putAll(texts);
+            mLastDumpKey = key;
+            String previousKey = null;
+            for (String childKey : keys) {
+                changes.add(new Change<>(ChangeType.Added, childKey, values.get(childKey), previousKey));
+                previousKey = childKey;
+            }
+        }
+        dispatchChanges(changes);
+        reconcileRestoredKeys();
+        return this;
+    }
+
+    /**
+     * インスタンスを取得し、パスへ接続する
+     *
+     * @param clazz 子要素の変換対象クラス
+     * @param path  接続対象のパス
+     */
+    public static <T> FirebaseCollection<T> newInstance(Class<T> clazz, String path) {
+        return new FirebaseCollection<>(clazz).connect(path);
+    }
+}
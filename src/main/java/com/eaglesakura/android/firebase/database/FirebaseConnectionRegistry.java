@@ -0,0 +1,236 @@
+package com.eaglesakura.android.firebase.database;
+
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.ValueEventListener;
+
+import com.eaglesakura.android.firebase.database.metrics.FirebaseMetrics;
+
+import android.support.annotation.IntRange;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 同一パス・同一クラスのFirebaseDataで接続を共有する
+ *
+ * (パス, クラス)毎に1つのValueEventListenerのみを登録し、1度だけデコードした値を全インスタンスへ配信する。
+ * 最後のインスタンスがdisconnect()した時点でリスナを解除する。
+ */
+public class FirebaseConnectionRegistry {
+
+    /**
+     * 接続一覧
+     */
+    private final Map<String, Connection<?>> mConnections = new HashMap<>();
+
+    /**
+     * インスタンス毎の参加中の接続
+     *
+     * 参加後にgetPath()が変わっても、参加した接続から離脱できるよう記録する。
+     */
+    private final Map<FirebaseData<?>, String> mAttachedKeys = new HashMap<>();
+
+    private final Object lock = new Object();
+
+    FirebaseConnectionRegistry() {
+    }
+
+    private static String toKey(String path, Class<?> valueClass) {
+        return path + "@" + valueClass.getName();
+    }
+
+    /**
+     * 共有接続に参加する
+     *
+     * 既に値を受信済みの接続であれば、その値を即座に配信する。
+     *
+     * @return 接続先の参照
+     */
+    @SuppressWarnings("unchecked")
+    <T> DatabaseReference attach(@NonNull FirebaseData<T> data, @NonNull String path) {
+        Connection<T> connection;
+        T value;
+        long version;
+        DatabaseError error;
+        synchronized (lock) {
+            final String key = toKey(path, data.getValueClass());
+            final String oldKey = mAttachedKeys.get(data);
+            if (oldKey != null && !oldKey.equals(key)) {
+                // disconnect()せずに接続先を変更した
+                detachLocked(data, oldKey);
+            }
+
+            connection = (Connection<T>) mConnections.get(key);
+            if (connection == null) {
+                connection = new Connection<>(data.getValueClass(), path, FirebaseDatabase.getInstance().getReference(path));
+                mConnections.put(key, connection);
+                connection.mReference.addValueEventListener(connection);
+            }
+            if (!connection.mSubscribers.contains(data)) {
+                connection.mSubscribers.add(data);
+            }
+            mAttachedKeys.put(data, key);
+
+            value = connection.mValue;
+            version = connection.mVersion;
+            error = connection.mLastError;
+        }
+
+        // 受信済みの値を配信する
+        if (version > 0) {
+            data.publishValue(value, version);
+        }
+        if (error != null) {
+            data.publishError(error);
+        }
+        return connection.mReference;
+    }
+
+    /**
+     * 共有接続から離脱する
+     *
+     * 参加時のパスの接続から離脱し、最後の参加者であればリスナを解除する。
+     */
+    <T> void detach(@NonNull FirebaseData<T> data) {
+        synchronized (lock) {
+            final String key = mAttachedKeys.get(data);
+            if (key != null) {
+                detachLocked(data, key);
+            }
+        }
+    }
+
+    /**
+     * lockを保持した状態で呼び出す
+     */
+    private void detachLocked(@NonNull FirebaseData<?> data, @NonNull String key) {
+        mAttachedKeys.remove(data);
+        Connection<?> connection = mConnections.get(key);
+        if (connection == null || !connection.mSubscribers.remove(data)) {
+            return;
+        }
+
+        if (connection.mSubscribers.isEmpty()) {
+            mConnections.remove(key);
+            connection.mReference.removeEventListener(connection);
+        }
+    }
+
+    /**
+     * 有効な共有接続数を取得する
+     */
+    @IntRange(from = 0)
+    public int getConnectionCount() {
+        synchronized (lock) {
+            return mConnections.size();
+        }
+    }
+
+    /**
+     * 指定した接続を共有しているインスタンス数を取得する
+     */
+    @IntRange(from = 0)
+    public int getSubscriberCount(@NonNull String path, @NonNull Class<?> valueClass) {
+        synchronized (lock) {
+            Connection<?> connection = mConnections.get(toKey(path, valueClass));
+            return connection != null ? connection.mSubscribers.size() : 0;
+        }
+    }
+
+    /**
+     * 1つのパスに対する接続
+     */
+    private class Connection<T> implements ValueEventListener {
+        @NonNull
+        final Class<T> mValueClass;
+
+        @NonNull
+        final String mPath;
+
+        @NonNull
+        final DatabaseReference mReference;
+
+        /**
+         * 接続を共有しているインスタンス
+         */
+        final List<FirebaseData<T>> mSubscribers = new ArrayList<>();
+
+        /**
+         * 最後にデコードした値
+         */
+        @Nullable
+        T mValue;
+
+        /**
+         * 値の受信回数
+         *
+         * 参加者は古いバージョンの値を無視する。
+         */
+        long mVersion;
+
+        /**
+         * 最後に受信したエラー
+         */
+        @Nullable
+        DatabaseError mLastError;
+
+        Connection(@NonNull Class<T> valueClass, @NonNull String path, @NonNull DatabaseReference reference) {
+            mValueClass = valueClass;
+            mPath = path;
+            mReference = reference;
+        }
+
+        @Override
+        public void onDataChange(DataSnapshot dataSnapshot) {
+            // デコードは接続毎に1回のみ行う
+            final FirebaseMetrics metrics = FirebaseMetrics.getInstance();
+            final long start = metrics != null ? System.nanoTime() : 0;
+            T value = FirebaseModelAdapter.decode(dataSnapshot, mValueClass);
+            if (metrics != null) {
+                metrics.onDecode(mPath, System.nanoTime() - start);
+            }
+
+            List<FirebaseData<T>> subscribers;
+            long version;
+            synchronized (lock) {
+                mValue = value;
+                mLastError = null;
+                version = (++mVersion);
+                subscribers = new ArrayList<>(mSubscribers);
+            }
+
+            for (FirebaseData<T> data : subscribers) {
+                data.publishValue(value, version);
+            }
+        }
+
+        @Override
+        public void onCancelled(DatabaseError databaseError) {
+            List<FirebaseData<T>> subscribers;
+            synchronized (lock) {
+                mLastError = databaseError;
+                subscribers = new ArrayList<>(mSubscribers);
+            }
+
+            for (FirebaseData<T> data : subscribers) {
+                data.publishError(databaseError);
+            }
+        }
+    }
+
+    private static FirebaseConnectionRegistry sInstance;
+
+    public synchronized static FirebaseConnectionRegistry getInstance() {
+        if (sInstance == null) {
+            sInstance = new FirebaseConnectionRegistry();
+        }
+        return sInstance;
+    }
+}
@@ -1,15 +1,23 @@
 package com.eaglesakura.android.firebase.database;
 
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+import com.google.android.gms.tasks.Tasks;
 import com.google.firebase.FirebaseApp;
 import com.google.firebase.database.DataSnapshot;
 import com.google.firebase.database.DatabaseError;
 import com.google.firebase.database.DatabaseReference;
 import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.MutableData;
+import com.google.firebase.database.Transaction;
 import com.google.firebase.database.ValueEventListener;
 
-import com.eaglesakura.android.db.DBOpenType;
-import com.eaglesakura.android.db.TextKeyValueStore;
 import com.eaglesakura.android.error.NetworkNotConnectException;
+import com.eaglesakura.android.firebase.FbLog;
+import com.eaglesakura.android.firebase.database.dump.FirebaseDeltaDump;
+import com.eaglesakura.android.firebase.database.dump.FirebaseDumpCodec;
+import com.eaglesakura.android.firebase.database.dump.FirebaseDumpStore;
+import com.eaglesakura.android.firebase.database.metrics.FirebaseMetrics;
 import com.eaglesakura.android.firebase.error.FirebaseDatabaseException;
 import com.eaglesakura.android.firebase.error.FirebaseDatabaseSyncException;
 import com.eaglesakura.android.gms.util.PlayServiceUtil;
@@ -19,10 +27,9 @@ import com.eaglesakura.json.JSON;
 import com.eaglesakura.lambda.Action1;
 import com.eaglesakura.lambda.CallbackUtils;
 import com.eaglesakura.lambda.CancelCallback;
+import com.eaglesakura.lambda.ResultAction1;
 import com.eaglesakura.util.StringUtil;
-import com.eaglesakura.util.Util;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
 import android.support.annotation.IntRange;
 import android.support.annotation.NonNull;
@@ -31,6 +38,18 @@ import android.support.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Firebase databaseに保持されたデータ構造を管理する。
@@ -46,15 +65,12 @@ public class FirebaseData<T> {
     final Class<T> mValueClass;
 
     /**
-     * 値
-     */
-    @Nullable
-    T mValue;
-
-    /**
-     * 更新カウンタ
+     * 現在の状態
+     *
+     * 値・更新カウンタ・エラーは常にこのオブジェクトを差し替えることで更新され、読み込み時にlockを必要としない。
      */
-    int mSyncCount;
+    @NonNull
+    private volatile State<T> mState;
 
     /**
      *
@@ -62,19 +78,28 @@ public class FirebaseData<T> {
     DatabaseReference mReference;
 
     /**
-     * 最後に受信したエラー
+     * 状態の更新の直列化と、await()の待機/通知を兼ねる
      */
-    @Nullable
-    DatabaseError mLastError;
-
     @NonNull
     private final Object lock = new Object();
 
+    /**
+     * await中にキャンセルチェック・ネットワークチェックを行う間隔(ms)
+     *
+     * 値の更新やエラーは即座に通知されるため、この間隔は応答性に影響しない。
+     */
+    static final long AWAIT_CHECK_INTERVAL_MS = 100;
+
     /**
      * ネットワーク状態を確認する場合はtrue
      */
     private boolean mCheckNetworkStatus = true;
 
+    /**
+     * オフライン中のコミットをFirebaseOfflineWriteQueueへ保存する場合はtrue
+     */
+    private boolean mOfflineQueue;
+
     /**
      * 参照へのパス
      */
@@ -90,47 +115,354 @@ public class FirebaseData<T> {
      */
     private static FirebaseMockDataProvider sMockDataProvider;
 
+    /**
+     * 遅延コミットを送信するスレッド
+     */
+    private static final ScheduledExecutorService sCommitExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "FirebaseData-Commit");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     /**
      * コールバック登録
      */
     private AnonymousBroadcaster mBroadcaster = new AnonymousBroadcaster();
 
+    /**
+     * リスナへの配信を行うExecutor
+     *
+     * nullの場合、値の更新と同時にlock内で配信する。
+     */
+    @Nullable
+    private Executor mDispatchExecutor;
+
+    /**
+     * 配信待ちの値がある場合はtrue
+     */
+    private boolean mHasPendingDispatch;
+
+    /**
+     * 配信タスクがExecutorに登録済みである場合はtrue
+     */
+    private boolean mDispatchScheduled;
+
+    /**
+     * 配信前に新しい値で上書きされ、リスナに届かなかった更新数
+     */
+    private long mDroppedUpdateCount;
+
+    /**
+     * 同一パス・同一クラスのインスタンスと接続を共有する場合はtrue
+     */
+    private boolean mShareConnection;
+
+    /**
+     * コミットをまとめる時間(ms)
+     *
+     * 0以下の場合、commit()毎に送信する。
+     */
+    private long mCommitWindowMs;
+
+    /**
+     * 最初のコミットから送信までの最大時間(ms)
+     */
+    private long mCommitMaxLatencyMs;
+
+    /**
+     * 送信待ちのコミットがある場合はtrue
+     */
+    private boolean mHasPendingCommit;
+
+    /**
+     * 送信待ちの値
+     */
+    @Nullable
+    private T mPendingCommitValue;
+
+    /**
+     * 送信待ちの最初のコミット時刻(System.nanoTime)
+     */
+    private long mPendingCommitStartNano;
+
+    /**
+     * 送信待ちの最後のコミット時刻(System.nanoTime)
+     */
+    private long mPendingCommitLastNano;
+
+    /**
+     * 遅延送信のタスク
+     */
+    @Nullable
+    private ScheduledFuture<?> mCommitTask;
+
+    /**
+     * 送信前に新しい値で上書きされたコミット数
+     */
+    private long mCoalescedCommitCount;
+
+    /**
+     * Firebaseへ送信したコミット数
+     *
+     * FirebaseOfflineWriteQueueへ積んだコミットは含まない。
+     */
+    private long mSentCommitCount;
+
+    /**
+     * Dumpに利用する形式
+     *
+     * nullの場合は {@link FirebaseDumpCodec#getDefault()} を利用する。
+     */
+    @Nullable
+    private FirebaseDumpCodec mDumpCodec;
+
+    /**
+     * 差分Dumpで基準を保存し直すまでの差分数, 0の場合は差分Dumpを行わない
+     */
+    private int mDeltaDumpChainLength;
+
+    /**
+     * DumpのKey毎の差分Dumpの状態
+     */
+    private final Map<String, FirebaseDeltaDump.Chain> mDeltaDumpChains = new HashMap<>();
+
+    /**
+     * Dumpの有効期間(ms), 0以下の場合は無期限
+     */
+    private long mDumpTtlMs;
+
+    /**
+     * 共有接続に参加している場合はtrue
+     */
+    private boolean mSharedConnected;
+
+    /**
+     * 最後に反映した値のバージョン
+     */
+    private long mPublishedVersion;
+
+    /**
+     * connect()した時刻(System.nanoTime), 計測を行わない場合は0
+     */
+    private long mConnectNano;
+
+    /**
+     * 自身のリスナで受信したSnapshotのバージョン
+     */
+    private long mReceivedVersion;
+
+    /**
+     * Snapshotのデコードを行うExecutor
+     *
+     * nullの場合、Firebaseのコールバックスレッドでデコードする。
+     */
+    @Nullable
+    private Executor mDecodeExecutor;
+
+    /**
+     * getValue()までデコードを遅延する場合はtrue
+     */
+    private boolean mDecodeLazy;
+
+    /**
+     * 登録済みのリスナ
+     *
+     * 遅延デコード時に、配信のためのデコードが必要かを判断する。
+     */
+    private final Set<OnUpdateListener> mListeners = Collections.newSetFromMap(new WeakHashMap<>());
+
     private ValueEventListener mValueListener = new ValueEventListener() {
         @Override
         public void onDataChange(DataSnapshot dataSnapshot) {
+//            FbLog.debug("onDataChange[" + mValueClass.getName() + "]");
+            final long version;
+            final Executor decodeExecutor;
             synchronized (lock) {
-//                FbLog.debug("onDataChange[" + mValueClass.getName() + "]");
-                mValue = dataSnapshot.getValue(mValueClass);
-//                if (mValue == null) {
-//                    throw new IllegalStateException("Parse Error[" + mValueClass.getName() + "]");
-//                }
-                ++mSyncCount;
-                mLastError = null;  // エラーは無視する
-                onUpdatedValue(mValue);
-                mBroadcaster.safeEach(OnUpdateListener.class, listener -> {
-                    listener.onDataUpdated(FirebaseData.this, mValue);
-                });
+                version = (++mReceivedVersion);
+                if (mDecodeLazy && (mListeners.isEmpty() || mDispatchExecutor != null)) {
+                    // デコードはgetValue()か配信スレッドで行う
+                    publish(null, dataSnapshot, version);
+                    return;
+                }
+                decodeExecutor = mDecodeExecutor;
             }
+
+            if (decodeExecutor == null) {
+                publish(decodeSnapshot(dataSnapshot), null, version);
+                return;
+            }
+
+            decodeExecutor.execute(() -> {
+                synchronized (lock) {
+                    if (version < mReceivedVersion) {
+                        // 新しいSnapshotを受信済みのため、デコードしない
+                        return;
+                    }
+                }
+                publish(decodeSnapshot(dataSnapshot), null, version);
+            });
         }
 
         @Override
         public void onCancelled(DatabaseError databaseError) {
+            publishError(databaseError);
+        }
+    };
+
+    /**
+     * 受信した値を反映し、リスナへ配信する
+     *
+     * @param value   デコード済みの値
+     * @param version 値のバージョン。0の場合はバージョンを確認しない
+     */
+    void publishValue(@Nullable T value, long version) {
+        publish(value, null, version);
+    }
+
+    /**
+     * 受信した値を反映し、リスナへ配信する
+     *
+     * @param value    デコード済みの値
+     * @param snapshot 遅延デコードを行う場合のSnapshot, nullの場合はvalueを反映する
+     * @param version  値のバージョン。0の場合はバージョンを確認しない
+     */
+    private void publish(@Nullable T value, @Nullable DataSnapshot snapshot, long version) {
+        final FirebaseMetrics metrics = FirebaseMetrics.getInstance();
+        final Executor executor;
+        synchronized (lock) {
+            if (version != 0) {
+                if (version <= mPublishedVersion) {
+                    // 既に新しい値を反映済み
+                    return;
+                }
+                mPublishedVersion = version;
+            }
+
+            if (metrics != null) {
+                metrics.onSnapshot(getMetricsPath());
+                if (mConnectNano != 0) {
+                    metrics.onFirstValue(getMetricsPath(), System.nanoTime() - mConnectNano);
+                    mConnectNano = 0;
+                }
+            }
+
+            // エラーは無視する
+            mState = new State<>(this, value, snapshot, mState.mSyncCount + 1, null, System.currentTimeMillis());
+            lock.notifyAll();
+
+            if (snapshot != null && mListeners.isEmpty()) {
+                // 配信先が無いため、デコードを行わない
+                return;
+            }
+
+            executor = mDispatchExecutor;
+            if (executor == null) {
+                dispatchUpdatedValue(getValue());
+                return;
+            }
+
+            // 配信されていない値は最新値で上書きする
+            if (mHasPendingDispatch) {
+                ++mDroppedUpdateCount;
+            }
+            mHasPendingDispatch = true;
+            if (mDispatchScheduled) {
+                return;
+            }
+            mDispatchScheduled = true;
+        }
+
+        executor.execute(mDispatchTask);
+    }
+
+    /**
+     * 受信したエラーを反映する
+     */
+    void publishError(@NonNull DatabaseError error) {
+        synchronized (lock) {
+            State<T> state = mState;
+            // 遅延デコードと競合しないよう、Snapshotを先に参照する
+            DataSnapshot snapshot = state.mPendingSnapshot;
+            T value = state.mValue;
+            mState = new State<>(this, value, snapshot, state.mSyncCount, error, System.currentTimeMillis());
+            lock.notifyAll();
+        }
+
+        mBroadcaster.safeEach(OnErrorListener.class, listener -> {
+            listener.onDataError(error);
+        });
+    }
+
+    /**
+     * lock外でリスナへの配信を行う
+     *
+     * 配信中に届いた更新は最新値のみを保持し、配信完了後にまとめて処理する。
+     * 1インスタンスに対する配信は常に直列化される。
+     */
+    private final Runnable mDispatchTask = () -> {
+        while (true) {
             synchronized (lock) {
-                mLastError = databaseError;
+                if (!mHasPendingDispatch) {
+                    mDispatchScheduled = false;
+                    return;
+                }
+                mHasPendingDispatch = false;
             }
+            // 遅延デコードの場合、ここでデコードされる
+            dispatchUpdatedValue(getValue());
         }
     };
 
+    private void dispatchUpdatedValue(T value) {
+        final FirebaseMetrics metrics = FirebaseMetrics.getInstance();
+        final long start = metrics != null ? System.nanoTime() : 0;
+
+        onUpdatedValue(value);
+        mBroadcaster.safeEach(OnUpdateListener.class, listener -> {
+            listener.onDataUpdated(FirebaseData.this, value);
+        });
+
+        if (metrics != null) {
+            metrics.onDispatch(getMetricsPath(), System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * 計測値を記録するパスを取得する
+     */
+    @NonNull
+    private String getMetricsPath() {
+        return mPath != null ? mPath : "";
+    }
+
+    /**
+     * Snapshotをデコードする
+     */
+    @Nullable
+    T decodeSnapshot(@NonNull DataSnapshot snapshot) {
+        final FirebaseMetrics metrics = FirebaseMetrics.getInstance();
+        if (metrics == null) {
+            return FirebaseModelAdapter.decode(snapshot, mValueClass);
+        }
+
+        final long start = System.nanoTime();
+        T value = FirebaseModelAdapter.decode(snapshot, mValueClass);
+        metrics.onDecode(getMetricsPath(), System.nanoTime() - start);
+        return value;
+    }
+
     public FirebaseData(@NonNull Class<T> valueClass) {
         mValueClass = valueClass;
+        mState = new State<>(this, null, null, 0, null, 0);
         mMockDataProvider = sMockDataProvider;
     }
 
     FirebaseData(DatabaseReference reference, String path, @NonNull Class<T> valueClass) {
         mPath = path + "/" + reference.getKey();
         mReference = reference;
-        mReference.addValueEventListener(mValueListener);
         mValueClass = valueClass;
+        mState = new State<>(this, null, null, 0, null, 0);
+        mReference.addValueEventListener(mValueListener);
         mMockDataProvider = sMockDataProvider;
     }
 
@@ -142,81 +474,542 @@ public class FirebaseData<T> {
         void onDataUpdated(FirebaseData<T> self, T value);
     }
 
+    /**
+     * 受信の失敗を受け取る
+     *
+     * OnUpdateListenerとして登録されたオブジェクトのうち、このインターフェースを実装するものに通知する。
+     */
+    interface OnErrorListener {
+        void onDataError(@NonNull DatabaseError error);
+    }
+
     public FirebaseData<T> registerOnUpdateListener(OnUpdateListener obj) {
         mBroadcaster.register(obj);
+        synchronized (lock) {
+            mListeners.add(obj);
+        }
         return this;
     }
 
     public FirebaseData<T> weakRegisterOnUpdateListener(OnUpdateListener obj) {
         mBroadcaster.weakRegister(obj);
+        synchronized (lock) {
+            mListeners.add(obj);
+        }
+        return this;
+    }
+
+    public FirebaseData<T> unregister(OnUpdateListener obj) {
+        mBroadcaster.unregister(obj);
+        synchronized (lock) {
+            mListeners.remove(obj);
+        }
+        return this;
+    }
+
+    /**
+     * 購読者の要求数に応じて更新を配信するStreamを生成する
+     *
+     * 重い処理を行う購読者も、Firebaseのコールバックスレッドを待たせずに更新を受け取れる。
+     *
+     * @see FirebaseDataStream
+     */
+    @NonNull
+    public FirebaseDataStream<T> stream() {
+        return new FirebaseDataStream<>(this);
+    }
+
+    /**
+     * リスナへの配信を行うExecutorを指定する。
+     *
+     * 指定した場合、値はgetValue()から先に参照可能になり、リスナへはlock外で配信される。
+     * 配信が追いつかない場合は中間の値を破棄し、最新の値のみを配信する。
+     * nullを指定した場合、値の更新と同時にFirebaseのコールバックスレッドで配信する。
+     *
+     * @param executor 配信を行うExecutor
+     */
+    public FirebaseData<T> dispatchOn(@Nullable Executor executor) {
+        synchronized (lock) {
+            mDispatchExecutor = executor;
+        }
+        return this;
+    }
+
+    /**
+     * 配信前に新しい値で上書きされ、リスナに届かなかった更新数を取得する
+     */
+    public long getDroppedUpdateCount() {
+        synchronized (lock) {
+            return mDroppedUpdateCount;
+        }
+    }
+
+    /**
+     * Snapshotのデコードを行うExecutorを指定する。
+     *
+     * 指定した場合、Firebaseのコールバックスレッド(UIスレッド)ではデコードを行わない。
+     * getSyncCount()とリスナはデコード完了時点で更新され、デコード前に新しいSnapshotを受信した場合は古いSnapshotをデコードしない。
+     * 共有接続(shareConnection)では利用されない。
+     *
+     * @param executor デコードを行うExecutor, nullの場合はコールバックスレッドでデコードする
+     */
+    public FirebaseData<T> decodeOn(@Nullable Executor executor) {
+        synchronized (lock) {
+            mDecodeExecutor = executor;
+        }
+        return this;
+    }
+
+    /**
+     * Snapshotのデコードを、最初に値が必要になるまで遅延する場合はtrueを指定する。
+     *
+     * 受信したSnapshotを保持し、getValue()の初回呼び出し時にデコードする。
+     * getSyncCount()は受信時点で更新され、getValue()は常に最後に受信したSnapshotの値を返す。
+     * リスナが登録されている場合は配信時にデコードを行い、dispatchOn()を指定していなければ受信時にデコードする。
+     * リスナが登録されていない場合、onUpdatedValue()は呼び出されない。
+     * decodeOn()よりも優先される。共有接続(shareConnection)では利用されない。
+     */
+    public FirebaseData<T> decodeLazy(boolean lazy) {
+        synchronized (lock) {
+            mDecodeLazy = lazy;
+        }
+        return this;
+    }
+
+    /**
+     * 同一パス・同一クラスのインスタンスと接続を共有する場合はtrueを指定する。
+     *
+     * connect()前に指定する必要がある。
+     * 共有された接続ではデコード済みの値も共有されるため、getValue()で取得したオブジェクトを書き換えてはならない。
+     */
+    public FirebaseData<T> shareConnection(boolean share) {
+        mShareConnection = share;
         return this;
     }
 
-    public FirebaseData<T> unregister(OnUpdateListener obj) {
-        mBroadcaster.unregister(obj);
-        return this;
+    public FirebaseData<T> connect(String path) {
+        mPath = path;
+        synchronized (lock) {
+            // 接続先毎にバージョンを管理する
+            mPublishedVersion = 0;
+            mConnectNano = FirebaseMetrics.getInstance() != null ? System.nanoTime() : 0;
+        }
+
+        if (mMockDataProvider != null) {
+            T value = mMockDataProvider.getData(this, path);
+            synchronized (lock) {
+                mState = mState.withValue(value);
+                lock.notifyAll();
+            }
+            return this;
+        }
+
+        if (mShareConnection) {
+            mReference = FirebaseConnectionRegistry.getInstance().attach(this, path);
+            mSharedConnected = true;
+            return this;
+        }
+
+        mReference = FirebaseDatabase.getInstance().getReference(path);
+        mReference.addValueEventListener(mValueListener);
+        return this;
+    }
+
+    /**
+     * 値が更新された
+     */
+    protected void onUpdatedValue(T value) {
+    }
+
+    /**
+     * 最後のエラーを取得する
+     */
+    @Nullable
+    public DatabaseError getLastError() {
+        return mState.mLastError;
+    }
+
+    /**
+     * 値のコミットを行う
+     *
+     * 送信待ちのコミットがある場合、その値は破棄される。
+     * FirebaseOfflineWriteQueueを経由する場合はキューからの送信完了を待つ。
+     * キューへの保存はこのメソッドの中で完了しているため、オフライン中にcancelCallbackで待機を中断しても書き込みは失われない。
+     */
+    public FirebaseData<T> commit(T value, CancelCallback cancelCallback) throws InterruptedException {
+        discardPendingCommit();
+        PlayServiceUtil.await(sendValue(value), cancelCallback);
+        applyCommittedValue(value);
+        return this;
+    }
+
+    /**
+     * 値のコミットを行う
+     * このメソッドは処理結果を待たずに返却される
+     *
+     * {@link #commitWindow(long, long)} を指定した場合、値は即座に反映され、送信は遅延される。
+     * 複数のインスタンスをまとめてコミットする場合は {@link FirebaseWriteBatch} を利用する。
+     */
+    public FirebaseData<T> commit(T value) {
+        applyCommittedValue(value);
+        synchronized (lock) {
+            if (mCommitWindowMs > 0) {
+                final long now = nanoTime();
+                if (mHasPendingCommit) {
+                    // 送信前の値は最新値で上書きする
+                    ++mCoalescedCommitCount;
+                } else {
+                    mHasPendingCommit = true;
+                    mPendingCommitStartNano = now;
+                }
+                mPendingCommitValue = value;
+                mPendingCommitLastNano = now;
+                if (mCommitTask == null) {
+                    mCommitTask = scheduleCommitFlush(mCommitFlushTask, TimeUnit.MILLISECONDS.toNanos(mCommitWindowMs));
+                }
+                return this;
+            }
+        }
+        sendValue(value);
+        return this;
+    }
+
+    /**
+     * 短時間のコミットをまとめて送信する
+     *
+     * 最後のcommit()からwindowMsの間に次のcommit()が無い場合、最後の値のみを送信する。
+     * commit()が続く場合でも、最初のcommit()からmaxLatencyMsが経過した時点で送信する。
+     * 送信待ちの値はdisconnect()時に送信される。
+     *
+     * @param windowMs     コミットをまとめる時間(ms), 0以下の場合はcommit()毎に送信する
+     * @param maxLatencyMs 最初のコミットから送信までの最大時間(ms)
+     */
+    public FirebaseData<T> commitWindow(long windowMs, long maxLatencyMs) {
+        synchronized (lock) {
+            mCommitWindowMs = windowMs;
+            mCommitMaxLatencyMs = Math.max(windowMs, maxLatencyMs);
+        }
+        if (windowMs <= 0) {
+            flushCommit();
+        }
+        return this;
+    }
+
+    /**
+     * 送信待ちのコミットを即座に送信する
+     */
+    public FirebaseData<T> flushCommit() {
+        T value;
+        synchronized (lock) {
+            if (!mHasPendingCommit) {
+                return this;
+            }
+            value = mPendingCommitValue;
+            clearPendingCommit();
+        }
+        sendValue(value);
+        return this;
+    }
+
+    /**
+     * オフライン中のコミットをストレージへ保存し、オンライン復帰時に送信する
+     *
+     * オンライン状態は {@link FirebaseSystemInformation#isOnline()} で判定する。
+     * 保存したコミットはプロセスが終了しても失われず、次回起動後のオンライン復帰時に送信される。
+     *
+     * @see FirebaseOfflineWriteQueue
+     */
+    public FirebaseData<T> offlineQueue(boolean offlineQueue) {
+        mOfflineQueue = offlineQueue;
+        return this;
+    }
+
+    /**
+     * コミットをFirebaseOfflineWriteQueueへ保存する場合はtrue
+     *
+     * オンラインでも、同じパスへの送信待ちの書き込みが残っている間はキューを経由する。
+     * 直接送信すると、後から送信される古い書き込みで上書きされるためである。
+     */
+    private boolean isOfflineQueueTarget() {
+        if (mReference == null) {
+            return false;
+        }
+        if (mOfflineQueue && !FirebaseSystemInformation.getInstance().isOnline()) {
+            return true;
+        }
+
+        FirebaseOfflineWriteQueue queue = mOfflineQueue ? FirebaseOfflineWriteQueue.getInstance(getContext()) : FirebaseOfflineWriteQueue.peekInstance();
+        return queue != null && queue.hasPendingWrite(mPath);
+    }
+
+    /**
+     * 値を送信する
+     *
+     * FirebaseOfflineWriteQueueの対象であればキューへ積み、キューからの送信完了で完了するTaskを返す。
+     */
+    private Task<Void> sendValue(@Nullable T value) {
+        if (isOfflineQueueTarget()) {
+            return FirebaseOfflineWriteQueue.getInstance(getContext()).enqueue(mPath, value);
+        }
+
+        synchronized (lock) {
+            ++mSentCommitCount;
+        }
+        return writeValue(value);
+    }
+
+    /**
+     * Firebaseへ値を書き込む
+     *
+     * テストで送信先を差し替えられるよう、package privateとする。
+     */
+    Task<Void> writeValue(@Nullable T value) {
+        final FirebaseMetrics metrics = FirebaseMetrics.getInstance();
+        if (metrics == null) {
+            return mReference.setValue(FirebaseModelAdapter.encode(value));
+        }
+
+        final String path = mPath;
+        final long start = System.nanoTime();
+        Task<Void> task = mReference.setValue(FirebaseModelAdapter.encode(value));
+        task.addOnCompleteListener(result -> metrics.onCommit(path, System.nanoTime() - start, result.isSuccessful()));
+        return task;
+    }
+
+    /**
+     * 送信待ちのコミットを破棄する
+     *
+     * 他の経路で新しい値を送信する場合に呼び出す。
+     */
+    void discardPendingCommit() {
+        synchronized (lock) {
+            if (mHasPendingCommit) {
+                ++mCoalescedCommitCount;
+                clearPendingCommit();
+            }
+        }
     }
 
-    public FirebaseData<T> connect(String path) {
-        mPath = path;
+    /**
+     * lockを保持した状態で呼び出す
+     */
+    private void clearPendingCommit() {
+        mHasPendingCommit = false;
+        mPendingCommitValue = null;
+        if (mCommitTask != null) {
+            mCommitTask.cancel(false);
+            mCommitTask = null;
+        }
+    }
 
-        if (mMockDataProvider != null) {
-            mValue = mMockDataProvider.getData(this, path);
-            return this;
+    /**
+     * 期限に達していれば送信し、達していなければ再スケジュールする
+     *
+     * commit()毎にタスクを登録し直さないよう、実行時に期限を確認する。
+     */
+    private final Runnable mCommitFlushTask = () -> {
+        synchronized (lock) {
+            if (!mHasPendingCommit) {
+                return;
+            }
+            final long due = Math.min(
+                    mPendingCommitLastNano + TimeUnit.MILLISECONDS.toNanos(mCommitWindowMs),
+                    mPendingCommitStartNano + TimeUnit.MILLISECONDS.toNanos(mCommitMaxLatencyMs));
+            final long remain = due - nanoTime();
+            if (remain > 0) {
+                mCommitTask = scheduleCommitFlush(this.mCommitFlushTask, remain);
+                return;
+            }
+            mCommitTask = null;
         }
+        flushCommit();
+    };
 
-        mReference = FirebaseDatabase.getInstance().getReference(path);
-        mReference.addValueEventListener(mValueListener);
-        return this;
+    /**
+     * 遅延コミットの送信を予約する
+     *
+     * テストで時刻を進めて実行できるよう、時刻の取得と合わせてpackage privateとする。
+     */
+    ScheduledFuture<?> scheduleCommitFlush(@NonNull Runnable task, long delayNano) {
+        return sCommitExecutor.schedule(task, delayNano, TimeUnit.NANOSECONDS);
     }
 
     /**
-     * 値が更新された
+     * コミット時刻の計算に利用する現在時刻(System.nanoTime)
      */
-    protected void onUpdatedValue(T value) {
+    long nanoTime() {
+        return System.nanoTime();
     }
 
     /**
-     * 最後のエラーを取得する
+     * 送信前に新しい値で上書きされたコミット数を取得する
      */
-    @Nullable
-    public DatabaseError getLastError() {
+    public long getCoalescedCommitCount() {
         synchronized (lock) {
-            return mLastError;
+            return mCoalescedCommitCount;
         }
     }
 
     /**
-     * 値のコミットを行う
+     * 送信したコミット数を取得する
      */
-    public FirebaseData<T> commit(T value, CancelCallback cancelCallback) throws InterruptedException {
-        PlayServiceUtil.await(mReference.setValue(value), cancelCallback);
+    public long getSentCommitCount() {
         synchronized (lock) {
-            mValue = value;
+            return mSentCommitCount;
         }
-        return this;
     }
 
     /**
-     * 値のコミットを行う
+     * トランザクションで値を更新する
      * このメソッドは処理結果を待たずに返却される
+     *
+     * functionにはサーバー上の値(存在しない場合はnull)が渡され、更新後の値を返却する。
+     * 他の端末と競合した場合、functionは最新の値で再度呼び出されるため、副作用を持ってはならない。
+     * functionがnullを返却するか例外を投げた場合、トランザクションは中断される。
+     * リトライ回数と中断理由は {@link FirebaseTransactionStats} にパス毎に記録される。
+     *
+     * @param function 更新処理
+     * @return 確定した値を返却するTask, 中断された場合は {@link FirebaseDatabaseException} で失敗する
      */
-    public FirebaseData<T> commit(T value) {
-        mReference.setValue(value);
+    public Task<T> transact(@NonNull ResultAction1<T, T> function) {
+        // 送信待ちの値を先に反映し、トランザクションの入力とする
+        flushCommit();
+
+        if (mReference == null) {
+            // モックデータはローカルで更新する
+            try {
+                T value = function.action(getValue());
+                if (value == null) {
+                    return Tasks.forException(new FirebaseDatabaseException("Transaction aborted :: " + FirebaseTransactionStats.ABORT_BY_FUNCTION));
+                }
+                applyCommittedValue(value);
+                return Tasks.forResult(value);
+            } catch (Throwable e) {
+                return Tasks.forException(new FirebaseDatabaseException("Transaction aborted :: " + FirebaseTransactionStats.ABORT_BY_EXCEPTION, e));
+            }
+        }
+
+        final String path = mPath;
+        final FirebaseMetrics metrics = FirebaseMetrics.getInstance();
+        final long start = metrics != null ? System.nanoTime() : 0;
+        final TaskCompletionSource<T> result = new TaskCompletionSource<>();
+        mReference.runTransaction(new Transaction.Handler() {
+            /**
+             * functionの呼び出し回数
+             */
+            int mAttempts;
+
+            /**
+             * functionによる中断理由
+             */
+            String mAbortReason;
+
+            Throwable mAbortError;
+
+            @Override
+            public Transaction.Result doTransaction(MutableData mutableData) {
+                ++mAttempts;
+                mAbortReason = null;
+                mAbortError = null;
+
+                T value;
+                try {
+                    value = function.action(FirebaseModelAdapter.decode(mutableData, mValueClass));
+                } catch (Throwable e) {
+                    mAbortReason = FirebaseTransactionStats.ABORT_BY_EXCEPTION;
+                    mAbortError = e;
+                    return Transaction.abort();
+                }
+
+                if (value == null) {
+                    mAbortReason = FirebaseTransactionStats.ABORT_BY_FUNCTION;
+                    return Transaction.abort();
+                }
+                mutableData.setValue(FirebaseModelAdapter.encode(value));
+                return Transaction.success(mutableData);
+            }
+
+            @Override
+            public void onComplete(DatabaseError databaseError, boolean committed, DataSnapshot dataSnapshot) {
+                FirebaseTransactionStats stats = FirebaseTransactionStats.getInstance();
+                if (committed && databaseError == null) {
+                    T value = decodeSnapshot(dataSnapshot);
+                    stats.onCommitted(path, mAttempts);
+                    applyCommittedValue(value);
+                    result.setResult(value);
+                } else if (databaseError != null) {
+                    String reason = FirebaseTransactionStats.toAbortReason(databaseError);
+                    stats.onAborted(path, mAttempts, reason);
+                    result.setException(new FirebaseDatabaseSyncException("Transaction aborted :: " + reason, databaseError));
+                } else {
+                    String reason = mAbortReason != null ? mAbortReason : FirebaseTransactionStats.ABORT_BY_FUNCTION;
+                    stats.onAborted(path, mAttempts, reason);
+                    result.setException(new FirebaseDatabaseException("Transaction aborted :: " + reason, mAbortError));
+                }
+                if (metrics != null) {
+                    metrics.onCommit(path, System.nanoTime() - start, committed && databaseError == null);
+                }
+                FbLog.debug("Transaction path[%s] committed[%s] attempts[%d]", path, String.valueOf(committed), mAttempts);
+            }
+        }, false);
+        return result.getTask();
+    }
+
+    /**
+     * トランザクションで値を更新し、完了を待つ
+     *
+     * @param function 更新処理
+     * @return 確定した値
+     * @throws FirebaseDatabaseException トランザクションが中断された
+     * @see #transact(ResultAction1)
+     */
+    public T transact(@NonNull ResultAction1<T, T> function, CancelCallback cancelCallback) throws InterruptedException, FirebaseDatabaseException {
+        Task<T> task = PlayServiceUtil.await(transact(function), cancelCallback);
+        if (!task.isComplete()) {
+            throw new InterruptedException("Transaction canceled :: " + mPath);
+        }
+
+        if (task.isSuccessful()) {
+            return task.getResult();
+        }
+
+        Exception error = task.getException();
+        if (error instanceof FirebaseDatabaseException) {
+            throw (FirebaseDatabaseException) error;
+        } else {
+            throw new FirebaseDatabaseException(error);
+        }
+    }
+
+    /**
+     * コミットした値を反映する
+     */
+    void applyCommittedValue(@Nullable T value) {
         synchronized (lock) {
-            mValue = value;
+            mState = mState.withValue(value);
+            lock.notifyAll();
         }
-        return this;
     }
 
     /**
      * 最新の値を取得する
+     *
+     * このメソッドはlockを取得しない。
      */
     @Nullable
     public T getValue() {
-        synchronized (lock) {
-            return mValue;
-        }
+        return mState.getValue();
+    }
+
+    /**
+     * 現在の状態を取得する
+     *
+     * 値・更新カウンタ・エラーを一貫した組み合わせで参照する場合に利用する。
+     * このメソッドはlockを取得しない。
+     */
+    @NonNull
+    public State<T> getState() {
+        return mState;
     }
 
     @NonNull
@@ -229,9 +1022,7 @@ public class FirebaseData<T> {
      */
     @IntRange(from = 0)
     public int getSyncCount() {
-        synchronized (lock) {
-            return mSyncCount;
-        }
+        return mState.mSyncCount;
     }
 
     /**
@@ -269,6 +1060,51 @@ public class FirebaseData<T> {
         }
     }
 
+    /**
+     * 値かエラーが設定されるまで待機する。
+     *
+     * 待機はlockに対するwait/notifyで行い、onDataChange/onCancelledから直接起こされる。
+     * CancelCallbackとネットワーク状態は {@link #AWAIT_CHECK_INTERVAL_MS} 毎に確認する。
+     *
+     * @param timeoutMs      タイムアウト時間(ms), 0以下の場合はタイムアウトしない
+     * @param checkError     エラーが設定された時点で待機を終了する場合はtrue
+     * @param cancelCallback キャンセルチェック
+     * @return 待機を終了させたエラー。値が取得できた場合はnull
+     */
+    @Nullable
+    private DatabaseError awaitImpl(long timeoutMs, boolean checkError, CancelCallback cancelCallback) throws InterruptedException, NetworkNotConnectException, TimeoutException {
+        // 壁時計の変更に影響されないよう、nanoTimeで期限を管理する
+        final long deadlineNano = timeoutMs > 0 ? (System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs)) : 0;
+        while (true) {
+            State<T> current = mState;
+            if (current.getValue() != null) {
+                return null;
+            }
+            if (checkError && current.mLastError != null) {
+                return current.mLastError;
+            }
+
+            validConnectionWait(cancelCallback);
+
+            long waitMs = AWAIT_CHECK_INTERVAL_MS;
+            if (deadlineNano != 0) {
+                long remainMs = TimeUnit.NANOSECONDS.toMillis(deadlineNano - System.nanoTime());
+                if (remainMs <= 0) {
+                    throw new TimeoutException("FirebaseData await timeout[" + mPath + "]");
+                }
+                waitMs = Math.min(waitMs, remainMs);
+            }
+
+            synchronized (lock) {
+                // チェック中に更新されていたら待機しない
+                State<T> state = mState;
+                if (!state.hasValue() && !(checkError && state.mLastError != null)) {
+                    lock.wait(waitMs);
+                }
+            }
+        }
+    }
+
     /**
      * アイテムを取得する
      *
@@ -276,11 +1112,24 @@ public class FirebaseData<T> {
      */
     @NonNull
     public FirebaseData<T> await(CancelCallback cancelCallback) throws InterruptedException, NetworkNotConnectException {
-        while (getValue() == null) {
-            validConnectionWait(cancelCallback);
-            Util.sleep(1);
+        try {
+            awaitImpl(0, false, cancelCallback);
+        } catch (TimeoutException e) {
+            // タイムアウトは指定していないため、ここには到達しない
+            throw new IllegalStateException(e);
         }
+        return this;
+    }
 
+    /**
+     * アイテムを取得する
+     *
+     * @param timeoutMs      タイムアウト時間(ms), 0以下の場合はタイムアウトしない
+     * @param cancelCallback キャンセルチェック
+     */
+    @NonNull
+    public FirebaseData<T> await(long timeoutMs, CancelCallback cancelCallback) throws InterruptedException, NetworkNotConnectException, TimeoutException {
+        awaitImpl(timeoutMs, false, cancelCallback);
         return this;
     }
 
@@ -291,11 +1140,25 @@ public class FirebaseData<T> {
      */
     @NonNull
     public FirebaseData<T> awaitIfSuccess(CancelCallback cancelCallback) throws InterruptedException, FirebaseDatabaseException, NetworkNotConnectException {
-        DatabaseError error = null;
-        while (getValue() == null && ((error = getLastError()) == null)) {
-            validConnectionWait(cancelCallback);
-            Util.sleep(1);
+        try {
+            return awaitIfSuccess(0, cancelCallback);
+        } catch (TimeoutException e) {
+            // タイムアウトは指定していないため、ここには到達しない
+            throw new IllegalStateException(e);
         }
+    }
+
+    /**
+     * エラーが発生するまで問い合わせを続け、アイテムを取得する
+     *
+     * エラーが発生した場合、即座にハンドリングを中止して例外を投げる
+     *
+     * @param timeoutMs      タイムアウト時間(ms), 0以下の場合はタイムアウトしない
+     * @param cancelCallback キャンセルチェック
+     */
+    @NonNull
+    public FirebaseData<T> awaitIfSuccess(long timeoutMs, CancelCallback cancelCallback) throws InterruptedException, FirebaseDatabaseException, NetworkNotConnectException, TimeoutException {
+        DatabaseError error = awaitImpl(timeoutMs, true, cancelCallback);
 
         // エラーが設定されている
         if (error != null) {
@@ -315,13 +1178,27 @@ public class FirebaseData<T> {
     /**
      * インスタンスを取得し、パスへ接続する
      *
+     * 生成したインスタンスはdisconnect()するまで同期を続ける。
+     *
      * @param clazz 変換対象クラス
      * @param path  接続対象のパス
+     * @see FirebaseDataCache
      */
     public static <T> FirebaseData<T> newInstance(Class<T> clazz, String path) {
         return new FirebaseData<>(clazz).connect(path);
     }
 
+    /**
+     * インスタンスを取得し、同一パス・同一クラスのインスタンスと接続を共有する
+     *
+     * @param clazz 変換対象クラス
+     * @param path  接続対象のパス
+     * @see #shareConnection(boolean)
+     */
+    public static <T> FirebaseData<T> newSharedInstance(Class<T> clazz, String path) {
+        return new FirebaseData<>(clazz).shareConnection(true).connect(path);
+    }
+
     /**
      * 指定された階層の下にパスを生成し、
      */
@@ -334,9 +1211,20 @@ public class FirebaseData<T> {
      * LocalDumpを行う際のKeyを指定する
      */
     protected String getDumpKey(@Nullable String optionalKey) {
-        String key = mPath;
-        if (mReference != null) {
-            key += ("@" + mReference.getKey());
+        return toDumpKey(mPath, mReference != null ? mReference.getKey() : null, optionalKey);
+    }
+
+    /**
+     * LocalDumpを行う際のKeyを生成する
+     *
+     * @param path         接続対象のパス
+     * @param referenceKey DatabaseReference#getKey(), 未接続の場合はnull
+     * @param optionalKey  Keyに付与される文字
+     */
+    static String toDumpKey(String path, @Nullable String referenceKey, @Nullable String optionalKey) {
+        String key = path;
+        if (referenceKey != null) {
+            key += ("@" + referenceKey);
         }
 
         if (!StringUtil.isEmpty(optionalKey)) {
@@ -355,6 +1243,67 @@ public class FirebaseData<T> {
         return context.getDatabasePath(DUMP_DATABASE_FILE_NAME);
     }
 
+    /**
+     * Dumpデータの保存先を取得する
+     *
+     * 同一ファイルに対するFirebaseDumpStoreは全インスタンスで共有される。
+     */
+    @NonNull
+    protected FirebaseDumpStore getDumpStore() {
+        Context context = getContext();
+        return FirebaseDumpStore.getInstance(context, getDatabasePath(context));
+    }
+
+    /**
+     * Dumpに利用する形式を指定する
+     *
+     * 復旧時はDumpデータのヘッダから形式を判定するため、形式を変更しても既存のDumpデータを復旧できる。
+     *
+     * @param codec Dumpに利用する形式, nullの場合は {@link FirebaseDumpCodec#getDefault()} を利用する
+     */
+    public FirebaseData<T> dumpCodec(@Nullable FirebaseDumpCodec codec) {
+        mDumpCodec = codec;
+        return this;
+    }
+
+    /**
+     * 前回のDumpからの差分のみを保存する
+     *
+     * 基準となるDumpと差分の列を保存し、差分の数がmaxChainLengthに達するか、差分が大きくなった時点で基準を保存し直す。
+     * 差分の計算のため、最後にDumpした内容をメモリ上に保持する。
+     * 復旧時の差分の適用は、この設定に関わらず自動的に行われる。
+     *
+     * @param maxChainLength 基準を保存し直すまでの差分数, 0の場合は常に全体を保存する
+     * @see FirebaseDeltaDump
+     */
+    public FirebaseData<T> deltaDump(@IntRange(from = 0) int maxChainLength) {
+        synchronized (mDeltaDumpChains) {
+            mDeltaDumpChainLength = maxChainLength;
+            mDeltaDumpChains.clear();
+        }
+        return this;
+    }
+
+    /**
+     * Dumpの有効期間を指定する
+     *
+     * 期限を過ぎたDumpは復旧されず、{@link FirebaseDumpStore#sweep(FirebaseDumpStore.OrphanFilter)} で削除される。
+     * restore()のexpireTimeMsと異なり、期限はDump時に保存されるため、復旧を行わないKeyも削除対象となる。
+     *
+     * @param ttlMs 有効期間(ms), 0以下の場合は無期限
+     */
+    public FirebaseData<T> dumpTtl(long ttlMs) {
+        mDumpTtlMs = ttlMs;
+        return this;
+    }
+
+    /**
+     * Dumpの有効期間(ms)を取得する
+     */
+    public long getDumpTtlMs() {
+        return mDumpTtlMs;
+    }
+
     /**
      * データをローカルストレージに保存する
      */
@@ -365,40 +1314,81 @@ public class FirebaseData<T> {
     /**
      * データをローカルストレージに保存する
      *
-     * 内容はJSON/Textとして保持する。
+     * 内容は {@link #dumpCodec(FirebaseDumpCodec)} で指定した形式で保持する。デフォルトはJSON/Textである。
+     * 書き込みはFirebaseDumpStoreのキューに積まれ、他のDumpとまとめて反映される。
+     * 即座に反映する必要がある場合は {@link FirebaseDumpStore#flush()} を呼び出す。
      *
      * @param optionalKey Keyに付与される文字。指定されない場合はデフォルトのKeyで保持する。
      * @return this
      */
-    @SuppressLint("NewApi")
     public FirebaseData<T> dump(@Nullable String optionalKey) {
         final String key = getDumpKey(optionalKey);
-        Context context = getContext();
-
-        try (
-                TextKeyValueStore kvs = new TextKeyValueStore(context, getDatabasePath(context), TextKeyValueStore.TABLE_NAME_DEFAULT)
-        ) {
-            kvs.open(DBOpenType.Write);
-            T value = getValue();
-            String text = value != null ? JSON.encodeOrNull(value) : "";
-            kvs.putDirect(key, text);
+        FirebaseDumpStore store = getDumpStore();
+        FirebaseDumpPreloader.getInstance().invalidate(store, key);
+
+        final FirebaseMetrics metrics = FirebaseMetrics.getInstance();
+        final long start = metrics != null ? System.nanoTime() : 0;
+        Map<String, String> values = encodeDumpValues(key);
+        if (!values.isEmpty()) {
+            store.putAll(values, mDumpTtlMs);
+        }
+        if (metrics != null) {
+            int bytes = 0;
+            for (String value : values.values()) {
+                bytes += FirebaseMetrics.sizeOf(value);
+            }
+            metrics.onDump(getMetricsPath(), bytes, System.nanoTime() - start);
         }
         return this;
     }
 
+    /**
+     * 現在の値を保存するKeyと値を取得する
+     *
+     * 差分Dumpの場合、前回から変化が無ければ空のMapを返却する。
+     */
+    @NonNull
+    Map<String, String> encodeDumpValues(@NonNull String key) {
+        synchronized (mDeltaDumpChains) {
+            if (mDeltaDumpChainLength > 0) {
+                FirebaseDeltaDump.Chain chain = mDeltaDumpChains.get(key);
+                if (chain == null) {
+                    chain = new FirebaseDeltaDump.Chain();
+                    mDeltaDumpChains.put(key, chain);
+                }
+                FirebaseDumpCodec codec = mDumpCodec != null ? mDumpCodec : FirebaseDumpCodec.getDefault();
+                return FirebaseDeltaDump.encode(chain, key, getValue(), codec, mDeltaDumpChainLength);
+            }
+        }
+        return Collections.singletonMap(key, encodeDumpValue());
+    }
+
+    /**
+     * 現在の値をDump用にエンコードする
+     */
+    @NonNull
+    String encodeDumpValue() {
+        T value = getValue();
+        if (value == null) {
+            return "";
+        }
+
+        FirebaseDumpCodec codec = mDumpCodec != null ? mDumpCodec : FirebaseDumpCodec.getDefault();
+        String text = codec.encode(value);
+        return text != null ? text : "";
+    }
+
     /**
      * ローカルにDumpされたデータを削除する
      */
-    @SuppressLint("NewApi")
     public FirebaseData<T> removeDumpValue(@Nullable String optionalKey) {
         final String key = getDumpKey(optionalKey);
-        Context context = getContext();
-
-        try (
-                TextKeyValueStore kvs = new TextKeyValueStore(context, getDatabasePath(context), TextKeyValueStore.TABLE_NAME_DEFAULT)
-        ) {
-            kvs.open(DBOpenType.Write);
-            kvs.remove(key);
+        FirebaseDumpStore store = getDumpStore();
+        FirebaseDumpPreloader.getInstance().invalidate(store, key);
+        store.remove(key);
+        store.remove(FirebaseDeltaDump.toChainKey(key));
+        synchronized (mDeltaDumpChains) {
+            mDeltaDumpChains.remove(key);
         }
         return this;
     }
@@ -443,63 +1433,132 @@ public class FirebaseData<T> {
      *
      * dumpされていない場合、もしくはdump結果が空文字である場合、valueにはnullを上書きする。
      * 既にvalueが設定されている場合、このメソッドは何もしない。
+     * {@link FirebaseDumpPreloader} で事前に読み込まれている場合、その値を利用する。
      *
      * @param optionalKey  Keyに付与される文字。指定されない場合はデフォルトのKeyで保持する。
      * @param expireTimeMs Dumpしたデータが有効な時間（ミリ秒）, Dumpしたデータが1時間有効であれば1000*3600を指定する。期限切れの場合は削除する。0以下の場合は常に有効
      * @return this
      */
-    @SuppressLint("NewApi")
     public FirebaseData<T> restore(@Nullable String optionalKey, long expireTimeMs) {
         final String key = getDumpKey(optionalKey);
-        Context context = getContext();
+        FirebaseDumpStore store = getDumpStore();
 
-        T item = null;
-        try (
-                TextKeyValueStore kvs = new TextKeyValueStore(context, getDatabasePath(context), TextKeyValueStore.TABLE_NAME_DEFAULT)
-        ) {
-            kvs.open(expireTimeMs < 0 ? DBOpenType.Read : DBOpenType.Write);    // expireされる可能性があるならWriteモードで開く
-            TextKeyValueStore.Data data = kvs.get(key);
-            if (data != null) {
-                if (expireTimeMs > 0) {
-                    // 有効チェック
-                    if (System.currentTimeMillis() > (data.date + expireTimeMs)) {
-                        // データを削除する
-                        kvs.remove(key);
-                        data = null;
-                    }
-                }
+        // 事前読み込み済みであれば、ストレージへアクセスせずに反映する
+        FirebaseDumpPreloader.Result<T> preloaded = FirebaseDumpPreloader.getInstance().take(store, key, mValueClass, expireTimeMs);
+        if (preloaded != null) {
+            applyRestoredValue(preloaded.getValue());
+            return this;
+        }
+
+        final FirebaseMetrics metrics = FirebaseMetrics.getInstance();
+        final long start = metrics != null ? System.nanoTime() : 0;
+        final String chainKey = FirebaseDeltaDump.toChainKey(key);
+        Map<String, FirebaseDumpStore.Entry> entries = store.getAll(Arrays.asList(key, chainKey));
+        FirebaseDumpStore.Entry entry = entries.get(key);
+        T item = decodeDumpEntry(store, key, entry, entries.get(chainKey), expireTimeMs);
+        if (metrics != null) {
+            metrics.onRestore(getMetricsPath(), entry != null ? FirebaseMetrics.sizeOf(entry.getValue()) : 0, System.nanoTime() - start);
+        }
+        applyRestoredValue(item);
+        return this;
+    }
+
+    /**
+     * Dumpされたデータをデコードする
+     *
+     * @param store        Dumpデータの保存先
+     * @param key          DumpデータのKey
+     * @param data         Dumpデータ
+     * @param chain        差分Dumpのデータ, 存在しない場合はnull
+     * @param expireTimeMs Dumpしたデータが有効な時間（ミリ秒）, 期限切れの場合は削除する。0以下の場合は常に有効
+     * @return デコードされた値, 存在しないか期限切れの場合はnull
+     */
+    @Nullable
+    T decodeDumpEntry(@NonNull FirebaseDumpStore store, @NonNull String key, @Nullable FirebaseDumpStore.Entry data, @Nullable FirebaseDumpStore.Entry chain, long expireTimeMs) {
+        return decodeDumpEntry(store, key, data, chain, expireTimeMs, mValueClass);
+    }
+
+    /**
+     * Dumpされたデータをデコードする
+     *
+     * 差分Dumpが存在する場合は、基準のDumpに適用する。有効期限は最後に保存した時刻から計算する。
+     *
+     * @param store        Dumpデータの保存先
+     * @param key          DumpデータのKey
+     * @param data         Dumpデータ
+     * @param chain        差分Dumpのデータ, 存在しない場合はnull
+     * @param expireTimeMs Dumpしたデータが有効な時間（ミリ秒）, 期限切れの場合は削除する。0以下の場合は常に有効
+     * @param valueClass   変換対象クラス
+     * @return デコードされた値, 存在しないか期限切れの場合はnull
+     */
+    @Nullable
+    static <T> T decodeDumpEntry(@NonNull FirebaseDumpStore store, @NonNull String key, @Nullable FirebaseDumpStore.Entry data, @Nullable FirebaseDumpStore.Entry chain,
+                                 long expireTimeMs, @NonNull Class<T> valueClass) {
+        if (data == null) {
+            return null;
+        }
 
-                // データをデコードする
-                if (data != null && !StringUtil.isEmpty(data.value)) {
-                    item = JSON.decodeOrNull(data.value, mValueClass);
+        if (expireTimeMs > 0) {
+            // 有効チェック
+            final long date = chain != null ? Math.max(data.getDate(), chain.getDate()) : data.getDate();
+            if (System.currentTimeMillis() > (date + expireTimeMs)) {
+                // データを削除する
+                store.remove(key);
+                if (chain != null) {
+                    store.remove(chain.getKey());
                 }
+                return null;
             }
         }
 
+        // データをデコードする
+        return FirebaseDeltaDump.decode(data.getValue(), chain != null ? chain.getValue() : null, valueClass);
+    }
+
+    /**
+     * 復旧した値を反映する
+     *
+     * 既に値が設定されている場合は何もしない。
+     */
+    void applyRestoredValue(@Nullable T item) {
         synchronized (lock) {
             // Restore前に同期が完了していたら、最新版を使うべきである。
-            if (mValue != null) {
-                return this;
+            if (mState.hasValue()) {
+                return;
             }
 
-            mValue = item;
+            mState = mState.withValue(item);
+            lock.notifyAll();
         }
-        return this;
     }
 
     /**
      * データ同期を切断する
      */
     public void disconnect() {
-        mReference.removeEventListener(mValueListener);
+        // 送信待ちのコミットは破棄しない
+        flushCommit();
+
+        if (mSharedConnected) {
+            mSharedConnected = false;
+            FirebaseConnectionRegistry.getInstance().detach(this);
+            return;
+        }
+        // mock()のみ、あるいは未接続の場合は参照が無い
+        if (mReference != null) {
+            mReference.removeEventListener(mValueListener);
+        }
     }
 
     /**
      * ダミーデータを与える
      */
     public FirebaseData<T> mock(T value) {
-        mLastError = null;
-        mValue = value;
+        synchronized (lock) {
+            State<T> state = mState;
+            mState = new State<>(this, value, null, state.mSyncCount, null, System.currentTimeMillis());
+            lock.notifyAll();
+        }
         return this;
     }
 
@@ -524,4 +1583,108 @@ public class FirebaseData<T> {
     public static void globalMock(FirebaseMockDataProvider mockDataProvider) {
         sMockDataProvider = mockDataProvider;
     }
+
+    /**
+     * ある時点の値・更新カウンタ・エラーの組み合わせ
+     *
+     * 値の有無・更新カウンタ・エラー・時刻は生成時に確定し、複数のスレッドからlock無しで参照できる。
+     * 遅延デコード中の場合、値は最初にgetValue()が呼び出された時点でデコードしてキャッシュする。
+     */
+    public static class State<T> {
+        /**
+         * デコードを行うインスタンス
+         */
+        @NonNull
+        final FirebaseData<T> mOwner;
+
+        @Nullable
+        volatile T mValue;
+
+        /**
+         * 遅延デコード待ちのSnapshot
+         *
+         * nullでない場合、mValueよりも新しい値を保持している。
+         */
+        @Nullable
+        volatile DataSnapshot mPendingSnapshot;
+
+        final int mSyncCount;
+
+        @Nullable
+        final DatabaseError mLastError;
+
+        final long mTimestamp;
+
+        /**
+         * 値か、値を持つSnapshotを保持している
+         *
+         * 遅延デコードの結果によって変化しないよう、生成時に確定する。
+         */
+        final boolean mHasValue;
+
+        State(@NonNull FirebaseData<T> owner, @Nullable T value, @Nullable DataSnapshot pendingSnapshot, int syncCount, @Nullable DatabaseError lastError, long timestamp) {
+            mOwner = owner;
+            mValue = value;
+            mPendingSnapshot = pendingSnapshot;
+            mHasValue = pendingSnapshot != null ? pendingSnapshot.exists() : (value != null);
+            mSyncCount = syncCount;
+            mLastError = lastError;
+            mTimestamp = timestamp;
+        }
+
+        /**
+         * 値のみを差し替えた状態を生成する
+         */
+        @NonNull
+        State<T> withValue(@Nullable T value) {
+            return new State<>(mOwner, value, null, mSyncCount, mLastError, System.currentTimeMillis());
+        }
+
+        /**
+         * 値か、値を持つSnapshotを保持している場合はtrue
+         */
+        boolean hasValue() {
+            return mHasValue;
+        }
+
+        /**
+         * 値を取得する
+         */
+        @Nullable
+        public T getValue() {
+            DataSnapshot snapshot = mPendingSnapshot;
+            if (snapshot == null) {
+                return mValue;
+            }
+
+            // 遅延デコードを行う。複数スレッドで同時にデコードされても結果は等価である
+            T value = mOwner.decodeSnapshot(snapshot);
+            mValue = value;
+            mPendingSnapshot = null;
+            return value;
+        }
+
+        /**
+         * 値の更新回数を取得する
+         */
+        @IntRange(from = 0)
+        public int getSyncCount() {
+            return mSyncCount;
+        }
+
+        /**
+         * 最後のエラーを取得する
+         */
+        @Nullable
+        public DatabaseError getLastError() {
+            return mLastError;
+        }
+
+        /**
+         * この状態が生成された時刻(System.currentTimeMillis)を取得する
+         */
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+    }
 }
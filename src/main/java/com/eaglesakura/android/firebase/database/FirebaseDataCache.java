@@ -0,0 +1,365 @@
+package com.eaglesakura.android.firebase.database;
+
+import com.google.firebase.database.DataSnapshot;
+
+import com.eaglesakura.android.firebase.FbLog;
+import com.eaglesakura.android.firebase.database.metrics.FirebaseMetrics;
+import com.eaglesakura.json.JSON;
+
+import android.support.annotation.IntRange;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 接続済みのFirebaseDataを(パス, クラス)毎に保持する
+ *
+ * 件数もしくは推定サイズの上限を超えた場合、最も長く参照されていないインスタンスをdisconnect()して破棄する。
+ * {@link #dumpOnEvict(boolean)} が有効な場合、破棄時に最新の値をDumpし、再度取得された時点でバックグラウンドでrestore()する。
+ * 推定サイズは値の更新後にバックグラウンドで計算するため、上限の判定は直前に計算したサイズで行う。
+ *
+ * 破棄されたインスタンスは同期されなくなるため、呼び出し側はインスタンスを長期間保持せず、必要な時点で {@link #get(Class, String)} を呼び出す。
+ */
+public class FirebaseDataCache {
+
+    /**
+     * 保持する件数のデフォルト値
+     */
+    public static final int DEFAULT_MAX_COUNT = 64;
+
+    /**
+     * 保持しているインスタンス
+     */
+    static class Entry {
+        @NonNull
+        final FirebaseData<?> mData;
+
+        /**
+         * サイズを推定した、もしくは推定を予約した時点の状態
+         */
+        @Nullable
+        volatile FirebaseData.State<?> mMeasuredState;
+
+        /**
+         * 推定サイズ(UTF-8)
+         */
+        volatile long mEstimatedBytes;
+
+        Entry(@NonNull FirebaseData<?> data) {
+            mData = data;
+        }
+    }
+
+    /**
+     * 参照順のインスタンス一覧
+     */
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private int mMaxCount = DEFAULT_MAX_COUNT;
+
+    /**
+     * 推定サイズの上限, 0以下の場合は制限しない
+     */
+    private long mMaxBytes;
+
+    private boolean mDumpOnEvict;
+
+    private long mEvictionCount;
+
+    private final Object lock = new Object();
+
+    FirebaseDataCache() {
+    }
+
+    private static String toKey(String path, Class<?> valueClass) {
+        return path + "@" + valueClass.getName();
+    }
+
+    /**
+     * 保持する件数の上限を指定する
+     */
+    public FirebaseDataCache maxCount(@IntRange(from = 1) int maxCount) {
+        synchronized (lock) {
+            mMaxCount = Math.max(1, maxCount);
+        }
+        trim();
+        return this;
+    }
+
+    /**
+     * 保持する値の推定サイズの上限を指定する
+     *
+     * サイズはJSONでエンコードした場合のUTF-8のバイト数で推定する。
+     *
+     * @param maxBytes 上限, 0以下の場合は制限しない
+     */
+    public FirebaseDataCache maxBytes(long maxBytes) {
+        synchronized (lock) {
+            mMaxBytes = maxBytes;
+        }
+        trim();
+        return this;
+    }
+
+    /**
+     * 破棄時に値をDumpし、再取得時に復旧する場合はtrue
+     */
+    public FirebaseDataCache dumpOnEvict(boolean dumpOnEvict) {
+        synchronized (lock) {
+            mDumpOnEvict = dumpOnEvict;
+        }
+        return this;
+    }
+
+    /**
+     * 接続済みのインスタンスを取得する
+     *
+     * 保持していない場合は新たに接続し、上限を超えたインスタンスを破棄する。
+     *
+     * @param clazz 変換対象クラス
+     * @param path  接続対象のパス
+     */
+    @SuppressWarnings("unchecked")
+    @NonNull
+    public <T> FirebaseData<T> get(@NonNull Class<T> clazz, @NonNull String path) {
+        final String key = toKey(path, clazz);
+        boolean restore;
+        FirebaseData<T> data;
+        synchronized (lock) {
+            Entry entry = mEntries.get(key);
+            if (entry != null) {
+                return (FirebaseData<T>) entry.mData;
+            }
+
+            data = newData(clazz, path);
+            mEntries.put(key, new Entry(data));
+            restore = mDumpOnEvict;
+        }
+
+        if (restore) {
+            // 同期済みの場合は何もしない
+            sWorkExecutor.execute(data::restore);
+        }
+        trim();
+        return data;
+    }
+
+    /**
+     * インスタンスを生成し、接続する
+     */
+    @NonNull
+    protected <T> FirebaseData<T> newData(@NonNull Class<T> clazz, @NonNull String path) {
+        return FirebaseData.newInstance(clazz, path);
+    }
+
+    /**
+     * 指定したインスタンスを破棄する
+     */
+    public void remove(@NonNull Class<?> clazz, @NonNull String path) {
+        Entry entry;
+        boolean dump;
+        synchronized (lock) {
+            entry = mEntries.remove(toKey(path, clazz));
+            dump = mDumpOnEvict;
+        }
+        if (entry != null) {
+            evict(entry, dump);
+        }
+    }
+
+    /**
+     * 全てのインスタンスを破棄する
+     */
+    public void clear() {
+        List<Entry> evicted;
+        boolean dump;
+        synchronized (lock) {
+            evicted = new ArrayList<>(mEntries.values());
+            mEntries.clear();
+            dump = mDumpOnEvict;
+        }
+        for (Entry entry : evicted) {
+            evict(entry, dump);
+        }
+    }
+
+    /**
+     * 上限を超えたインスタンスを破棄する
+     */
+    public void trim() {
+        List<Entry> evicted = new ArrayList<>();
+        List<Entry> stale = new ArrayList<>();
+        boolean dump;
+        synchronized (lock) {
+            dump = mDumpOnEvict;
+
+            long totalBytes = 0;
+            if (mMaxBytes > 0) {
+                for (Entry entry : mEntries.values()) {
+                    totalBytes += entry.mEstimatedBytes;
+                }
+                collectStaleLocked(stale);
+            }
+
+            // 最後に取得したインスタンスは破棄しない
+            Iterator<Entry> iterator = mEntries.values().iterator();
+            while (mEntries.size() > 1
+                    && (mEntries.size() > mMaxCount || (mMaxBytes > 0 && totalBytes > mMaxBytes))) {
+                Entry entry = iterator.next();
+                iterator.remove();
+                totalBytes -= entry.mEstimatedBytes;
+                evicted.add(entry);
+            }
+            mEvictionCount += evicted.size();
+        }
+
+        for (Entry entry : evicted) {
+            evict(entry, dump);
+        }
+        scheduleEstimate(stale);
+    }
+
+    /**
+     * 値が更新されたインスタンスを列挙し、推定中として記録する
+     *
+     * lockを保持した状態で呼び出す。
+     */
+    private void collectStaleLocked(@NonNull List<Entry> result) {
+        for (Entry entry : mEntries.values()) {
+            FirebaseData.State<?> state = entry.mData.getState();
+            if (state != entry.mMeasuredState) {
+                entry.mMeasuredState = state;
+                result.add(entry);
+            }
+        }
+    }
+
+    /**
+     * 推定サイズをバックグラウンドで計算し、計算後に上限を確認する
+     */
+    private void scheduleEstimate(@NonNull List<Entry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        sWorkExecutor.execute(() -> {
+            for (Entry entry : entries) {
+                FirebaseData.State<?> state = entry.mMeasuredState;
+                if (state != null) {
+                    entry.mEstimatedBytes = estimateBytes(state);
+                }
+            }
+            trim();
+        });
+    }
+
+    /**
+     * 値をJSONへ変換した場合のサイズを推定する
+     *
+     * 遅延デコード待ちの場合、モデルへのデコードを行わずにSnapshotの値から推定する。
+     */
+    static long estimateBytes(@NonNull FirebaseData.State<?> state) {
+        DataSnapshot snapshot = state.mPendingSnapshot;
+        if (snapshot != null) {
+            return estimateValueBytes(snapshot.getValue());
+        }
+        Object value = state.mValue;
+        return value != null ? FirebaseMetrics.sizeOf(JSON.encodeOrNull(value)) : 0;
+    }
+
+    /**
+     * Snapshotの値(Map/List/String/Number/Boolean)をJSONへ変換した場合のサイズを推定する
+     */
+    static long estimateValueBytes(@Nullable Object value) {
+        if (value == null) {
+            return 4;
+        } else if (value instanceof String) {
+            return FirebaseMetrics.sizeOf((String) value) + 2;
+        } else if (value instanceof Map) {
+            long result = 2;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                result += FirebaseMetrics.sizeOf(String.valueOf(entry.getKey())) + 4 + estimateValueBytes(entry.getValue());
+            }
+            return result;
+        } else if (value instanceof List) {
+            long result = 2;
+            for (Object child : (List<?>) value) {
+                result += estimateValueBytes(child) + 1;
+            }
+            return result;
+        } else {
+            return String.valueOf(value).length();
+        }
+    }
+
+    private void evict(@NonNull Entry entry, boolean dump) {
+        FirebaseData<?> data = entry.mData;
+        if (dump && data.getState().hasValue()) {
+            data.dump();
+        }
+        data.disconnect();
+        FbLog.debug("FirebaseDataCache evict path[%s] dump[%s]", data.getPath(), String.valueOf(dump));
+    }
+
+    /**
+     * 保持しているインスタンス数を取得する
+     */
+    @IntRange(from = 0)
+    public int size() {
+        synchronized (lock) {
+            return mEntries.size();
+        }
+    }
+
+    /**
+     * 保持している値の推定サイズを取得する
+     *
+     * 直前に計算したサイズを返却し、値が更新されたインスタンスはバックグラウンドで計算し直す。
+     */
+    public long getEstimatedBytes() {
+        List<Entry> stale = new ArrayList<>();
+        long result = 0;
+        synchronized (lock) {
+            for (Entry entry : mEntries.values()) {
+                result += entry.mEstimatedBytes;
+            }
+            collectStaleLocked(stale);
+        }
+        scheduleEstimate(stale);
+        return result;
+    }
+
+    /**
+     * 上限を超えて破棄したインスタンス数を取得する
+     */
+    public long getEvictionCount() {
+        synchronized (lock) {
+            return mEvictionCount;
+        }
+    }
+
+    /**
+     * サイズの推定とrestore()を行うスレッド
+     */
+    private static final ExecutorService sWorkExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "FirebaseDataCache");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    private static FirebaseDataCache sInstance;
+
+    public synchronized static FirebaseDataCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new FirebaseDataCache();
+        }
+        return sInstance;
+    }
+}
@@ -0,0 +1,619 @@
+package com.eaglesakura.android.firebase.database;
+
+import com.google.firebase.database.DatabaseError;
+
+import com.eaglesakura.android.firebase.FbLog;
+import com.eaglesakura.android.firebase.error.FirebaseDatabaseException;
+import com.eaglesakura.lambda.ResultAction1;
+
+import android.support.annotation.IntRange;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FirebaseDataの更新を、購読者が要求した数だけ配信する
+ *
+ * Reactive StreamsのPublisherと同じ手順で購読する。購読者は {@link Subscription#request(long)} で受け取る数を要求し、
+ * 要求を超えて届いた更新は {@link Overflow} に従って保持または破棄する。
+ * 配信は購読毎に直列化してExecutor上で行うため、購読者の処理が重い場合もFirebaseのコールバックスレッドは待たされない。
+ *
+ * 更新は sample → distinctUntilChanged → Overflow の順に処理される。
+ * 設定はsubscribe()の時点で購読毎にコピーされ、以降の変更は既存の購読に影響しない。
+ * Firebaseの値は削除時にnullとなるため、onNext()にはnullが渡される場合がある。
+ *
+ * <pre>
+ * data.stream()
+ *      .sample(500)
+ *      .distinctUntilChanged()
+ *      .onOverflow(FirebaseDataStream.Overflow.Latest)
+ *      .subscribe(subscriber);
+ * </pre>
+ */
+public class FirebaseDataStream<T> {
+
+    /**
+     * Overflow.Bufferで保持する件数のデフォルト値
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 16;
+
+    /**
+     * 要求を超えて届いた更新の扱い
+     */
+    public enum Overflow {
+        /**
+         * 最新の値のみを保持する
+         */
+        Latest,
+
+        /**
+         * 指定件数まで保持し、超えた場合は古い値から破棄する
+         */
+        Buffer,
+
+        /**
+         * 要求が無い間に届いた値は破棄する
+         */
+        Drop,
+    }
+
+    /**
+     * 更新を受け取る
+     *
+     * 1つの購読に対する呼び出しは常に直列化される。
+     */
+    public interface Subscriber<T> {
+        /**
+         * 購読を開始した
+         *
+         * 値を受け取るには、subscription.request()を呼び出す。
+         */
+        void onSubscribe(@NonNull Subscription subscription);
+
+        /**
+         * 値を受け取った
+         *
+         * 例外を投げた場合、購読はキャンセルされる。
+         */
+        void onNext(@Nullable T value);
+
+        /**
+         * 受信に失敗した
+         *
+         * 以降の値は配信されない。
+         */
+        void onError(@NonNull Throwable error);
+    }
+
+    /**
+     * 購読の状態を操作する
+     */
+    public interface Subscription {
+        /**
+         * 受け取る値の数を追加する
+         *
+         * Long.MAX_VALUEを指定した場合、要求数を制限しない。
+         */
+        void request(@IntRange(from = 1) long n);
+
+        /**
+         * 購読を終了する
+         *
+         * 配信待ちの値は破棄される。
+         */
+        void cancel();
+    }
+
+    @NonNull
+    final FirebaseData<T> mData;
+
+    @NonNull
+    private Overflow mOverflow = Overflow.Latest;
+
+    private int mBufferSize = DEFAULT_BUFFER_SIZE;
+
+    private boolean mDistinct;
+
+    /**
+     * 比較に利用する値の取得処理, nullの場合は値そのものを比較する
+     */
+    @Nullable
+    private ResultAction1<T, Object> mDistinctKeySelector;
+
+    private long mSamplePeriodMs;
+
+    /**
+     * 配信を行うExecutor, nullの場合は共有のスレッドプールを利用する
+     */
+    @Nullable
+    private Executor mExecutor;
+
+    /**
+     * 全ての購読で破棄された値の数
+     */
+    private long mDroppedCount;
+
+    private final Object lock = new Object();
+
+    FirebaseDataStream(@NonNull FirebaseData<T> data) {
+        mData = data;
+    }
+
+    /**
+     * 要求を超えて届いた更新の扱いを指定する
+     */
+    public FirebaseDataStream<T> onOverflow(@NonNull Overflow overflow) {
+        synchronized (lock) {
+            mOverflow = overflow;
+        }
+        return this;
+    }
+
+    /**
+     * 要求を超えて届いた更新を、指定件数まで保持する
+     *
+     * 超えた場合は古い値から破棄する。
+     */
+    public FirebaseDataStream<T> buffer(@IntRange(from = 1) int bufferSize) {
+        synchronized (lock) {
+            mOverflow = Overflow.Buffer;
+            mBufferSize = bufferSize;
+        }
+        return this;
+    }
+
+    /**
+     * 直前に配信待ちとした値とequals()で等しい値を除外する
+     */
+    public FirebaseDataStream<T> distinctUntilChanged() {
+        synchronized (lock) {
+            mDistinct = true;
+            mDistinctKeySelector = null;
+        }
+        return this;
+    }
+
+    /**
+     * 直前に配信待ちとした値と、keySelectorの結果が等しい値を除外する
+     *
+     * equals()を実装していないモデルクラスは、比較対象のフィールドを返却する。
+     * keySelectorはFirebaseのコールバックスレッドで呼び出されるため、軽量な処理とする。
+     */
+    public FirebaseDataStream<T> distinctUntilChanged(@NonNull ResultAction1<T, Object> keySelector) {
+        synchronized (lock) {
+            mDistinct = true;
+            mDistinctKeySelector = keySelector;
+        }
+        return this;
+    }
+
+    /**
+     * 指定間隔(ms)毎に、その間に届いた最新の値のみを配信待ちとする
+     *
+     * 前回から間隔が空いている場合は即座に配信待ちとする。
+     *
+     * @param periodMs 間隔(ms), 0以下の場合は全ての値を配信待ちとする
+     */
+    public FirebaseDataStream<T> sample(long periodMs) {
+        synchronized (lock) {
+            mSamplePeriodMs = periodMs;
+        }
+        return this;
+    }
+
+    /**
+     * 配信を行うExecutorを指定する
+     *
+     * UIスレッドで受け取る場合等に指定する。購読毎に直列化されるため、複数スレッドのExecutorでも順序は保たれる。
+     *
+     * @param executor 配信を行うExecutor, nullの場合は共有のスレッドプールを利用する
+     */
+    public FirebaseDataStream<T> observeOn(@Nullable Executor executor) {
+        synchronized (lock) {
+            mExecutor = executor;
+        }
+        return this;
+    }
+
+    /**
+     * 全ての購読で、要求を超えたために破棄された値の数を取得する
+     */
+    public long getDroppedCount() {
+        synchronized (lock) {
+            return mDroppedCount;
+        }
+    }
+
+    /**
+     * 購読を開始する
+     *
+     * 既に値を受信済みの場合、その値を最初に配信待ちとする。
+     */
+    @NonNull
+    public Subscription subscribe(@NonNull Subscriber<T> subscriber) {
+        StreamSubscription subscription;
+        synchronized (lock) {
+            subscription = new StreamSubscription(subscriber, mOverflow, mBufferSize, mDistinct, mDistinctKeySelector, mSamplePeriodMs,
+                    mExecutor != null ? mExecutor : sDeliverExecutor);
+        }
+
+        subscriber.onSubscribe(subscription);
+        subscription.connect();
+        return subscription;
+    }
+
+    /**
+     * 1つの購読
+     */
+    class StreamSubscription implements Subscription, FirebaseData.OnUpdateListener<T>, FirebaseData.OnErrorListener {
+        @NonNull
+        final Subscriber<T> mSubscriber;
+
+        @NonNull
+        final Overflow mOverflow;
+
+        final int mBufferSize;
+
+        final boolean mDistinct;
+
+        @Nullable
+        final ResultAction1<T, Object> mKeySelector;
+
+        final long mSamplePeriodMs;
+
+        @NonNull
+        final Executor mExecutor;
+
+        /**
+         * 配信待ちの値
+         */
+        final LinkedList<T> mQueue = new LinkedList<>();
+
+        /**
+         * 未充足の要求数, Long.MAX_VALUEの場合は無制限
+         */
+        long mRequested;
+
+        /**
+         * 配信処理を実行中の場合はtrue
+         */
+        boolean mDraining;
+
+        boolean mCancelled;
+
+        /**
+         * 配信待ちのエラー
+         */
+        @Nullable
+        Throwable mError;
+
+        /**
+         * 上流から値を受け取った場合はtrue
+         */
+        boolean mReceived;
+
+        boolean mHasLastKey;
+
+        @Nullable
+        Object mLastKey;
+
+        /**
+         * 間隔内に届いた最新の値
+         */
+        @Nullable
+        T mSampleValue;
+
+        boolean mHasSampleValue;
+
+        /**
+         * 最後に配信待ちとした時刻(ms)
+         */
+        long mLastSampleTime = Long.MIN_VALUE / 2;
+
+        @Nullable
+        ScheduledFuture<?> mSampleTask;
+
+        private final Object stateLock = new Object();
+
+        StreamSubscription(@NonNull Subscriber<T> subscriber, @NonNull Overflow overflow, int bufferSize, boolean distinct,
+                           @Nullable ResultAction1<T, Object> keySelector, long samplePeriodMs, @NonNull Executor executor) {
+            mSubscriber = subscriber;
+            mOverflow = overflow;
+            mBufferSize = bufferSize;
+            mDistinct = distinct;
+            mKeySelector = keySelector;
+            mSamplePeriodMs = samplePeriodMs;
+            mExecutor = executor;
+        }
+
+        void connect() {
+            synchronized (stateLock) {
+                if (mCancelled) {
+                    return;
+                }
+            }
+            mData.registerOnUpdateListener(this);
+
+            // 登録前に受信済みの値を配信する
+            if (mData.getSyncCount() > 0) {
+                T value = mData.getValue();
+                synchronized (stateLock) {
+                    if (mReceived) {
+                        return;
+                    }
+                }
+                offer(value);
+            }
+        }
+
+        @Override
+        public void onDataUpdated(FirebaseData<T> self, T value) {
+            synchronized (stateLock) {
+                mReceived = true;
+            }
+            offer(value);
+        }
+
+        @Override
+        public void onDataError(@NonNull DatabaseError error) {
+            fail(new FirebaseDatabaseException(error.getMessage(), error.toException()));
+        }
+
+        /**
+         * 上流から値を受け取る
+         */
+        void offer(@Nullable T value) {
+            boolean drain;
+            synchronized (stateLock) {
+                if (mCancelled || mError != null) {
+                    return;
+                }
+
+                if (mSamplePeriodMs > 0) {
+                    final long now = System.nanoTime() / 1000000;
+                    if (mSampleTask != null || (now - mLastSampleTime) < mSamplePeriodMs) {
+                        // 間隔の終わりに最新の値のみを配信待ちとする
+                        mSampleValue = value;
+                        mHasSampleValue = true;
+                        if (mSampleTask == null) {
+                            mSampleTask = sSampleScheduler.schedule(this::onSample, mLastSampleTime + mSamplePeriodMs - now, TimeUnit.MILLISECONDS);
+                        }
+                        return;
+                    }
+                    mLastSampleTime = now;
+                }
+                drain = enqueueLocked(value);
+            }
+
+            if (drain) {
+                mExecutor.execute(this::drain);
+            }
+        }
+
+        void onSample() {
+            boolean drain = false;
+            synchronized (stateLock) {
+                mSampleTask = null;
+                if (mCancelled || !mHasSampleValue) {
+                    return;
+                }
+                T value = mSampleValue;
+                mSampleValue = null;
+                mHasSampleValue = false;
+                mLastSampleTime = System.nanoTime() / 1000000;
+                drain = enqueueLocked(value);
+            }
+
+            if (drain) {
+                mExecutor.execute(this::drain);
+            }
+        }
+
+        /**
+         * 値を配信待ちとする
+         *
+         * stateLockを保持した状態で呼び出す。
+         *
+         * @return 配信処理を開始する必要がある場合はtrue
+         */
+        boolean enqueueLocked(@Nullable T value) {
+            if (mDistinct) {
+                Object key;
+                try {
+                    key = mKeySelector != null ? mKeySelector.action(value) : value;
+                } catch (Throwable e) {
+                    mError = e;
+                    return startDrainLocked();
+                }
+
+                if (mHasLastKey && (mLastKey == null ? key == null : mLastKey.equals(key))) {
+                    return false;
+                }
+                mHasLastKey = true;
+                mLastKey = key;
+            }
+
+            int dropped = 0;
+            switch (mOverflow) {
+                case Latest:
+                    // 要求数を超えた分は新しい値で置き換える
+                    mQueue.addLast(value);
+                    while (mQueue.size() > Math.max(mRequested, 1)) {
+                        mQueue.removeFirst();
+                        ++dropped;
+                    }
+                    break;
+                case Buffer:
+                    mQueue.addLast(value);
+                    while (mQueue.size() > mBufferSize) {
+                        mQueue.removeFirst();
+                        ++dropped;
+                    }
+                    break;
+                case Drop:
+                    if (mRequested != Long.MAX_VALUE && mQueue.size() >= mRequested) {
+                        dropped = 1;
+                    } else {
+                        mQueue.addLast(value);
+                    }
+                    break;
+            }
+
+            if (dropped > 0) {
+                onDropped(dropped);
+            }
+            return startDrainLocked();
+        }
+
+        /**
+         * @return 配信処理を開始する必要がある場合はtrue
+         */
+        boolean startDrainLocked() {
+            if (mDraining) {
+                return false;
+            }
+            if (mError == null && (mQueue.isEmpty() || mRequested == 0)) {
+                return false;
+            }
+            mDraining = true;
+            return true;
+        }
+
+        /**
+         * 要求数の範囲で配信する
+         *
+         * 配信中に追加された要求と値は、同じループで処理する。
+         */
+        void drain() {
+            while (true) {
+                T value;
+                Throwable error = null;
+                synchronized (stateLock) {
+                    if (mCancelled) {
+                        mDraining = false;
+                        return;
+                    }
+
+                    if (!mQueue.isEmpty() && mRequested > 0) {
+                        value = mQueue.removeFirst();
+                        if (mRequested != Long.MAX_VALUE) {
+                            --mRequested;
+                        }
+                    } else if (mError != null) {
+                        // 要求数に関わらず、配信できる値を配信した後に通知する
+                        error = mError;
+                        value = null;
+                        mDraining = false;
+                    } else {
+                        mDraining = false;
+                        return;
+                    }
+                }
+
+                if (error != null) {
+                    cancel();
+                    mSubscriber.onError(error);
+                    return;
+                }
+
+                try {
+                    mSubscriber.onNext(value);
+                } catch (Throwable e) {
+                    FbLog.debug("FirebaseDataStream onNext failed[%s] %s", String.valueOf(mData.getPath()), e.toString());
+                    cancel();
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void request(long n) {
+            boolean drain;
+            synchronized (stateLock) {
+                if (mCancelled) {
+                    return;
+                }
+                if (n <= 0) {
+                    mError = new IllegalArgumentException("request n <= 0 :: " + n);
+                } else {
+                    mRequested += n;
+                    if (mRequested < 0) {
+                        // オーバーフローした場合は無制限とする
+                        mRequested = Long.MAX_VALUE;
+                    }
+                }
+                drain = startDrainLocked();
+            }
+
+            if (drain) {
+                mExecutor.execute(this::drain);
+            }
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (stateLock) {
+                if (mCancelled) {
+                    return;
+                }
+                mCancelled = true;
+                mQueue.clear();
+                mSampleValue = null;
+                mHasSampleValue = false;
+                if (mSampleTask != null) {
+                    mSampleTask.cancel(false);
+                    mSampleTask = null;
+                }
+            }
+            mData.unregister(this);
+        }
+
+        void fail(@NonNull Throwable error) {
+            boolean drain;
+            synchronized (stateLock) {
+                if (mCancelled || mError != null) {
+                    return;
+                }
+                mError = error;
+                drain = startDrainLocked();
+            }
+
+            if (drain) {
+                mExecutor.execute(this::drain);
+            }
+        }
+    }
+
+    void onDropped(int count) {
+        synchronized (lock) {
+            mDroppedCount += count;
+        }
+    }
+
+    /**
+     * 標準の配信を行うスレッド
+     *
+     * 購読毎に直列化されるため、複数の購読を並行して配信する。
+     */
+    private static final ExecutorService sDeliverExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "FirebaseDataStream");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * sample()の間隔を計測するスレッド
+     */
+    private static final ScheduledExecutorService sSampleScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "FirebaseDataStream-Sample");
+        thread.setDaemon(true);
+        return thread;
+    });
+}
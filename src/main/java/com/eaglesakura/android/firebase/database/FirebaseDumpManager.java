@@ -0,0 +1,218 @@
+package com.eaglesakura.android.firebase.database;
+
+import com.eaglesakura.android.firebase.FbLog;
+import com.eaglesakura.android.firebase.database.dump.FirebaseDeltaDump;
+import com.eaglesakura.android.firebase.database.dump.FirebaseDumpStore;
+import com.eaglesakura.util.Timer;
+
+import android.support.annotation.IntRange;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * 生存中のFirebaseDataをまとめてDump/Restoreする
+ *
+ * 登録されたインスタンスは弱参照で保持され、GCされた時点で自動的に対象外となる。
+ * タグを指定することで、画面単位等のグループ毎にDump/Restoreを行える。
+ */
+public class FirebaseDumpManager {
+
+    /**
+     * 登録済みのインスタンスとタグ
+     */
+    private final Map<FirebaseData<?>, String> mInstances = new WeakHashMap<>();
+
+    private final Object lock = new Object();
+
+    FirebaseDumpManager() {
+    }
+
+    /**
+     * タグ無しでインスタンスを登録する
+     */
+    public FirebaseDumpManager register(@NonNull FirebaseData<?> data) {
+        return register(null, data);
+    }
+
+    /**
+     * インスタンスを登録する
+     *
+     * 既に登録されている場合はタグを上書きする。
+     *
+     * @param tag  グループのタグ, nullの場合はタグ無しとして扱う
+     * @param data 対象のインスタンス
+     */
+    public FirebaseDumpManager register(@Nullable String tag, @NonNull FirebaseData<?> data) {
+        synchronized (lock) {
+            mInstances.put(data, tag);
+        }
+        return this;
+    }
+
+    /**
+     * インスタンスの登録を解除する
+     */
+    public FirebaseDumpManager unregister(@NonNull FirebaseData<?> data) {
+        synchronized (lock) {
+            mInstances.remove(data);
+        }
+        return this;
+    }
+
+    /**
+     * 登録済みのインスタンス数を取得する
+     */
+    @IntRange(from = 0)
+    public int size() {
+        synchronized (lock) {
+            return mInstances.size();
+        }
+    }
+
+    /**
+     * 指定したグループのインスタンスを列挙する
+     *
+     * @param tag グループのタグ, nullの場合は全インスタンスを対象とする
+     */
+    @NonNull
+    private List<FirebaseData<?>> list(@Nullable String tag) {
+        List<FirebaseData<?>> result = new ArrayList<>();
+        synchronized (lock) {
+            for (Map.Entry<FirebaseData<?>, String> entry : mInstances.entrySet()) {
+                if (tag == null || tag.equals(entry.getValue())) {
+                    result.add(entry.getKey());
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 全インスタンスをDumpする
+     */
+    public FirebaseDumpManager dumpAll() {
+        return dumpAll(null, null);
+    }
+
+    /**
+     * 指定したグループのインスタンスをDumpする
+     *
+     * 保存先毎に、全ての値を1回の書き込みで即座に反映する。
+     * 保存先がトランザクションに対応している場合(TextKeyValueDumpBackend)、保存先毎に全ての値が反映されるか、いずれも反映されない。
+     * 異なる保存先の間では不可分ではない。
+     *
+     * @param tag         グループのタグ, nullの場合は全インスタンスを対象とする
+     * @param optionalKey Keyに付与される文字。指定されない場合はデフォルトのKeyで保持する。
+     */
+    public FirebaseDumpManager dumpAll(@Nullable String tag, @Nullable String optionalKey) {
+        Timer timer = new Timer();
+        final long now = System.currentTimeMillis();
+        // 保存先毎にまとめる
+        Map<FirebaseDumpStore, List<FirebaseDumpStore.Entry>> values = new HashMap<>();
+        for (FirebaseData<?> data : list(tag)) {
+            FirebaseDumpStore store = data.getDumpStore();
+            List<FirebaseDumpStore.Entry> storeValues = values.get(store);
+            if (storeValues == null) {
+                storeValues = new ArrayList<>();
+                values.put(store, storeValues);
+            }
+            String key = data.getDumpKey(optionalKey);
+            FirebaseDumpPreloader.getInstance().invalidate(store, key);
+            final long expireAt = FirebaseDumpStore.toExpireAt(now, data.getDumpTtlMs());
+            for (Map.Entry<String, String> value : data.encodeDumpValues(key).entrySet()) {
+                storeValues.add(new FirebaseDumpStore.Entry(value.getKey(), value.getValue(), now, expireAt));
+            }
+        }
+
+        int rows = 0;
+        for (Map.Entry<FirebaseDumpStore, List<FirebaseDumpStore.Entry>> entry : values.entrySet()) {
+            entry.getKey().writeAll(entry.getValue());
+            rows += entry.getValue().size();
+        }
+        FbLog.debug("Dump group[%s] rows[%d] time[%d ms]", String.valueOf(tag), rows, timer.end());
+        return this;
+    }
+
+    /**
+     * 全インスタンスを復旧する
+     */
+    public FirebaseDumpManager restoreAll() {
+        return restoreAll(null, null, 0);
+    }
+
+    /**
+     * 指定したグループのインスタンスを復旧する
+     *
+     * 保存先毎に全てのKeyをまとめて読み込む。
+     * 既に同期が完了しているインスタンスの値は上書きしない。
+     *
+     * @param tag          グループのタグ, nullの場合は全インスタンスを対象とする
+     * @param optionalKey  Keyに付与される文字。指定されない場合はデフォルトのKeyで保持する。
+     * @param expireTimeMs Dumpしたデータが有効な時間（ミリ秒）, 期限切れの場合は削除する。0以下の場合は常に有効
+     */
+    public FirebaseDumpManager restoreAll(@Nullable String tag, @Nullable String optionalKey, long expireTimeMs) {
+        Timer timer = new Timer();
+        Map<FirebaseDumpStore, List<FirebaseData<?>>> instances = new HashMap<>();
+        for (FirebaseData<?> data : list(tag)) {
+            FirebaseDumpStore store = data.getDumpStore();
+            List<FirebaseData<?>> storeInstances = instances.get(store);
+            if (storeInstances == null) {
+                storeInstances = new ArrayList<>();
+                instances.put(store, storeInstances);
+            }
+            storeInstances.add(data);
+        }
+
+        int rows = 0;
+        for (Map.Entry<FirebaseDumpStore, List<FirebaseData<?>>> entry : instances.entrySet()) {
+            FirebaseDumpStore store = entry.getKey();
+            List<FirebaseData<?>> readInstances = new ArrayList<>();
+            List<String> keys = new ArrayList<>();
+            for (FirebaseData<?> data : entry.getValue()) {
+                // 事前読み込み済みの値はストレージから読み込まない
+                if (!restorePreloaded(store, data, data.getDumpKey(optionalKey), expireTimeMs)) {
+                    readInstances.add(data);
+                    keys.add(data.getDumpKey(optionalKey));
+                    keys.add(FirebaseDeltaDump.toChainKey(data.getDumpKey(optionalKey)));
+                }
+            }
+
+            Map<String, FirebaseDumpStore.Entry> dumpValues = keys.isEmpty() ? new HashMap<>() : store.getAll(keys);
+            for (FirebaseData<?> data : readInstances) {
+                restore(store, data, data.getDumpKey(optionalKey), dumpValues, expireTimeMs);
+            }
+            rows += dumpValues.size();
+        }
+        FbLog.debug("Restore group[%s] rows[%d] time[%d ms]", String.valueOf(tag), rows, timer.end());
+        return this;
+    }
+
+    private static <T> boolean restorePreloaded(FirebaseDumpStore store, FirebaseData<T> data, String key, long expireTimeMs) {
+        FirebaseDumpPreloader.Result<T> preloaded = FirebaseDumpPreloader.getInstance().take(store, key, data.getValueClass(), expireTimeMs);
+        if (preloaded == null) {
+            return false;
+        }
+        data.applyRestoredValue(preloaded.getValue());
+        return true;
+    }
+
+    private static <T> void restore(FirebaseDumpStore store, FirebaseData<T> data, String key, Map<String, FirebaseDumpStore.Entry> dumpValues, long expireTimeMs) {
+        T item = data.decodeDumpEntry(store, key, dumpValues.get(key), dumpValues.get(FirebaseDeltaDump.toChainKey(key)), expireTimeMs);
+        data.applyRestoredValue(item);
+    }
+
+    private static FirebaseDumpManager sInstance;
+
+    public synchronized static FirebaseDumpManager getInstance() {
+        if (sInstance == null) {
+            sInstance = new FirebaseDumpManager();
+        }
+        return sInstance;
+    }
+}
@@ -0,0 +1,372 @@
+package com.eaglesakura.android.firebase.database;
+
+import com.eaglesakura.android.firebase.FbLog;
+import com.eaglesakura.android.firebase.database.dump.FirebaseDeltaDump;
+import com.eaglesakura.android.firebase.database.dump.FirebaseDumpStore;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+
+/**
+ * アプリ起動時にDumpデータを並列に読み込み、デコード済みの値として保持する
+ *
+ * 読み込み済みの値は {@link FirebaseData#restore(String, long)} から1度だけ利用され、ストレージへアクセスせずに反映される。
+ * 読み込みが完了していない場合、restore()は該当Keyの読み込み完了を待つ。
+ * 読み込み後にdump()/removeDumpValue()された場合、保持していた値は破棄される。
+ *
+ * <pre>
+ * FirebaseDumpPreloader.getInstance().preload(context, Arrays.asList(
+ *      new FirebaseDumpPreloader.Request&lt;&gt;(User.class, "users/" + uid),
+ *      new FirebaseDumpPreloader.Request&lt;&gt;(Config.class, "config").expireTimeMs(1000 * 3600)
+ * ));
+ * </pre>
+ */
+public class FirebaseDumpPreloader {
+
+    /**
+     * 保持する読み込み時間の記録数
+     */
+    public static final int MAX_TIMINGS = 256;
+
+    /**
+     * 読み込み対象の宣言
+     */
+    public static class Request<T> {
+        @NonNull
+        final Class<T> mValueClass;
+
+        @NonNull
+        final String mPath;
+
+        @Nullable
+        String mOptionalKey;
+
+        long mExpireTimeMs;
+
+        /**
+         * @param valueClass 変換対象クラス
+         * @param path       接続対象のパス
+         */
+        public Request(@NonNull Class<T> valueClass, @NonNull String path) {
+            mValueClass = valueClass;
+            mPath = path;
+        }
+
+        /**
+         * Keyに付与される文字を指定する
+         */
+        public Request<T> optionalKey(@Nullable String optionalKey) {
+            mOptionalKey = optionalKey;
+            return this;
+        }
+
+        /**
+         * Dumpしたデータが有効な時間(ms)を指定する
+         *
+         * 期限切れの場合は削除する。0以下の場合は常に有効
+         */
+        public Request<T> expireTimeMs(long expireTimeMs) {
+            mExpireTimeMs = expireTimeMs;
+            return this;
+        }
+
+        /**
+         * 接続済みのFirebaseDataと同じDumpKeyを生成する
+         */
+        @NonNull
+        String getDumpKey() {
+            String path = mPath;
+            while (path.endsWith("/")) {
+                path = path.substring(0, path.length() - 1);
+            }
+            // DatabaseReference#getKey()はパスの末尾を返却する
+            String referenceKey = path.substring(path.lastIndexOf('/') + 1);
+            return FirebaseData.toDumpKey(mPath, referenceKey.isEmpty() ? null : referenceKey, mOptionalKey);
+        }
+    }
+
+    /**
+     * 1Key毎の読み込み時間
+     */
+    public static class Timing {
+        @NonNull
+        final String mKey;
+
+        final boolean mFound;
+
+        final double mReadTimeMs;
+
+        final double mDecodeTimeMs;
+
+        Timing(@NonNull String key, boolean found, double readTimeMs, double decodeTimeMs) {
+            mKey = key;
+            mFound = found;
+            mReadTimeMs = readTimeMs;
+            mDecodeTimeMs = decodeTimeMs;
+        }
+
+        @NonNull
+        public String getKey() {
+            return mKey;
+        }
+
+        /**
+         * 有効なDumpデータが存在した場合はtrue
+         */
+        public boolean isFound() {
+            return mFound;
+        }
+
+        /**
+         * ストレージからの読み込み時間(ms)
+         */
+        public double getReadTimeMs() {
+            return mReadTimeMs;
+        }
+
+        /**
+         * デコード時間(ms)
+         */
+        public double getDecodeTimeMs() {
+            return mDecodeTimeMs;
+        }
+    }
+
+    /**
+     * 読み込み結果
+     */
+    static class Result<T> {
+        @NonNull
+        final Class<T> mValueClass;
+
+        @Nullable
+        final T mValue;
+
+        /**
+         * Dumpされた時刻, 存在しない場合は0
+         */
+        final long mDate;
+
+        Result(@NonNull Class<T> valueClass, @Nullable T value, long date) {
+            mValueClass = valueClass;
+            mValue = value;
+            mDate = date;
+        }
+
+        @Nullable
+        T getValue() {
+            return mValue;
+        }
+    }
+
+    /**
+     * 保存先とKey毎の読み込みタスク
+     */
+    private final Map<String, FutureTask<Result<?>>> mTasks = new HashMap<>();
+
+    /**
+     * 読み込み時間の記録, 古いものから {@link #MAX_TIMINGS} を超えた分を破棄する
+     */
+    private final LinkedList<Timing> mTimings = new LinkedList<>();
+
+    private final Object lock = new Object();
+
+    FirebaseDumpPreloader() {
+    }
+
+    private static String toCacheKey(@NonNull FirebaseDumpStore store, @NonNull String key) {
+        return store.getDatabasePath().getAbsolutePath() + "\n" + key;
+    }
+
+    /**
+     * 標準の保存先からDumpデータを読み込む
+     *
+     * 読み込みはバックグラウンドで行われ、このメソッドは即座に返却される。
+     */
+    public FirebaseDumpPreloader preload(@NonNull Context context, @NonNull Collection<Request<?>> requests) {
+        return preload(FirebaseDumpStore.getInstance(context, context.getDatabasePath(FirebaseData.DUMP_DATABASE_FILE_NAME)), requests);
+    }
+
+    /**
+     * 指定した保存先からDumpデータを読み込む
+     *
+     * 読み込みはバックグラウンドで行われ、このメソッドは即座に返却される。
+     * 保存先へのアクセスは直列化されるため、並列化されるのは主にデコード処理となる。
+     */
+    public FirebaseDumpPreloader preload(@NonNull FirebaseDumpStore store, @NonNull Collection<Request<?>> requests) {
+        List<FutureTask<Result<?>>> tasks = new ArrayList<>();
+        synchronized (lock) {
+            for (Request<?> request : requests) {
+                String key = request.getDumpKey();
+                String cacheKey = toCacheKey(store, key);
+                if (mTasks.containsKey(cacheKey)) {
+                    continue;
+                }
+                FutureTask<Result<?>> task = new FutureTask<>(() -> load(store, key, request));
+                mTasks.put(cacheKey, task);
+                tasks.add(task);
+            }
+        }
+
+        for (FutureTask<Result<?>> task : tasks) {
+            sPreloadExecutor.execute(task);
+        }
+        return this;
+    }
+
+    private <T> Result<?> load(@NonNull FirebaseDumpStore store, @NonNull String key, @NonNull Request<T> request) {
+        final long readStart = System.nanoTime();
+        final String chainKey = FirebaseDeltaDump.toChainKey(key);
+        Map<String, FirebaseDumpStore.Entry> entries = store.getAll(Arrays.asList(key, chainKey));
+        final long readNano = System.nanoTime() - readStart;
+
+        FirebaseDumpStore.Entry entry = entries.get(key);
+        FirebaseDumpStore.Entry chain = entries.get(chainKey);
+        T value = null;
+        long date = 0;
+        long decodeNano = 0;
+        if (entry != null) {
+            // 期限切れの場合は削除される
+            final long decodeStart = System.nanoTime();
+            value = FirebaseData.decodeDumpEntry(store, key, entry, chain, request.mExpireTimeMs, request.mValueClass);
+            decodeNano = System.nanoTime() - decodeStart;
+            date = chain != null ? Math.max(entry.getDate(), chain.getDate()) : entry.getDate();
+        }
+
+        Timing timing = new Timing(key, value != null, readNano / 1000000.0, decodeNano / 1000000.0);
+        synchronized (lock) {
+            mTimings.add(timing);
+            while (mTimings.size() > MAX_TIMINGS) {
+                mTimings.removeFirst();
+            }
+        }
+        FbLog.debug("Preload key[%s] found[%s] read[%.3f ms] decode[%.3f ms]", key, String.valueOf(timing.mFound), timing.mReadTimeMs, timing.mDecodeTimeMs);
+        return new Result<>(request.mValueClass, value, date);
+    }
+
+    /**
+     * 読み込み済みの値を取り出す
+     *
+     * 読み込み中の場合は完了を待ち、読み込み前の場合は呼び出し元のスレッドで読み込む。
+     *
+     * @param expireTimeMs Dumpしたデータが有効な時間(ms), 期限切れの場合は削除する。0以下の場合は常に有効
+     * @return 読み込み結果, 対象外の場合はnull
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    <T> Result<T> take(@NonNull FirebaseDumpStore store, @NonNull String key, @NonNull Class<T> valueClass, long expireTimeMs) {
+        final String cacheKey = toCacheKey(store, key);
+        FutureTask<Result<?>> task;
+        synchronized (lock) {
+            task = mTasks.get(cacheKey);
+            if (task == null) {
+                return null;
+            }
+        }
+
+        Result<?> result;
+        task.run();
+        try {
+            result = task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            FbLog.debug("Preload failed key[%s] %s", key, e.getCause().toString());
+            invalidate(store, key);
+            return null;
+        }
+
+        if (result.mValueClass != valueClass) {
+            return null;
+        }
+
+        synchronized (lock) {
+            if (mTasks.get(cacheKey) != task) {
+                // 読み込み後に無効化された
+                return null;
+            }
+            mTasks.remove(cacheKey);
+        }
+
+        if (expireTimeMs > 0 && result.mValue != null && System.currentTimeMillis() > (result.mDate + expireTimeMs)) {
+            store.remove(key);
+            store.remove(FirebaseDeltaDump.toChainKey(key));
+            return new Result<>(valueClass, null, 0);
+        }
+        return (Result<T>) result;
+    }
+
+    /**
+     * 読み込み済みの値を破棄する
+     */
+    void invalidate(@NonNull FirebaseDumpStore store, @NonNull String key) {
+        synchronized (lock) {
+            mTasks.remove(toCacheKey(store, key));
+        }
+    }
+
+    /**
+     * 読み込み済みの値と読み込み時間の記録を全て破棄する
+     */
+    public void clear() {
+        synchronized (lock) {
+            mTasks.clear();
+            mTimings.clear();
+        }
+    }
+
+    /**
+     * 取り出されていない値の数を取得する
+     */
+    public int size() {
+        synchronized (lock) {
+            return mTasks.size();
+        }
+    }
+
+    /**
+     * Key毎の読み込み時間を取得する
+     *
+     * 最新の {@link #MAX_TIMINGS} 件のみを保持する。
+     */
+    @NonNull
+    public List<Timing> getTimings() {
+        synchronized (lock) {
+            return new ArrayList<>(mTimings);
+        }
+    }
+
+    /**
+     * 読み込みを行うスレッド
+     */
+    private static final ExecutorService sPreloadExecutor = Executors.newFixedThreadPool(
+            Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors())),
+            runnable -> {
+                Thread thread = new Thread(runnable, "FirebaseDumpPreloader");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private static FirebaseDumpPreloader sInstance;
+
+    public synchronized static FirebaseDumpPreloader getInstance() {
+        if (sInstance == null) {
+            sInstance = new FirebaseDumpPreloader();
+        }
+        return sInstance;
+    }
+}
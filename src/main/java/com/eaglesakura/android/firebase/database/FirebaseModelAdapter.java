@@ -0,0 +1,240 @@
+package com.eaglesakura.android.firebase.database;
+
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.MutableData;
+
+import com.eaglesakura.android.firebase.FbLog;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * モデルクラスとFirebaseの値の変換処理を、クラス毎に差し替える
+ *
+ * Firebaseの値はDataSnapshot.getValue()が返却する形式(Map/List/Long/Double/Boolean/String)である。
+ * 登録されたクラスはFirebaseData等のデコード・送信時に自動的に利用され、登録の無いクラスは従来通りDataSnapshot.getValue(Class)で変換する。
+ * 変換の内容は実装に任されるため、フィールドへ直接代入する実装であれば、値毎のリフレクションを避けられる。
+ *
+ * 登録は {@link #register(Class, FirebaseModelAdapter)} で行う。
+ * 登録が無い場合、モデルクラスのバイナリ名に {@link #ADAPTER_CLASS_SUFFIX} を付与したクラスをClass.forName()で検索し、存在すれば登録する。
+ * 検索はクラス毎に初回のみ行われる。このライブラリはAdapterを生成しないため、実装は利用側で用意する。
+ */
+public abstract class FirebaseModelAdapter<T> {
+
+    /**
+     * 自動登録されるAdapterのクラス名の接尾辞
+     */
+    public static final String ADAPTER_CLASS_SUFFIX = "_FirebaseAdapter";
+
+    /**
+     * Firebaseの値からモデルを生成する
+     *
+     * @param value DataSnapshot.getValue()の戻り値
+     * @return モデル, valueがnullの場合はnull
+     */
+    @Nullable
+    public abstract T fromValue(@Nullable Object value);
+
+    /**
+     * モデルをFirebaseへ送信できる値へ変換する
+     *
+     * @return Map/List/Long/Double/Boolean/Stringのいずれか
+     */
+    @Nullable
+    public abstract Object toValue(@NonNull T model);
+
+    /**
+     * Mapとして取得する
+     *
+     * @return Map, Mapでない場合は空のMap
+     */
+    @SuppressWarnings("unchecked")
+    @NonNull
+    protected static Map<String, Object> asMap(@Nullable Object value) {
+        if (value instanceof Map) {
+            return (Map<String, Object>) value;
+        }
+        return Collections.emptyMap();
+    }
+
+    protected static long asLong(@Nullable Object value, long defValue) {
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        return defValue;
+    }
+
+    protected static int asInt(@Nullable Object value, int defValue) {
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        return defValue;
+    }
+
+    protected static double asDouble(@Nullable Object value, double defValue) {
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        return defValue;
+    }
+
+    protected static boolean asBoolean(@Nullable Object value, boolean defValue) {
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        return defValue;
+    }
+
+    @Nullable
+    protected static String asString(@Nullable Object value) {
+        if (value == null) {
+            return null;
+        }
+        return value instanceof String ? (String) value : value.toString();
+    }
+
+    /**
+     * 文字列のListとして取得する
+     *
+     * 連番のKeyを持つ値はFirebaseからListとして返却されるが、欠番がある場合はMapとなるため、両方を受け付ける。
+     */
+    @NonNull
+    protected static List<String> asStringList(@Nullable Object value) {
+        List<String> result = new ArrayList<>();
+        if (value instanceof List) {
+            for (Object item : (List<?>) value) {
+                if (item != null) {
+                    result.add(asString(item));
+                }
+            }
+        } else if (value instanceof Map) {
+            for (Object item : ((Map<?, ?>) value).values()) {
+                if (item != null) {
+                    result.add(asString(item));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 登録済みのAdapter
+     *
+     * 検索済みでAdapterが存在しないクラスにはNONEを登録する。
+     */
+    private static final Map<Class<?>, FirebaseModelAdapter<?>> sAdapters = new HashMap<>();
+
+    private static final FirebaseModelAdapter<Object> NONE = new FirebaseModelAdapter<Object>() {
+        @Nullable
+        @Override
+        public Object fromValue(@Nullable Object value) {
+            throw new IllegalStateException();
+        }
+
+        @Nullable
+        @Override
+        public Object toValue(@NonNull Object model) {
+            throw new IllegalStateException();
+        }
+    };
+
+    /**
+     * Adapterを登録する
+     *
+     * 同じクラスのAdapterが登録済みの場合は上書きする。
+     */
+    public static <T> void register(@NonNull Class<T> valueClass, @NonNull FirebaseModelAdapter<T> adapter) {
+        synchronized (sAdapters) {
+            sAdapters.put(valueClass, adapter);
+        }
+    }
+
+    /**
+     * Adapterを取得する
+     *
+     * 初回のみ命名規則に従ったクラスを検索する。
+     *
+     * @return Adapter, 存在しない場合はnull
+     */
+    @SuppressWarnings("unchecked")
+    @Nullable
+    public static <T> FirebaseModelAdapter<T> get(@NonNull Class<T> valueClass) {
+        FirebaseModelAdapter<?> adapter;
+        synchronized (sAdapters) {
+            adapter = sAdapters.get(valueClass);
+            if (adapter == null) {
+                adapter = find(valueClass);
+                sAdapters.put(valueClass, adapter);
+            }
+        }
+        return adapter != NONE ? (FirebaseModelAdapter<T>) adapter : null;
+    }
+
+    @NonNull
+    private static FirebaseModelAdapter<?> find(@NonNull Class<?> valueClass) {
+        if (valueClass.isPrimitive() || valueClass.getName().startsWith("java.")) {
+            return NONE;
+        }
+
+        try {
+            Class<?> clazz = Class.forName(valueClass.getName() + ADAPTER_CLASS_SUFFIX, true, valueClass.getClassLoader());
+            if (FirebaseModelAdapter.class.isAssignableFrom(clazz)) {
+                return (FirebaseModelAdapter<?>) clazz.newInstance();
+            }
+        } catch (ClassNotFoundException e) {
+            // 規則に従ったAdapterが無い
+        } catch (Exception e) {
+            FbLog.debug("FirebaseModelAdapter load failed[%s] %s", valueClass.getName(), e.toString());
+        }
+        return NONE;
+    }
+
+    /**
+     * Snapshotをデコードする
+     *
+     * Adapterが存在しない場合はDataSnapshot.getValue(Class)で変換する。
+     */
+    @Nullable
+    static <T> T decode(@NonNull DataSnapshot snapshot, @NonNull Class<T> valueClass) {
+        FirebaseModelAdapter<T> adapter = get(valueClass);
+        if (adapter != null) {
+            return adapter.fromValue(snapshot.getValue());
+        }
+        return snapshot.getValue(valueClass);
+    }
+
+    /**
+     * トランザクション中の値をデコードする
+     *
+     * Adapterが存在しない場合はMutableData.getValue(Class)で変換する。
+     */
+    @Nullable
+    static <T> T decode(@NonNull MutableData data, @NonNull Class<T> valueClass) {
+        FirebaseModelAdapter<T> adapter = get(valueClass);
+        if (adapter != null) {
+            return adapter.fromValue(data.getValue());
+        }
+        return data.getValue(valueClass);
+    }
+
+    /**
+     * 送信する値へ変換する
+     *
+     * Adapterが存在しない場合はそのまま返却し、Firebaseが変換する。
+     */
+    @SuppressWarnings("unchecked")
+    @Nullable
+    static Object encode(@Nullable Object model) {
+        if (model == null) {
+            return null;
+        }
+        FirebaseModelAdapter<Object> adapter = (FirebaseModelAdapter<Object>) get(model.getClass());
+        return adapter != null ? adapter.toValue(model) : model;
+    }
+}
@@ -0,0 +1,864 @@
+package com.eaglesakura.android.firebase.database;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseException;
+import com.google.firebase.database.FirebaseDatabase;
+
+import com.eaglesakura.android.firebase.FbLog;
+import com.eaglesakura.android.firebase.database.dump.FirebaseDumpCodec;
+import com.eaglesakura.android.gms.util.PlayServiceUtil;
+import com.eaglesakura.collection.AnonymousBroadcaster;
+import com.eaglesakura.json.JSON;
+
+import android.content.Context;
+import android.support.annotation.IntRange;
+import android.support.annotation.Keep;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * オフライン中のコミットをストレージに保持し、オンライン復帰時に送信する
+ *
+ * 書き込みは {@link FirebaseData#DUMP_DATABASE_FILE_NAME} と同じディレクトリに保存されるため、プロセスが終了しても失われない。
+ * 同じパスへの書き込みは最新の値のみを保持する。
+ * 送信は {@link FirebaseSystemInformation#isOnline()} がtrueになった時点で、updateChildren()によりまとめて行う。
+ * 切断やタイムアウトで完了しなかった書き込みは残したまま再送し、サーバーが拒否した書き込みのみを破棄する。
+ *
+ * {@link FirebaseData#offlineQueue(boolean)} を有効にしたインスタンスのコミットが対象となる。
+ */
+public class FirebaseOfflineWriteQueue {
+
+    /**
+     * 保存先のファイル名
+     */
+    public static final String QUEUE_FILE_NAME = "firebase-outbox.json";
+
+    /**
+     * 1回のupdateChildren()で送信する最大件数
+     */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 64;
+
+    /**
+     * 1回のupdateChildren()の完了を待つ最大時間(ms)
+     *
+     * 超えた場合は送信を中断し、書き込みを残したまま再送する。
+     */
+    static final long SEND_TIMEOUT_MS = 1000 * 60;
+
+    /**
+     * 送信に失敗してから再送するまでの最小時間(ms)
+     */
+    static final long RETRY_DELAY_MS = 1000 * 5;
+
+    /**
+     * 再送するまでの最大時間(ms)
+     */
+    static final long MAX_RETRY_DELAY_MS = 1000 * 60 * 5;
+
+    /**
+     * 送信の完了をファイルへ保存するまでの最大時間(ms)
+     *
+     * 連続した完了を1回の保存にまとめる。
+     * 保存前に終了した場合は次回起動時に再送されるが、同じ値の書き込みとなるため結果は変わらない。
+     */
+    public static final long SAVE_DELAY_MS = 100;
+
+    /**
+     * 書き込みの状態
+     */
+    public enum Status {
+        /**
+         * 送信待ちとして保存された
+         */
+        Queued,
+
+        /**
+         * 送信前に同じパスへの新しい書き込みで上書きされた
+         */
+        Superseded,
+
+        /**
+         * サーバーへの書き込みが完了した
+         */
+        Committed,
+
+        /**
+         * サーバーが書き込みを拒否したか、値を復元できなかったため破棄された
+         */
+        Failed,
+    }
+
+    /**
+     * 1回の送信結果
+     */
+    enum SendResult {
+        /**
+         * サーバーへの書き込みが完了した
+         */
+        Committed,
+
+        /**
+         * サーバーが書き込みを拒否した
+         */
+        Rejected,
+
+        /**
+         * 切断やタイムアウトにより完了しなかった
+         */
+        Retry,
+    }
+
+    public interface OnWriteStatusListener {
+        /**
+         * 書き込みの状態が変化した
+         *
+         * @param self   キュー
+         * @param path   書き込み先のパス
+         * @param status 変化後の状態
+         */
+        void onWriteStatusChanged(FirebaseOfflineWriteQueue self, String path, Status status);
+    }
+
+    /**
+     * 保存される1件の書き込み
+     */
+    public static class Record {
+        /**
+         * 書き込み順
+         */
+        @Keep
+        public long seq;
+
+        /**
+         * ルートからの相対パス
+         */
+        @Keep
+        public String path;
+
+        /**
+         * 値のクラス名, 削除の場合はnull
+         */
+        @Keep
+        public String valueClass;
+
+        /**
+         * FirebaseDumpCodecでエンコードした値, 削除の場合はnull
+         */
+        @Keep
+        public String value;
+
+        /**
+         * 保存した時刻
+         */
+        @Keep
+        public long date;
+    }
+
+    /**
+     * ファイルの内容
+     */
+    public static class Journal {
+        @Keep
+        public long seq;
+
+        @Keep
+        public List<Record> records = new ArrayList<>();
+    }
+
+    @NonNull
+    private final File mFile;
+
+    /**
+     * パス毎の送信待ちの書き込み, 書き込み順に並ぶ
+     */
+    private final LinkedHashMap<String, Record> mRecords = new LinkedHashMap<>();
+
+    /**
+     * 書き込み毎の完了通知
+     */
+    private final Map<Long, TaskCompletionSource<Void>> mCompletions = new HashMap<>();
+
+    private long mSeq;
+
+    private int mMaxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
+    /**
+     * 送信処理が登録済みであればtrue
+     */
+    private boolean mReplayScheduled;
+
+    /**
+     * 次の再送までの時間(ms), 0の場合は失敗していない
+     */
+    private long mRetryDelayMs;
+
+    /**
+     * 待機中の再送
+     */
+    @Nullable
+    private ScheduledFuture<?> mRetryTask;
+
+    /**
+     * ファイルへ保存していない変更がある場合はtrue
+     */
+    private boolean mDirty;
+
+    /**
+     * 遅延保存が登録済みであればtrue
+     */
+    private boolean mSaveScheduled;
+
+    private int mMaxDepth;
+
+    private long mEnqueuedCount;
+
+    private long mSupersededCount;
+
+    private long mCommittedCount;
+
+    private long mFailedCount;
+
+    private long mBatchCount;
+
+    private final Object lock = new Object();
+
+    /**
+     * ファイル操作用のlock
+     */
+    private final Object ioLock = new Object();
+
+    /**
+     * コールバック登録
+     */
+    private AnonymousBroadcaster mBroadcaster = new AnonymousBroadcaster();
+
+    FirebaseOfflineWriteQueue(@NonNull File file) {
+        mFile = file;
+        load();
+    }
+
+    public FirebaseOfflineWriteQueue registerOnWriteStatusListener(OnWriteStatusListener obj) {
+        mBroadcaster.register(obj);
+        return this;
+    }
+
+    public FirebaseOfflineWriteQueue weakRegisterOnWriteStatusListener(OnWriteStatusListener obj) {
+        mBroadcaster.weakRegister(obj);
+        return this;
+    }
+
+    public FirebaseOfflineWriteQueue unregister(OnWriteStatusListener obj) {
+        mBroadcaster.unregister(obj);
+        return this;
+    }
+
+    /**
+     * 1回の送信でまとめる最大件数を指定する
+     */
+    public FirebaseOfflineWriteQueue maxBatchSize(@IntRange(from = 1) int maxBatchSize) {
+        synchronized (lock) {
+            mMaxBatchSize = Math.max(1, maxBatchSize);
+        }
+        return this;
+    }
+
+    /**
+     * 書き込みを保存する
+     *
+     * 同じパスへの送信待ちの書き込みは上書きされる。
+     * 返却前にファイルへ保存するため、返却後にプロセスが終了しても書き込みは失われない。
+     *
+     * @param path  書き込み先のパス
+     * @param value 書き込む値, nullの場合は削除
+     * @return 送信の完了を示すTask, 新しい書き込みで上書きされた場合も成功する
+     */
+    @NonNull
+    public Task<Void> enqueue(@NonNull String path, @Nullable Object value) {
+        Record record = new Record();
+        record.path = FirebaseWriteBatch.normalizePath(path);
+        record.date = System.currentTimeMillis();
+        if (value != null) {
+            record.valueClass = value.getClass().getName();
+            record.value = FirebaseDumpCodec.getDefault().encode(value);
+        }
+
+        TaskCompletionSource<Void> completion = new TaskCompletionSource<>();
+        TaskCompletionSource<Void> superseded = null;
+        synchronized (lock) {
+            record.seq = (++mSeq);
+            Record old = mRecords.remove(record.path);
+            if (old != null) {
+                superseded = mCompletions.remove(old.seq);
+                ++mSupersededCount;
+            }
+            mRecords.put(record.path, record);
+            mCompletions.put(record.seq, completion);
+            ++mEnqueuedCount;
+            mMaxDepth = Math.max(mMaxDepth, mRecords.size());
+            mDirty = true;
+        }
+        flush();
+
+        if (superseded != null) {
+            superseded.setResult(null);
+            broadcast(record.path, Status.Superseded);
+        }
+        broadcast(record.path, Status.Queued);
+
+        if (isOnline()) {
+            scheduleReplay();
+        }
+        return completion.getTask();
+    }
+
+    /**
+     * 指定したパスか、その親子のパスへの送信待ちの書き込みがある場合はtrue
+     *
+     * オンライン中の書き込みが、後から送信される古い書き込みで上書きされないよう確認する。
+     */
+    public boolean hasPendingWrite(@NonNull String path) {
+        final String normalized = FirebaseWriteBatch.normalizePath(path);
+        synchronized (lock) {
+            return mRecords.containsKey(normalized) || overlaps(mRecords.keySet(), normalized);
+        }
+    }
+
+    /**
+     * 指定したパスへの送信待ちの書き込みを破棄する
+     *
+     * 他の経路で同じパスへ新しい値を送信する場合に呼び出す。破棄した書き込みのTaskは成功として扱う。
+     */
+    public void supersede(@NonNull String path) {
+        final String normalized = FirebaseWriteBatch.normalizePath(path);
+        TaskCompletionSource<Void> completion;
+        synchronized (lock) {
+            Record old = mRecords.remove(normalized);
+            if (old == null) {
+                return;
+            }
+            completion = mCompletions.remove(old.seq);
+            ++mSupersededCount;
+            save();
+        }
+
+        if (completion != null) {
+            completion.setResult(null);
+        }
+        broadcast(normalized, Status.Superseded);
+    }
+
+    /**
+     * 送信待ちの書き込みを送信する
+     * このメソッドは処理結果を待たずに返却される
+     *
+     * 通常はオンライン復帰時に自動で呼び出される。
+     */
+    public void scheduleReplay() {
+        synchronized (lock) {
+            if (mReplayScheduled || mRecords.isEmpty()) {
+                return;
+            }
+            mReplayScheduled = true;
+        }
+        sReplayExecutor.execute(this::replay);
+    }
+
+    /**
+     * オンラインへ復帰した時点で呼び出す
+     *
+     * 再送の待機中であれば待機を取り消し、即座に送信する。
+     */
+    void onOnline() {
+        synchronized (lock) {
+            mRetryDelayMs = 0;
+            if (mRetryTask != null && mRetryTask.cancel(false)) {
+                mRetryTask = null;
+                mReplayScheduled = false;
+            }
+        }
+        scheduleReplay();
+    }
+
+    private void replay() {
+        synchronized (lock) {
+            mRetryTask = null;
+        }
+
+        boolean retry = false;
+        try {
+            while (isOnline()) {
+                List<Record> batch = nextBatch();
+                if (batch.isEmpty()) {
+                    return;
+                }
+                if (!sendBatch(batch)) {
+                    retry = true;
+                    return;
+                }
+                synchronized (lock) {
+                    mRetryDelayMs = 0;
+                }
+            }
+        } catch (InterruptedException e) {
+            FbLog.debug("OfflineWriteQueue replay interrupted");
+        } finally {
+            synchronized (lock) {
+                if (retry) {
+                    // 書き込みは残したまま、間隔を空けて再送する
+                    mRetryDelayMs = Math.min(MAX_RETRY_DELAY_MS, Math.max(RETRY_DELAY_MS, mRetryDelayMs * 2));
+                    FbLog.debug("OfflineWriteQueue retry after %d ms", mRetryDelayMs);
+                    mRetryTask = sReplayExecutor.schedule(this::replay, mRetryDelayMs, TimeUnit.MILLISECONDS);
+                } else {
+                    mReplayScheduled = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * 1回のupdateChildren()で送信する書き込みを取得する
+     *
+     * 親子関係にあるパスは同時に送信できないため、そこで区切る。
+     */
+    @NonNull
+    private List<Record> nextBatch() {
+        List<Record> result = new ArrayList<>();
+        Set<String> paths = new HashSet<>();
+        synchronized (lock) {
+            for (Record record : mRecords.values()) {
+                if (result.size() >= mMaxBatchSize || overlaps(paths, record.path)) {
+                    break;
+                }
+                result.add(record);
+                paths.add(record.path);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 親子関係にあるパスが含まれている場合はtrue
+     */
+    static boolean overlaps(@NonNull Set<String> paths, @NonNull String path) {
+        if (paths.isEmpty()) {
+            return false;
+        }
+        if (path.isEmpty() || paths.contains("")) {
+            return true;
+        }
+
+        String parent = path;
+        int index;
+        while ((index = parent.lastIndexOf('/')) > 0) {
+            parent = parent.substring(0, index);
+            if (paths.contains(parent)) {
+                return true;
+            }
+        }
+
+        final String prefix = path + "/";
+        for (String other : paths) {
+            if (other.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 書き込みをまとめて送信する
+     *
+     * サーバーが拒否した場合、拒否された書き込みを特定するため1件ずつ送信し直す。
+     *
+     * @return 次の書き込みを送信できる場合はtrue, 再送が必要な場合はfalse
+     */
+    private boolean sendBatch(@NonNull List<Record> batch) throws InterruptedException {
+        Map<String, Object> values = new HashMap<>();
+        List<Record> sending = new ArrayList<>();
+        List<Record> broken = new ArrayList<>();
+        for (Record record : batch) {
+            try {
+                values.put(record.path, FirebaseModelAdapter.encode(decode(record)));
+                sending.add(record);
+            } catch (Exception e) {
+                FbLog.debug("OfflineWriteQueue decode failed path[%s] class[%s]", record.path, record.valueClass);
+                broken.add(record);
+            }
+        }
+        complete(broken, false);
+        if (sending.isEmpty()) {
+            return true;
+        }
+
+        SendResult result = send(values);
+        FbLog.debug("OfflineWriteQueue replay paths[%d] result[%s]", sending.size(), result.name());
+        switch (result) {
+            case Committed:
+                complete(sending, true);
+                return true;
+            case Rejected:
+                if (sending.size() == 1) {
+                    complete(sending, false);
+                    return true;
+                }
+                for (Record record : sending) {
+                    if (!sendBatch(Collections.singletonList(record))) {
+                        return false;
+                    }
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * updateChildren()を行い、完了を待つ
+     *
+     * オフラインになった場合と {@link #SEND_TIMEOUT_MS} を超えた場合は待機を中断する。
+     * テストで送信先を差し替えられるよう、package privateとする。
+     */
+    @NonNull
+    SendResult send(@NonNull Map<String, Object> values) throws InterruptedException {
+        TaskCompletionSource<DatabaseError> completion = new TaskCompletionSource<>();
+        try {
+            FirebaseDatabase.getInstance().getReference().updateChildren(values, (error, reference) -> completion.trySetResult(error));
+        } catch (DatabaseException e) {
+            // 送信できない値が含まれている
+            FbLog.debug("OfflineWriteQueue invalid value :: %s", e.toString());
+            return SendResult.Rejected;
+        }
+
+        final long deadline = System.currentTimeMillis() + SEND_TIMEOUT_MS;
+        Task<DatabaseError> task = PlayServiceUtil.await(completion.getTask(),
+                () -> !isOnline() || System.currentTimeMillis() > deadline);
+        synchronized (lock) {
+            ++mBatchCount;
+        }
+        if (!task.isComplete()) {
+            return SendResult.Retry;
+        }
+
+        DatabaseError error = task.getResult();
+        if (error == null) {
+            return SendResult.Committed;
+        }
+        FbLog.debug("OfflineWriteQueue send failed code[%d] %s", error.getCode(), error.getMessage());
+        return isRejected(error) ? SendResult.Rejected : SendResult.Retry;
+    }
+
+    /**
+     * 再送しても成功しないエラーであればtrue
+     *
+     * 切断・タイムアウト・認証の期限切れ等は再送の対象とする。
+     */
+    static boolean isRejected(@NonNull DatabaseError error) {
+        return error.getCode() == DatabaseError.PERMISSION_DENIED;
+    }
+
+    /**
+     * 送信できる状態であればtrue
+     *
+     * テストで接続状態を差し替えられるよう、package privateとする。
+     */
+    boolean isOnline() {
+        return FirebaseSystemInformation.getInstance().isOnline();
+    }
+
+    @Nullable
+    private static Object decode(@NonNull Record record) throws ClassNotFoundException {
+        if (record.valueClass == null) {
+            return null;
+        }
+        Object value = FirebaseDumpCodec.decode(record.value, Class.forName(record.valueClass));
+        if (value == null) {
+            throw new IllegalStateException("Decode failed :: " + record.path);
+        }
+        return value;
+    }
+
+    /**
+     * 送信の完了した書き込みを取り除く
+     *
+     * 送信中に同じパスへ新しい書き込みが行われていた場合、新しい書き込みは残す。
+     */
+    private void complete(@NonNull List<Record> records, boolean success) {
+        if (records.isEmpty()) {
+            return;
+        }
+
+        List<TaskCompletionSource<Void>> completions = new ArrayList<>();
+        synchronized (lock) {
+            for (Record record : records) {
+                Record current = mRecords.get(record.path);
+                if (current != null && current.seq == record.seq) {
+                    mRecords.remove(record.path);
+                }
+                TaskCompletionSource<Void> completion = mCompletions.remove(record.seq);
+                if (completion != null) {
+                    completions.add(completion);
+                }
+            }
+            if (success) {
+                mCommittedCount += records.size();
+            } else {
+                mFailedCount += records.size();
+            }
+            save();
+        }
+
+        for (TaskCompletionSource<Void> completion : completions) {
+            if (success) {
+                completion.setResult(null);
+            } else {
+                completion.setException(new IllegalStateException("Offline write rejected"));
+            }
+        }
+        for (Record record : records) {
+            broadcast(record.path, success ? Status.Committed : Status.Failed);
+        }
+    }
+
+    private void broadcast(@NonNull String path, @NonNull Status status) {
+        mBroadcaster.safeEach(OnWriteStatusListener.class, listener -> {
+            listener.onWriteStatusChanged(this, path, status);
+        });
+    }
+
+    /**
+     * ファイルから復元する
+     */
+    private void load() {
+        if (!mFile.isFile()) {
+            return;
+        }
+
+        try (InputStream is = new FileInputStream(mFile)) {
+            Journal journal = JSON.decode(is, Journal.class);
+            if (journal == null) {
+                return;
+            }
+            List<Record> records = new ArrayList<>(journal.records);
+            Collections.sort(records, (a, b) -> a.seq < b.seq ? -1 : (a.seq == b.seq ? 0 : 1));
+            synchronized (lock) {
+                mSeq = journal.seq;
+                for (Record record : records) {
+                    mRecords.put(record.path, record);
+                }
+                mMaxDepth = mRecords.size();
+            }
+        } catch (Exception e) {
+            // 破損している場合は破棄する
+            FbLog.debug("OfflineWriteQueue load failed :: %s", e.toString());
+        }
+    }
+
+    /**
+     * 送信待ちの書き込みの保存を予約する
+     *
+     * lockを保持した状態で呼び出す
+     */
+    private void save() {
+        mDirty = true;
+        if (mSaveScheduled) {
+            return;
+        }
+        mSaveScheduled = true;
+        sSaveExecutor.schedule(() -> {
+            synchronized (lock) {
+                mSaveScheduled = false;
+            }
+            flush();
+        }, SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 保存待ちの書き込みをファイルへ書き込む
+     *
+     * 一時ファイルへ書き込んだ後にリネームし、書き込み中に終了しても以前の内容を残す。
+     * Activity#onPause等、プロセスが終了する可能性がある時点で呼び出す。
+     */
+    public void flush() {
+        synchronized (ioLock) {
+            Journal journal = new Journal();
+            synchronized (lock) {
+                if (!mDirty) {
+                    return;
+                }
+                mDirty = false;
+                journal.seq = mSeq;
+                journal.records.addAll(mRecords.values());
+            }
+
+            if (journal.records.isEmpty()) {
+                if (mFile.isFile() && !mFile.delete()) {
+                    FbLog.debug("OfflineWriteQueue delete failed :: %s", mFile.getAbsolutePath());
+                }
+                return;
+            }
+
+            String text = JSON.encodeOrNull(journal);
+            if (text == null) {
+                return;
+            }
+
+            File temp = new File(mFile.getParentFile(), mFile.getName() + ".tmp");
+            try {
+                mFile.getParentFile().mkdirs();
+                try (OutputStream os = new FileOutputStream(temp)) {
+                    os.write(text.getBytes("UTF-8"));
+                    os.flush();
+                    ((FileOutputStream) os).getFD().sync();
+                }
+                if (!temp.renameTo(mFile)) {
+                    throw new IOException("Rename failed :: " + mFile.getAbsolutePath());
+                }
+            } catch (IOException e) {
+                FbLog.debug("OfflineWriteQueue save failed :: %s", e.toString());
+                synchronized (lock) {
+                    mDirty = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * 送信待ちの件数を取得する
+     */
+    @IntRange(from = 0)
+    public int getDepth() {
+        synchronized (lock) {
+            return mRecords.size();
+        }
+    }
+
+    /**
+     * 送信待ちの件数の最大値を取得する
+     */
+    @IntRange(from = 0)
+    public int getMaxDepth() {
+        synchronized (lock) {
+            return mMaxDepth;
+        }
+    }
+
+    /**
+     * 保存した書き込み数を取得する
+     */
+    public long getEnqueuedCount() {
+        synchronized (lock) {
+            return mEnqueuedCount;
+        }
+    }
+
+    /**
+     * 送信前に上書きされた書き込み数を取得する
+     */
+    public long getSupersededCount() {
+        synchronized (lock) {
+            return mSupersededCount;
+        }
+    }
+
+    /**
+     * 送信が完了した書き込み数を取得する
+     */
+    public long getCommittedCount() {
+        synchronized (lock) {
+            return mCommittedCount;
+        }
+    }
+
+    /**
+     * 破棄された書き込み数を取得する
+     */
+    public long getFailedCount() {
+        synchronized (lock) {
+            return mFailedCount;
+        }
+    }
+
+    /**
+     * updateChildren()の実行回数を取得する
+     */
+    public long getBatchCount() {
+        synchronized (lock) {
+            return mBatchCount;
+        }
+    }
+
+    /**
+     * ファイルへの保存を行うスレッド
+     *
+     * 送信は完了待ちでブロックするため、保存は別のスレッドで行う。
+     */
+    private static final ScheduledExecutorService sSaveExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "FirebaseOfflineWriteQueue-Save");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * 送信を行うスレッド
+     */
+    private static final ScheduledExecutorService sReplayExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "FirebaseOfflineWriteQueue");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static FirebaseOfflineWriteQueue sInstance;
+
+    /**
+     * 生成済みのインスタンスを取得する
+     *
+     * @return インスタンス, getInstance()が呼び出されていない場合はnull
+     */
+    @Nullable
+    synchronized static FirebaseOfflineWriteQueue peekInstance() {
+        return sInstance;
+    }
+
+    /**
+     * インスタンスを取得する
+     *
+     * 初回呼び出し時に保存済みの書き込みを読み込み、オンライン復帰時の送信を開始する。
+     */
+    public synchronized static FirebaseOfflineWriteQueue getInstance(@NonNull Context context) {
+        if (sInstance == null) {
+            File dir = context.getDatabasePath(FirebaseData.DUMP_DATABASE_FILE_NAME).getParentFile();
+            FirebaseOfflineWriteQueue queue = new FirebaseOfflineWriteQueue(new File(dir, QUEUE_FILE_NAME));
+            sInstance = queue;
+
+            FirebaseSystemInformation.getInstance().registerOnOnlineStateChangedListener(
+                    (FirebaseSystemInformation.OnOnlineStateChangedListener) (self, online) -> {
+                        if (online) {
+                            queue.onOnline();
+                        }
+                    });
+            queue.scheduleReplay();
+        }
+        return sInstance;
+    }
+}
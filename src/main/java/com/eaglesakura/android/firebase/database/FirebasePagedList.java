@@ -0,0 +1,626 @@
+package com.eaglesakura.android.firebase.database;
+
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.Query;
+import com.google.firebase.database.ValueEventListener;
+
+import com.eaglesakura.android.firebase.FbLog;
+import com.eaglesakura.android.firebase.error.FirebaseDatabaseException;
+import com.eaglesakura.android.firebase.error.FirebaseDatabaseSyncException;
+import com.eaglesakura.collection.AnonymousBroadcaster;
+import com.eaglesakura.lambda.CallbackUtils;
+import com.eaglesakura.lambda.CancelCallback;
+
+import android.support.annotation.IntRange;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 大きなリストをページ単位で読み込む
+ *
+ * orderByKey()/orderByChild()の順序でlimitToFirst()/startAt()によるクエリを発行し、1ページずつ読み込む。
+ * メモリ上には参照中のページの前後 {@link #windowPages(int)} ページのみを保持し、範囲外のページは破棄する。
+ * 破棄したページは再度参照された時点で読み込み直す。
+ * 参照位置がページ末尾に近づいた時点で、次のページをバックグラウンドで先読みする。
+ *
+ * 各ページは読み込み時点の値であり、以降の変更は反映されない。
+ */
+public class FirebasePagedList<T> {
+
+    /**
+     * 1ページの件数のデフォルト値
+     */
+    public static final int DEFAULT_PAGE_SIZE = 20;
+
+    /**
+     * メモリ上に保持するページ数のデフォルト値
+     */
+    public static final int DEFAULT_WINDOW_PAGES = 5;
+
+    public interface OnPageLoadedListener<T> {
+        /**
+         * ページが読み込まれた
+         *
+         * @param self      読み込みを行ったリスト
+         * @param pageIndex 読み込まれたページ
+         */
+        void onPageLoaded(FirebasePagedList<T> self, int pageIndex);
+    }
+
+    /**
+     * ページの開始位置
+     *
+     * 前のページの最後の要素を示し、startAt()にはこの要素自身も含まれる。
+     */
+    static class Cursor {
+        @Nullable
+        final Object mSortValue;
+
+        @NonNull
+        final String mKey;
+
+        Cursor(@Nullable Object sortValue, @NonNull String key) {
+            mSortValue = sortValue;
+            mKey = key;
+        }
+    }
+
+    /**
+     * 読み込み済みのページ
+     */
+    static class Page<T> {
+        final List<String> mKeys;
+
+        final List<T> mValues;
+
+        Page(List<String> keys, List<T> values) {
+            mKeys = keys;
+            mValues = values;
+        }
+    }
+
+    @NonNull
+    final Class<T> mValueClass;
+
+    /**
+     * 参照へのパス
+     */
+    private String mPath;
+
+    private DatabaseReference mReference;
+
+    /**
+     * 並び替えに利用する子要素, nullの場合はKey順
+     */
+    @Nullable
+    private String mOrderByChild;
+
+    private int mPageSize = DEFAULT_PAGE_SIZE;
+
+    private int mWindowPages = DEFAULT_WINDOW_PAGES;
+
+    /**
+     * 先読みを開始する、ページ末尾からの件数
+     */
+    private int mPrefetchDistance = DEFAULT_PAGE_SIZE / 4;
+
+    /**
+     * ページ毎の開始位置
+     *
+     * 0ページ目はnullであり、n+1ページ目の開始位置はnページ目の読み込み完了時に確定する。
+     */
+    private final List<Cursor> mPageStarts = new ArrayList<>();
+
+    /**
+     * 保持中のページ
+     */
+    private final Map<Integer, Page<T>> mPages = new HashMap<>();
+
+    /**
+     * 読み込み中のページ
+     */
+    private final Set<Integer> mLoadingPages = new HashSet<>();
+
+    /**
+     * 最後に読み込みを要求されたページ, 到達した場合は-1
+     *
+     * 開始位置が確定していないページは、前のページの読み込み完了後に読み込む。
+     * 参照位置が戻った場合に遠いページを読み続けないよう、最後の要求のみを保持する。
+     */
+    int mTargetPage = -1;
+
+    /**
+     * 最後に参照されたページ
+     */
+    private int mCurrentPage;
+
+    /**
+     * awaitPage()で待機中のページ
+     *
+     * 参照位置に関わらず破棄しない。
+     */
+    private final List<Integer> mAwaitingPages = new ArrayList<>();
+
+    /**
+     * 判明している件数
+     */
+    private int mKnownSize;
+
+    /**
+     * 最後のページまで読み込んだ場合はtrue
+     */
+    private boolean mReachedEnd;
+
+    /**
+     * 最後に受信したエラー
+     */
+    @Nullable
+    private DatabaseError mLastError;
+
+    /**
+     * 破棄されたページを無視するための世代
+     */
+    private int mGeneration;
+
+    @NonNull
+    private final Object lock = new Object();
+
+    /**
+     * コールバック登録
+     */
+    private AnonymousBroadcaster mBroadcaster = new AnonymousBroadcaster();
+
+    public FirebasePagedList(@NonNull Class<T> valueClass) {
+        mValueClass = valueClass;
+        mPageStarts.add(null);
+    }
+
+    public String getPath() {
+        return mPath;
+    }
+
+    public Class<T> getValueClass() {
+        return mValueClass;
+    }
+
+    public FirebasePagedList<T> registerOnPageLoadedListener(OnPageLoadedListener obj) {
+        mBroadcaster.register(obj);
+        return this;
+    }
+
+    public FirebasePagedList<T> weakRegisterOnPageLoadedListener(OnPageLoadedListener obj) {
+        mBroadcaster.weakRegister(obj);
+        return this;
+    }
+
+    public FirebasePagedList<T> unregister(OnPageLoadedListener obj) {
+        mBroadcaster.unregister(obj);
+        return this;
+    }
+
+    /**
+     * Key順に並べる
+     *
+     * connect()前に指定する必要がある。
+     */
+    public FirebasePagedList<T> orderByKey() {
+        mOrderByChild = null;
+        return this;
+    }
+
+    /**
+     * 指定した子要素の値の順に並べる
+     *
+     * 子要素の値は文字列・数値・真偽値のいずれかである必要がある。
+     * connect()前に指定する必要がある。
+     */
+    public FirebasePagedList<T> orderByChild(@NonNull String child) {
+        mOrderByChild = child;
+        return this;
+    }
+
+    /**
+     * 1ページの件数を指定する
+     *
+     * connect()前に指定する必要がある。
+     */
+    public FirebasePagedList<T> pageSize(@IntRange(from = 1) int pageSize) {
+        mPageSize = pageSize;
+        mPrefetchDistance = Math.min(mPrefetchDistance, pageSize);
+        return this;
+    }
+
+    /**
+     * メモリ上に保持するページ数を指定する
+     *
+     * 参照中のページと、その前後のページを保持する。
+     */
+    public FirebasePagedList<T> windowPages(@IntRange(from = 3) int windowPages) {
+        synchronized (lock) {
+            mWindowPages = Math.max(3, windowPages);
+        }
+        return this;
+    }
+
+    /**
+     * ページ末尾から何件以内を参照した時点で、次のページを先読みするかを指定する
+     */
+    public FirebasePagedList<T> prefetchDistance(@IntRange(from = 0) int prefetchDistance) {
+        synchronized (lock) {
+            mPrefetchDistance = prefetchDistance;
+        }
+        return this;
+    }
+
+    public FirebasePagedList<T> connect(String path) {
+        mPath = path;
+        mReference = FirebaseDatabase.getInstance().getReference(path);
+        requestPage(0);
+        return this;
+    }
+
+    /**
+     * 読み込み済みのページを全て破棄する
+     *
+     * 読み込み中のページの結果は無視される。
+     */
+    public void disconnect() {
+        synchronized (lock) {
+            ++mGeneration;
+            mPages.clear();
+            mLoadingPages.clear();
+            mTargetPage = -1;
+        }
+    }
+
+    /**
+     * 指定位置の要素を取得する
+     *
+     * 参照位置を更新し、範囲外のページの破棄と次のページの先読みを行う。
+     *
+     * @return 要素, 読み込み前の場合はnull
+     */
+    @Nullable
+    public T get(@IntRange(from = 0) int position) {
+        final int pageIndex = position / mPageSize;
+        final int offset = position % mPageSize;
+        T result = null;
+        boolean loaded;
+        synchronized (lock) {
+            mCurrentPage = pageIndex;
+            Page<T> page = mPages.get(pageIndex);
+            loaded = (page != null);
+            if (loaded && offset < page.mValues.size()) {
+                result = page.mValues.get(offset);
+            }
+            releaseOutOfWindow();
+        }
+
+        if (!loaded) {
+            requestPage(pageIndex);
+        }
+        if (offset >= (mPageSize - mPrefetchDistance)) {
+            // 末尾に近づいたので次のページを読み込む
+            requestPage(pageIndex + 1);
+        }
+        return result;
+    }
+
+    /**
+     * 読み込み済みのページを取得する
+     *
+     * @return ページの要素, 読み込み前か破棄済みの場合はnull
+     */
+    @Nullable
+    public List<T> getPage(@IntRange(from = 0) int pageIndex) {
+        synchronized (lock) {
+            Page<T> page = mPages.get(pageIndex);
+            return page != null ? Collections.unmodifiableList(page.mValues) : null;
+        }
+    }
+
+    /**
+     * 読み込み済みのページのKeyを取得する
+     *
+     * @return ページのKey, 読み込み前か破棄済みの場合はnull
+     */
+    @Nullable
+    public List<String> getPageKeys(@IntRange(from = 0) int pageIndex) {
+        synchronized (lock) {
+            Page<T> page = mPages.get(pageIndex);
+            return page != null ? Collections.unmodifiableList(page.mKeys) : null;
+        }
+    }
+
+    /**
+     * 判明している件数を取得する
+     *
+     * {@link #hasMore()} がtrueの場合、さらに要素が存在する。
+     */
+    public int size() {
+        synchronized (lock) {
+            return mKnownSize;
+        }
+    }
+
+    /**
+     * 未読み込みの要素が存在する可能性がある場合はtrue
+     */
+    public boolean hasMore() {
+        synchronized (lock) {
+            return !mReachedEnd;
+        }
+    }
+
+    /**
+     * メモリ上に保持しているページ数を取得する
+     */
+    public int getLoadedPageCount() {
+        synchronized (lock) {
+            return mPages.size();
+        }
+    }
+
+    /**
+     * 最後のエラーを取得する
+     */
+    @Nullable
+    public DatabaseError getLastError() {
+        synchronized (lock) {
+            return mLastError;
+        }
+    }
+
+    /**
+     * ページを読み込む
+     * このメソッドは処理結果を待たずに返却される
+     *
+     * get()と同じく、参照位置を指定したページへ移動する。
+     */
+    public FirebasePagedList<T> loadPage(@IntRange(from = 0) int pageIndex) {
+        synchronized (lock) {
+            mCurrentPage = pageIndex;
+            releaseOutOfWindow();
+        }
+        requestPage(pageIndex);
+        return this;
+    }
+
+    /**
+     * ページが読み込まれるまで待機する
+     *
+     * 参照位置を指定したページへ移動し、待機中はそのページを破棄しない。
+     *
+     * @return ページの要素, 最後のページより後ろを指定した場合はnull
+     * @throws FirebaseDatabaseException 読み込みに失敗した
+     */
+    @Nullable
+    public List<T> awaitPage(@IntRange(from = 0) int pageIndex, CancelCallback cancelCallback) throws InterruptedException, FirebaseDatabaseException {
+        synchronized (lock) {
+            mCurrentPage = pageIndex;
+            mAwaitingPages.add(pageIndex);
+            releaseOutOfWindow();
+        }
+        try {
+            requestPage(pageIndex);
+            synchronized (lock) {
+                while (true) {
+                    Page<T> page = mPages.get(pageIndex);
+                    if (page != null) {
+                        return Collections.unmodifiableList(page.mValues);
+                    }
+                    if (mLastError != null) {
+                        throw new FirebaseDatabaseSyncException(mLastError);
+                    }
+                    if (mReachedEnd && pageIndex >= mPageStarts.size()) {
+                        return null;
+                    }
+                    if (CallbackUtils.isCanceled(cancelCallback)) {
+                        throw new InterruptedException();
+                    }
+                    lock.wait(FirebaseData.AWAIT_CHECK_INTERVAL_MS);
+                }
+            }
+        } finally {
+            synchronized (lock) {
+                mAwaitingPages.remove(Integer.valueOf(pageIndex));
+            }
+        }
+    }
+
+    /**
+     * ページの読み込みを要求する
+     *
+     * 開始位置が未確定の場合、確定している最後のページから順に読み込む。
+     */
+    private void requestPage(int pageIndex) {
+        int loadIndex;
+        Cursor start;
+        int generation;
+        synchronized (lock) {
+            if (mReference == null) {
+                return;
+            }
+            if (mReachedEnd && pageIndex >= mPageStarts.size()) {
+                return;
+            }
+            mTargetPage = pageIndex;
+            mLastError = null;
+
+            loadIndex = Math.min(pageIndex, mPageStarts.size() - 1);
+            while (mPages.containsKey(loadIndex) && loadIndex < pageIndex) {
+                ++loadIndex;
+            }
+            if (loadIndex >= mPageStarts.size() || mPages.containsKey(loadIndex) || mLoadingPages.contains(loadIndex)) {
+                return;
+            }
+            mLoadingPages.add(loadIndex);
+            start = mPageStarts.get(loadIndex);
+            generation = mGeneration;
+        }
+
+        // 開始位置の要素と、次のページの有無を判定するための要素を追加で取得する
+        final int limit = mPageSize + (start != null ? 1 : 0) + 1;
+        Query query = mOrderByChild != null ? mReference.orderByChild(mOrderByChild) : mReference.orderByKey();
+        if (start != null) {
+            query = startAt(query, start);
+        }
+        final int index = loadIndex;
+        query.limitToFirst(limit).addListenerForSingleValueEvent(new ValueEventListener() {
+            @Override
+            public void onDataChange(DataSnapshot dataSnapshot) {
+                List<DataSnapshot> children = new ArrayList<>();
+                for (DataSnapshot child : dataSnapshot.getChildren()) {
+                    children.add(child);
+                }
+                // デコードはコールバックスレッド外で行う
+                sDecodeExecutor.execute(() -> onPageReceived(index, generation, start, children));
+            }
+
+            @Override
+            public void onCancelled(DatabaseError databaseError) {
+                synchronized (lock) {
+                    mLoadingPages.remove(index);
+                    mLastError = databaseError;
+                    lock.notifyAll();
+                }
+            }
+        });
+    }
+
+    @NonNull
+    private Query startAt(@NonNull Query query, @NonNull Cursor cursor) {
+        if (mOrderByChild == null) {
+            return query.startAt(cursor.mKey);
+        }
+
+        Object value = cursor.mSortValue;
+        if (value == null || value instanceof String) {
+            return query.startAt((String) value, cursor.mKey);
+        } else if (value instanceof Number) {
+            return query.startAt(((Number) value).doubleValue(), cursor.mKey);
+        } else if (value instanceof Boolean) {
+            return query.startAt((Boolean) value, cursor.mKey);
+        } else {
+            throw new IllegalStateException("Unsupported order value :: " + mOrderByChild + " / " + value.getClass());
+        }
+    }
+
+    private void onPageReceived(int pageIndex, int generation, @Nullable Cursor start, @NonNull List<DataSnapshot> children) {
+        int offset = 0;
+        if (start != null && !children.isEmpty() && start.mKey.equals(children.get(0).getKey())) {
+            // 前のページの最後の要素を除外する
+            offset = 1;
+        }
+
+        final int end = Math.min(children.size(), offset + mPageSize);
+        final boolean hasNext = children.size() > end;
+        List<String> keys = new ArrayList<>(end - offset);
+        List<T> values = new ArrayList<>(end - offset);
+        for (int i = offset; i < end; ++i) {
+            DataSnapshot child = children.get(i);
+            keys.add(child.getKey());
+            values.add(FirebaseModelAdapter.decode(child, mValueClass));
+        }
+
+        Cursor nextStart = null;
+        if (hasNext && !keys.isEmpty()) {
+            DataSnapshot last = children.get(end - 1);
+            Object sortValue = mOrderByChild != null ? last.child(mOrderByChild).getValue() : null;
+            nextStart = new Cursor(sortValue, last.getKey());
+        }
+        onPageLoaded(pageIndex, generation, keys, values, nextStart);
+    }
+
+    /**
+     * 読み込んだページを保持する
+     *
+     * @param nextStart 次のページの開始位置, 最後のページの場合はnull
+     */
+    void onPageLoaded(int pageIndex, int generation, @NonNull List<String> keys, @NonNull List<T> values, @Nullable Cursor nextStart) {
+        final boolean hasNext = (nextStart != null);
+        int nextPage = -1;
+        synchronized (lock) {
+            if (generation != mGeneration) {
+                return;
+            }
+            mLoadingPages.remove(pageIndex);
+
+            if (hasNext && mPageStarts.size() == pageIndex + 1) {
+                mPageStarts.add(nextStart);
+            }
+            if (!hasNext) {
+                mReachedEnd = true;
+                // 末尾が確定したため、以降の開始位置は不要となる
+                while (mPageStarts.size() > pageIndex + 1) {
+                    mPageStarts.remove(mPageStarts.size() - 1);
+                }
+            }
+
+            mPages.put(pageIndex, new Page<>(keys, values));
+            mKnownSize = Math.max(mKnownSize, pageIndex * mPageSize + keys.size());
+            releaseOutOfWindow();
+            lock.notifyAll();
+
+            if (mTargetPage > pageIndex && hasNext) {
+                nextPage = mTargetPage;
+            } else {
+                // 要求されたページに到達したか、それ以上ページが無い
+                mTargetPage = -1;
+            }
+        }
+
+        FbLog.debug("PagedList path[%s] page[%d] items[%d] hasNext[%s]", mPath, pageIndex, keys.size(), String.valueOf(hasNext));
+        mBroadcaster.safeEach(OnPageLoadedListener.class, listener -> {
+            listener.onPageLoaded(FirebasePagedList.this, pageIndex);
+        });
+
+        if (nextPage >= 0) {
+            requestPage(nextPage);
+        }
+    }
+
+    /**
+     * 参照中のページから離れたページを破棄する
+     *
+     * lockを保持した状態で呼び出す
+     */
+    private void releaseOutOfWindow() {
+        final int distance = mWindowPages / 2;
+        List<Integer> released = new ArrayList<>();
+        for (Integer index : mPages.keySet()) {
+            if (Math.abs(index - mCurrentPage) > distance && !mAwaitingPages.contains(index)) {
+                released.add(index);
+            }
+        }
+        for (Integer index : released) {
+            mPages.remove(index);
+        }
+    }
+
+    /**
+     * デコードを行うスレッド
+     */
+    private static final ExecutorService sDecodeExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "FirebasePagedList");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public static <T> FirebasePagedList<T> newInstance(Class<T> clazz) {
+        return new FirebasePagedList<>(clazz);
+    }
+}
@@ -0,0 +1,146 @@
+package com.eaglesakura.android.firebase.database;
+
+/**
+ * SystemClock.elapsedRealtime()を基準にしたサーバー時刻
+ *
+ * 端末の時計が変更されても影響を受けず、返却する時刻は巻き戻らない。
+ * 時刻のずれが更新された場合、小さなずれは {@link #SLEW_RATE} の速度で徐々に補正する。
+ * 未来方向への大きなずれのみ即座に補正する。
+ *
+ * 時刻の取得はオブジェクトを生成しない。
+ */
+public class FirebaseServerClock {
+
+    /**
+     * 補正速度
+     *
+     * 経過時間1msあたり、最大でこの値だけ補正する。1未満であるため、補正中も時刻は進み続ける。
+     */
+    public static final double SLEW_RATE = 0.1;
+
+    /**
+     * 即座に補正する、未来方向へのずれの最小値
+     */
+    public static final long MAX_SLEW_MS = 60 * 1000;
+
+    /**
+     * 補正開始時点のずれ(サーバー時刻 - elapsedRealtime)
+     */
+    private long mFromOffset;
+
+    /**
+     * 補正後のずれ(サーバー時刻 - elapsedRealtime)
+     */
+    private long mTargetOffset;
+
+    /**
+     * 補正を開始した時刻(elapsedRealtime)
+     */
+    private long mSlewStartElapsed;
+
+    /**
+     * 最後に返却した時刻
+     */
+    private long mLastTime = Long.MIN_VALUE;
+
+    private boolean mInitialized;
+
+    private final Object lock = new Object();
+
+    /**
+     * 時刻のずれを更新する
+     *
+     * @param serverTime      サーバー時刻
+     * @param elapsedRealtime serverTimeを取得した時点のSystemClock.elapsedRealtime()
+     */
+    public void update(long serverTime, long elapsedRealtime) {
+        final long target = serverTime - elapsedRealtime;
+        synchronized (lock) {
+            if (!mInitialized) {
+                mFromOffset = target;
+                mTargetOffset = target;
+                mSlewStartElapsed = elapsedRealtime;
+                mInitialized = true;
+                return;
+            }
+
+            final long current = offsetAt(elapsedRealtime);
+            if (target - current > MAX_SLEW_MS) {
+                // 未来方向へは巻き戻りが発生しないため、即座に反映する
+                mFromOffset = target;
+            } else {
+                mFromOffset = current;
+            }
+            mTargetOffset = target;
+            mSlewStartElapsed = elapsedRealtime;
+        }
+    }
+
+    /**
+     * 補正を行わずに時刻のずれを設定する
+     *
+     * 推定値で初期化した後、最初に正確な値を得た場合に利用する。この場合のみ時刻が巻き戻る可能性がある。
+     *
+     * @param serverTime      サーバー時刻
+     * @param elapsedRealtime serverTimeを取得した時点のSystemClock.elapsedRealtime()
+     */
+    public void reset(long serverTime, long elapsedRealtime) {
+        final long target = serverTime - elapsedRealtime;
+        synchronized (lock) {
+            mFromOffset = target;
+            mTargetOffset = target;
+            mSlewStartElapsed = elapsedRealtime;
+            mLastTime = Long.MIN_VALUE;
+            mInitialized = true;
+        }
+    }
+
+    /**
+     * 時刻のずれが設定済みであればtrue
+     */
+    public boolean isInitialized() {
+        synchronized (lock) {
+            return mInitialized;
+        }
+    }
+
+    /**
+     * サーバー時刻を取得する
+     *
+     * @param elapsedRealtime 現在のSystemClock.elapsedRealtime()
+     * @return サーバー時刻, 未設定の場合はLong.MIN_VALUE
+     */
+    public long currentTimeMillis(long elapsedRealtime) {
+        synchronized (lock) {
+            if (!mInitialized) {
+                return Long.MIN_VALUE;
+            }
+
+            long result = elapsedRealtime + offsetAt(elapsedRealtime);
+            if (result < mLastTime) {
+                // 複数スレッドから前後して呼び出された場合も巻き戻さない
+                result = mLastTime;
+            }
+            mLastTime = result;
+            return result;
+        }
+    }
+
+    /**
+     * 指定時点で適用するずれを計算する
+     *
+     * lockを保持した状態で呼び出す
+     */
+    private long offsetAt(long elapsedRealtime) {
+        final long delta = mTargetOffset - mFromOffset;
+        if (delta == 0) {
+            return mTargetOffset;
+        }
+
+        final long maxStep = (long) (Math.max(0, elapsedRealtime - mSlewStartElapsed) * SLEW_RATE);
+        if (Math.abs(delta) <= maxStep) {
+            return mTargetOffset;
+        }
+        return delta > 0 ? (mFromOffset + maxStep) : (mFromOffset - maxStep);
+    }
+}
@@ -1,13 +1,244 @@
 package com.eaglesakura.android.firebase.database;
 
+import com.eaglesakura.android.firebase.FbLog;
+import com.eaglesakura.android.firebase.database.dump.FirebaseDumpStore;
+import com.eaglesakura.collection.AnonymousBroadcaster;
+import com.eaglesakura.lambda.CallbackUtils;
+import com.eaglesakura.lambda.CancelCallback;
+import com.eaglesakura.util.StringUtil;
+
+import android.os.SystemClock;
 import android.support.annotation.Keep;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Firebaseのシステムデータを管理する
  */
 public class FirebaseSystemInformation extends FirebaseData<FirebaseSystemInformation.FbInformation> {
+
+    public interface OnOnlineStateChangedListener {
+        /**
+         * オンライン状態が変化した
+         *
+         * @param self   システムデータ
+         * @param online オンラインになった場合はtrue
+         */
+        void onOnlineStateChanged(FirebaseSystemInformation self, boolean online);
+    }
+
+    public interface OnAuthenticatedChangedListener {
+        /**
+         * 認証状態が変化した
+         *
+         * @param self          システムデータ
+         * @param authenticated 認証済みになった場合はtrue
+         */
+        void onAuthenticatedChanged(FirebaseSystemInformation self, boolean authenticated);
+    }
+
+    /**
+     * オンライン/オフライン時間の集計値
+     *
+     * 時間はSystemClock.elapsedRealtime()で計測し、インスタンス生成時点からの値となる。
+     */
+    public static class ConnectionStats {
+        long mOnlineTimeMs;
+
+        long mOfflineTimeMs;
+
+        long mLongestOfflineTimeMs;
+
+        long mLastOfflineTimeMs;
+
+        int mOnlineCount;
+
+        int mOfflineCount;
+
+        ConnectionStats() {
+        }
+
+        ConnectionStats(@NonNull ConnectionStats origin) {
+            mOnlineTimeMs = origin.mOnlineTimeMs;
+            mOfflineTimeMs = origin.mOfflineTimeMs;
+            mLongestOfflineTimeMs = origin.mLongestOfflineTimeMs;
+            mLastOfflineTimeMs = origin.mLastOfflineTimeMs;
+            mOnlineCount = origin.mOnlineCount;
+            mOfflineCount = origin.mOfflineCount;
+        }
+
+        /**
+         * オンラインだった合計時間
+         */
+        public long getOnlineTimeMs() {
+            return mOnlineTimeMs;
+        }
+
+        /**
+         * オフラインだった合計時間
+         */
+        public long getOfflineTimeMs() {
+            return mOfflineTimeMs;
+        }
+
+        /**
+         * 最も長いオフライン時間
+         */
+        public long getLongestOfflineTimeMs() {
+            return mLongestOfflineTimeMs;
+        }
+
+        /**
+         * 最後にオンラインへ復帰するまでのオフライン時間
+         */
+        public long getLastOfflineTimeMs() {
+            return mLastOfflineTimeMs;
+        }
+
+        /**
+         * オンラインになった回数
+         */
+        public int getOnlineCount() {
+            return mOnlineCount;
+        }
+
+        /**
+         * オフラインになった回数
+         */
+        public int getOfflineCount() {
+            return mOfflineCount;
+        }
+    }
+
+    /**
+     * 最後に通知したオンライン状態
+     */
+    private boolean mOnline;
+
+    /**
+     * 最後に通知した認証状態
+     */
+    private boolean mAuthenticated;
+
+    /**
+     * 現在のオンライン/オフライン状態になった時刻(elapsedRealtime)
+     */
+    private long mStateChangedTime;
+
+    private final ConnectionStats mStats = new ConnectionStats();
+
+    /**
+     * 最後に保存したserverTimeOffsetを保持するDumpのKey
+     */
+    static final String SERVER_TIME_OFFSET_DUMP_KEY = "fb-system-info.serverTimeOffset";
+
+    @NonNull
+    private final FirebaseServerClock mServerClock = new FirebaseServerClock();
+
+    /**
+     * サーバーから受信したserverTimeOffsetを反映済みであればtrue
+     */
+    private volatile boolean mServerClockSynced;
+
+    /**
+     * 保存済みのserverTimeOffsetの読み込みを行ったらtrue
+     */
+    private volatile boolean mServerClockRestored;
+
+    /**
+     * 最後に反映したserverTimeOffset
+     */
+    private long mServerTimeOffset;
+
+    /**
+     * 状態変化の待機/通知を行う
+     */
+    private final Object stateLock = new Object();
+
+    /**
+     * コールバック登録
+     */
+    private AnonymousBroadcaster mStateBroadcaster = new AnonymousBroadcaster();
+
     FirebaseSystemInformation() {
         super(FbInformation.class);
+        mStateChangedTime = SystemClock.elapsedRealtime();
+    }
+
+    public FirebaseSystemInformation registerOnOnlineStateChangedListener(OnOnlineStateChangedListener obj) {
+        mStateBroadcaster.register(obj);
+        return this;
+    }
+
+    public FirebaseSystemInformation weakRegisterOnOnlineStateChangedListener(OnOnlineStateChangedListener obj) {
+        mStateBroadcaster.weakRegister(obj);
+        return this;
+    }
+
+    public FirebaseSystemInformation registerOnAuthenticatedChangedListener(OnAuthenticatedChangedListener obj) {
+        mStateBroadcaster.register(obj);
+        return this;
+    }
+
+    public FirebaseSystemInformation weakRegisterOnAuthenticatedChangedListener(OnAuthenticatedChangedListener obj) {
+        mStateBroadcaster.weakRegister(obj);
+        return this;
+    }
+
+    public FirebaseSystemInformation unregister(Object obj) {
+        mStateBroadcaster.unregister(obj);
+        return this;
+    }
+
+    @Override
+    protected void onUpdatedValue(FbInformation value) {
+        super.onUpdatedValue(value);
+        if (value != null && value.connected) {
+            // 接続中のみ、サーバーとの時刻差が計測されている
+            updateServerClock(value.serverTimeOffset);
+        }
+
+        final boolean online = (value != null && value.connected);
+        final boolean authenticated = (value != null && value.authenticated);
+        final boolean onlineChanged;
+        final boolean authenticatedChanged;
+        synchronized (stateLock) {
+            onlineChanged = (online != mOnline);
+            authenticatedChanged = (authenticated != mAuthenticated);
+            if (onlineChanged) {
+                final long now = SystemClock.elapsedRealtime();
+                final long elapsed = now - mStateChangedTime;
+                if (online) {
+                    mStats.mOfflineTimeMs += elapsed;
+                    mStats.mLastOfflineTimeMs = elapsed;
+                    mStats.mLongestOfflineTimeMs = Math.max(mStats.mLongestOfflineTimeMs, elapsed);
+                    ++mStats.mOnlineCount;
+                } else {
+                    mStats.mOnlineTimeMs += elapsed;
+                    ++mStats.mOfflineCount;
+                }
+                mStateChangedTime = now;
+                mOnline = online;
+            }
+            mAuthenticated = authenticated;
+            stateLock.notifyAll();
+        }
+
+        if (onlineChanged) {
+            FbLog.debug("Firebase online[%s]", String.valueOf(online));
+            mStateBroadcaster.safeEach(OnOnlineStateChangedListener.class, listener -> {
+                listener.onOnlineStateChanged(this, online);
+            });
+        }
+        if (authenticatedChanged) {
+            mStateBroadcaster.safeEach(OnAuthenticatedChangedListener.class, listener -> {
+                listener.onAuthenticatedChanged(this, authenticated);
+            });
+        }
     }
 
     /**
@@ -21,8 +252,140 @@ public class FirebaseSystemInformation extends FirebaseData<FirebaseSystemInform
         }
     }
 
+    /**
+     * オンラインになるまで待機する
+     *
+     * 状態の変化で即座に再開するため、isOnline()をループで確認する必要はない。
+     *
+     * @param timeoutMs 最大待機時間, 0以下の場合は無制限に待機する
+     * @throws TimeoutException 指定時間内にオンラインにならなかった
+     */
+    public FirebaseSystemInformation awaitOnline(long timeoutMs, CancelCallback cancelCallback) throws InterruptedException, TimeoutException {
+        final long start = SystemClock.elapsedRealtime();
+        synchronized (stateLock) {
+            while (!mOnline) {
+                if (CallbackUtils.isCanceled(cancelCallback)) {
+                    throw new InterruptedException("awaitOnline canceled");
+                }
+
+                long waitMs = AWAIT_CHECK_INTERVAL_MS;
+                if (timeoutMs > 0) {
+                    final long remain = timeoutMs - (SystemClock.elapsedRealtime() - start);
+                    if (remain <= 0) {
+                        throw new TimeoutException("awaitOnline timeout[" + timeoutMs + " ms]");
+                    }
+                    waitMs = Math.min(waitMs, remain);
+                }
+                // キャンセルの確認のため、一定時間で再開する
+                stateLock.wait(waitMs);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * オンライン/オフライン時間の集計値を取得する
+     *
+     * 現在の状態の経過時間も含める。
+     */
+    @NonNull
+    public ConnectionStats getConnectionStats() {
+        synchronized (stateLock) {
+            ConnectionStats result = new ConnectionStats(mStats);
+            final long elapsed = SystemClock.elapsedRealtime() - mStateChangedTime;
+            if (mOnline) {
+                result.mOnlineTimeMs += elapsed;
+            } else {
+                result.mOfflineTimeMs += elapsed;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * 受信したserverTimeOffsetをサーバー時刻へ反映する
+     */
+    private void updateServerClock(long serverTimeOffset) {
+        final long serverTime = System.currentTimeMillis() + serverTimeOffset;
+        final long elapsed = SystemClock.elapsedRealtime();
+        synchronized (mServerClock) {
+            if (mServerClockSynced && serverTimeOffset == mServerTimeOffset) {
+                return;
+            }
+
+            if (mServerClockSynced) {
+                mServerClock.update(serverTime, elapsed);
+            } else {
+                // 保存済みの推定値は最初の同期で置き換える
+                mServerClock.reset(serverTime, elapsed);
+            }
+            mServerTimeOffset = serverTimeOffset;
+            mServerClockSynced = true;
+            mServerClockRestored = true;
+        }
+
+        try {
+            getDumpStore().put(SERVER_TIME_OFFSET_DUMP_KEY, String.valueOf(serverTimeOffset));
+        } catch (Exception e) {
+            FbLog.debug("serverTimeOffset save failed :: %s", e.toString());
+        }
+    }
+
+    /**
+     * 保存済みのserverTimeOffsetで初期化する
+     */
+    private void restoreServerClock() {
+        synchronized (mServerClock) {
+            if (mServerClockRestored) {
+                return;
+            }
+            mServerClockRestored = true;
+
+            try {
+                FirebaseDumpStore.Entry entry = getDumpStore().get(SERVER_TIME_OFFSET_DUMP_KEY);
+                if (entry != null && !StringUtil.isEmpty(entry.getValue())) {
+                    final long offset = Long.parseLong(entry.getValue());
+                    mServerClock.reset(System.currentTimeMillis() + offset, SystemClock.elapsedRealtime());
+                }
+            } catch (Exception e) {
+                FbLog.debug("serverTimeOffset restore failed :: %s", e.toString());
+            }
+        }
+    }
+
+    /**
+     * サーバー時刻を取得する
+     *
+     * SystemClock.elapsedRealtime()を基準にするため、端末の時計の変更による影響を受けず、返却値は巻き戻らない。
+     * serverTimeOffsetが更新された場合は徐々に補正する。
+     * 未同期の場合は前回保存したserverTimeOffsetを利用し、それも無い場合は端末の時刻を返却する。
+     *
+     * このメソッドはオブジェクトを生成しない。
+     *
+     * @see #isServerTimeSynced()
+     */
+    public long getServerTimeMillis() {
+        if (!mServerClockRestored) {
+            restoreServerClock();
+        }
+
+        final long result = mServerClock.currentTimeMillis(SystemClock.elapsedRealtime());
+        return result != Long.MIN_VALUE ? result : System.currentTimeMillis();
+    }
+
+    /**
+     * サーバーから受信したserverTimeOffsetでサーバー時刻を計算している場合はtrue
+     */
+    public boolean isServerTimeSynced() {
+        return mServerClockSynced;
+    }
+
     /**
      * サーバー時刻を取得する
+     *
+     * 端末の時計が変更されると値が変化する。
+     *
+     * @see #getServerTimeMillis()
      */
     public Long getServerTimeStamp() {
         if (getValue() == null) {
@@ -49,4 +412,37 @@ public class FirebaseSystemInformation extends FirebaseData<FirebaseSystemInform
         @Keep
         public long serverTimeOffset;
     }
+
+    /**
+     * .infoはデータの更新毎に受信するため、リフレクションを用いずに変換する
+     */
+    static final FirebaseModelAdapter<FbInformation> INFORMATION_ADAPTER = new FirebaseModelAdapter<FbInformation>() {
+        @Nullable
+        @Override
+        public FbInformation fromValue(@Nullable Object value) {
+            if (value == null) {
+                return null;
+            }
+            Map<String, Object> map = asMap(value);
+            FbInformation result = new FbInformation();
+            result.authenticated = asBoolean(map.get("authenticated"), false);
+            result.connected = asBoolean(map.get("connected"), false);
+            result.serverTimeOffset = asLong(map.get("serverTimeOffset"), 0);
+            return result;
+        }
+
+        @Nullable
+        @Override
+        public Object toValue(@NonNull FbInformation model) {
+            Map<String, Object> result = new HashMap<>();
+            result.put("authenticated", model.authenticated);
+            result.put("connected", model.connected);
+            result.put("serverTimeOffset", model.serverTimeOffset);
+            return result;
+        }
+    };
+
+    static {
+        FirebaseModelAdapter.register(FbInformation.class, INFORMATION_ADAPTER);
+    }
 }
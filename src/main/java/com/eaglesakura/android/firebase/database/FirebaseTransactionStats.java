@@ -0,0 +1,247 @@
+package com.eaglesakura.android.firebase.database;
+
+import com.google.firebase.database.DatabaseError;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link FirebaseData#transact(com.eaglesakura.lambda.ResultAction1)} のパス毎の統計を管理する
+ *
+ * リトライ回数の多いパスは、複数の端末から同時に更新されている競合箇所である。
+ */
+public class FirebaseTransactionStats {
+
+    /**
+     * 関数がnullを返却して中断した
+     */
+    public static final String ABORT_BY_FUNCTION = "function";
+
+    /**
+     * 関数が例外を投げて中断した
+     */
+    public static final String ABORT_BY_EXCEPTION = "exception";
+
+    /**
+     * Firebaseのリトライ上限に達した
+     */
+    public static final String ABORT_BY_MAX_RETRIES = "maxretries";
+
+    /**
+     * setValue()によって上書きされた
+     */
+    public static final String ABORT_BY_OVERRIDDEN = "overriddenbyset";
+
+    /**
+     * 1パスの統計
+     */
+    public static class PathStats {
+        @NonNull
+        final String mPath;
+
+        /**
+         * 開始したトランザクション数
+         */
+        long mTransactionCount;
+
+        /**
+         * 成功したトランザクション数
+         */
+        long mCommitCount;
+
+        /**
+         * 中断したトランザクション数
+         */
+        long mAbortCount;
+
+        /**
+         * 関数の呼び出し回数の合計
+         */
+        long mAttemptCount;
+
+        /**
+         * 1トランザクションでの最大の関数呼び出し回数
+         */
+        int mMaxAttempts;
+
+        /**
+         * 中断理由毎の回数
+         */
+        final Map<String, Long> mAbortReasons = new HashMap<>();
+
+        PathStats(@NonNull String path) {
+            mPath = path;
+        }
+
+        PathStats(@NonNull PathStats origin) {
+            mPath = origin.mPath;
+            mTransactionCount = origin.mTransactionCount;
+            mCommitCount = origin.mCommitCount;
+            mAbortCount = origin.mAbortCount;
+            mAttemptCount = origin.mAttemptCount;
+            mMaxAttempts = origin.mMaxAttempts;
+            mAbortReasons.putAll(origin.mAbortReasons);
+        }
+
+        @NonNull
+        public String getPath() {
+            return mPath;
+        }
+
+        public long getTransactionCount() {
+            return mTransactionCount;
+        }
+
+        public long getCommitCount() {
+            return mCommitCount;
+        }
+
+        public long getAbortCount() {
+            return mAbortCount;
+        }
+
+        /**
+         * サーバー上の値と競合して再実行された回数を取得する
+         */
+        public long getRetryCount() {
+            return Math.max(0, mAttemptCount - mTransactionCount);
+        }
+
+        public int getMaxAttempts() {
+            return mMaxAttempts;
+        }
+
+        /**
+         * 中断理由毎の回数を取得する
+         */
+        @NonNull
+        public Map<String, Long> getAbortReasons() {
+            return Collections.unmodifiableMap(mAbortReasons);
+        }
+    }
+
+    /**
+     * パス毎の統計
+     */
+    private final Map<String, PathStats> mStats = new HashMap<>();
+
+    private final Object lock = new Object();
+
+    FirebaseTransactionStats() {
+    }
+
+    @NonNull
+    private PathStats getOrCreate(@NonNull String path) {
+        PathStats stats = mStats.get(path);
+        if (stats == null) {
+            stats = new PathStats(path);
+            mStats.put(path, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * トランザクションが成功した
+     *
+     * @param attempts 関数の呼び出し回数
+     */
+    void onCommitted(@NonNull String path, int attempts) {
+        synchronized (lock) {
+            PathStats stats = getOrCreate(path);
+            ++stats.mTransactionCount;
+            ++stats.mCommitCount;
+            stats.mAttemptCount += attempts;
+            stats.mMaxAttempts = Math.max(stats.mMaxAttempts, attempts);
+        }
+    }
+
+    /**
+     * トランザクションが中断した
+     *
+     * @param attempts 関数の呼び出し回数
+     * @param reason   中断理由
+     */
+    void onAborted(@NonNull String path, int attempts, @NonNull String reason) {
+        synchronized (lock) {
+            PathStats stats = getOrCreate(path);
+            ++stats.mTransactionCount;
+            ++stats.mAbortCount;
+            stats.mAttemptCount += attempts;
+            stats.mMaxAttempts = Math.max(stats.mMaxAttempts, attempts);
+            Long count = stats.mAbortReasons.get(reason);
+            stats.mAbortReasons.put(reason, count != null ? (count + 1) : 1);
+        }
+    }
+
+    /**
+     * DatabaseErrorを中断理由に変換する
+     */
+    @NonNull
+    static String toAbortReason(@NonNull DatabaseError error) {
+        switch (error.getCode()) {
+            case DatabaseError.MAX_RETRIES:
+                return ABORT_BY_MAX_RETRIES;
+            case DatabaseError.OVERRIDDEN_BY_SET:
+                return ABORT_BY_OVERRIDDEN;
+            default:
+                return "error:" + error.getCode();
+        }
+    }
+
+    /**
+     * 指定パスの統計を取得する
+     *
+     * @return 統計のコピー, トランザクションが実行されていない場合はnull
+     */
+    @Nullable
+    public PathStats getStats(@NonNull String path) {
+        synchronized (lock) {
+            PathStats stats = mStats.get(path);
+            return stats != null ? new PathStats(stats) : null;
+        }
+    }
+
+    /**
+     * リトライ回数の多い順に統計を取得する
+     *
+     * @param limit 最大件数
+     */
+    @NonNull
+    public List<PathStats> getContendedPaths(int limit) {
+        List<PathStats> result = new ArrayList<>();
+        synchronized (lock) {
+            for (PathStats stats : mStats.values()) {
+                result.add(new PathStats(stats));
+            }
+        }
+        Collections.sort(result, (a, b) -> {
+            long diff = b.getRetryCount() - a.getRetryCount();
+            return diff > 0 ? 1 : (diff < 0 ? -1 : 0);
+        });
+        return result.size() > limit ? new ArrayList<>(result.subList(0, limit)) : result;
+    }
+
+    /**
+     * 統計をリセットする
+     */
+    public void clear() {
+        synchronized (lock) {
+            mStats.clear();
+        }
+    }
+
+    private static FirebaseTransactionStats sInstance;
+
+    public synchronized static FirebaseTransactionStats getInstance() {
+        if (sInstance == null) {
+            sInstance = new FirebaseTransactionStats();
+        }
+        return sInstance;
+    }
+}
@@ -0,0 +1,220 @@
+package com.eaglesakura.android.firebase.database;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.database.DatabaseReference;
+
+import com.eaglesakura.android.firebase.FbLog;
+import com.eaglesakura.android.firebase.database.metrics.FirebaseMetrics;
+import com.eaglesakura.android.firebase.error.FirebaseDatabaseException;
+import com.eaglesakura.android.gms.util.PlayServiceUtil;
+import com.eaglesakura.lambda.CancelCallback;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 複数のFirebaseDataへのコミットをまとめ、1回のMulti-path updateとして送信する
+ *
+ * 送信はupdateChildren()で行われるため、全ての値がアトミックに反映される。
+ * 各インスタンスの値はcommit()の呼び出し時点で反映され、サーバーが拒否した場合はFirebaseからの通知で元の値に戻る。
+ *
+ * <pre>
+ * new FirebaseWriteBatch()
+ *      .set(userData, user)
+ *      .set(profileData, profile)
+ *      .commit(cancelCallback);
+ * </pre>
+ */
+public class FirebaseWriteBatch {
+
+    /**
+     * 1件の書き込み
+     */
+    private static class Write<T> {
+        @NonNull
+        final FirebaseData<T> mData;
+
+        @Nullable
+        final T mValue;
+
+        Write(@NonNull FirebaseData<T> data, @Nullable T value) {
+            mData = data;
+            mValue = value;
+        }
+
+        void apply() {
+            mData.applyCommittedValue(mValue);
+        }
+    }
+
+    /**
+     * パス毎の書き込み
+     *
+     * 同一パスへ複数回書き込んだ場合、最後の値が利用される。
+     */
+    private final Map<String, Write<?>> mWrites = new LinkedHashMap<>();
+
+    private final Object lock = new Object();
+
+    /**
+     * 値を書き込む
+     *
+     * @param data  接続済みのインスタンス
+     * @param value 書き込む値, nullの場合は削除する
+     */
+    public <T> FirebaseWriteBatch set(@NonNull FirebaseData<T> data, @Nullable T value) {
+        String path = data.getPath();
+        if (path == null) {
+            throw new IllegalStateException("FirebaseData not connected");
+        }
+
+        synchronized (lock) {
+            mWrites.put(normalizePath(path), new Write<>(data, value));
+        }
+        return this;
+    }
+
+    /**
+     * 値を削除する
+     */
+    public <T> FirebaseWriteBatch remove(@NonNull FirebaseData<T> data) {
+        return set(data, null);
+    }
+
+    /**
+     * 書き込み予定の件数を取得する
+     */
+    public int size() {
+        synchronized (lock) {
+            return mWrites.size();
+        }
+    }
+
+    /**
+     * まとめてコミットを行う
+     * このメソッドは処理結果を待たずに返却される
+     *
+     * 呼び出し後、このインスタンスは空になり再利用できる。
+     *
+     * @return 全ての書き込みの完了を示すTask
+     */
+    @NonNull
+    public Task<Void> commit() {
+        List<Write<?>> writes;
+        Map<String, Object> values = new HashMap<>();
+        DatabaseReference root = null;
+        synchronized (lock) {
+            validatePaths(mWrites.keySet());
+
+            writes = new ArrayList<>(mWrites.values());
+            for (Map.Entry<String, Write<?>> entry : mWrites.entrySet()) {
+                DatabaseReference reference = entry.getValue().mData.mReference;
+                if (reference == null) {
+                    // モックデータは送信しない
+                    continue;
+                }
+                if (root == null) {
+                    root = reference.getRoot();
+                } else if (root.getDatabase() != reference.getDatabase()) {
+                    throw new IllegalStateException("FirebaseDatabase mismatch :: " + entry.getKey());
+                }
+                values.put(entry.getKey(), FirebaseModelAdapter.encode(entry.getValue().mValue));
+            }
+            mWrites.clear();
+        }
+
+        // commitWindow()やオフラインキューで送信待ちの古い値が、後から上書きしないようにする
+        FirebaseOfflineWriteQueue queue = FirebaseOfflineWriteQueue.peekInstance();
+        for (Write<?> write : writes) {
+            write.mData.discardPendingCommit();
+            if (queue != null) {
+                queue.supersede(write.mData.getPath());
+            }
+        }
+
+        final FirebaseMetrics metrics = FirebaseMetrics.getInstance();
+        final long start = metrics != null ? System.nanoTime() : 0;
+        Task<Void> task = root != null ? root.updateChildren(values) : Tasks.forResult(null);
+        if (metrics != null && root != null) {
+            // 全てのパスに同じ応答時間を記録する
+            final List<String> paths = new ArrayList<>(values.keySet());
+            task.addOnCompleteListener(result -> {
+                long elapsedNano = System.nanoTime() - start;
+                for (String path : paths) {
+                    metrics.onCommit(path, elapsedNano, result.isSuccessful());
+                }
+            });
+        }
+        for (Write<?> write : writes) {
+            write.apply();
+        }
+        FbLog.debug("WriteBatch commit paths[%d]", values.size());
+        return task;
+    }
+
+    /**
+     * まとめてコミットを行い、完了を待つ
+     *
+     * @throws FirebaseDatabaseException サーバーが書き込みを拒否した
+     */
+    public FirebaseWriteBatch commit(CancelCallback cancelCallback) throws InterruptedException, FirebaseDatabaseException {
+        Task<Void> task = PlayServiceUtil.await(commit(), cancelCallback);
+        if (!task.isComplete()) {
+            throw new InterruptedException("WriteBatch canceled");
+        }
+
+        if (!task.isSuccessful()) {
+            throw new FirebaseDatabaseException(task.getException());
+        }
+        return this;
+    }
+
+    /**
+     * ルートからの相対パスに変換する
+     */
+    @NonNull
+    static String normalizePath(@NonNull String path) {
+        int start = 0;
+        int end = path.length();
+        while (start < end && path.charAt(start) == '/') {
+            ++start;
+        }
+        while (end > start && path.charAt(end - 1) == '/') {
+            --end;
+        }
+        return path.substring(start, end);
+    }
+
+    /**
+     * 親子関係にあるパスが含まれていないことを確認する
+     *
+     * updateChildren()は親子関係にあるパスへの同時書き込みを拒否する。
+     */
+    static void validatePaths(@NonNull Collection<String> paths) {
+        Set<String> all = new HashSet<>(paths);
+        for (String path : paths) {
+            if (path.isEmpty() && all.size() > 1) {
+                throw new IllegalStateException("Path overlap :: (root)");
+            }
+
+            String parent = path;
+            int index;
+            while ((index = parent.lastIndexOf('/')) > 0) {
+                parent = parent.substring(0, index);
+                if (all.contains(parent)) {
+                    throw new IllegalStateException("Path overlap :: " + parent + " / " + path);
+                }
+            }
+        }
+    }
+}
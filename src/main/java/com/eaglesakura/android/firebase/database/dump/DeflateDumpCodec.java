@@ -0,0 +1,296 @@
+package com.eaglesakura.android.firebase.database.dump;
+
+import com.eaglesakura.android.firebase.FbLog;
+import com.eaglesakura.android.firebase.database.FirebaseModelAdapter;
+import com.eaglesakura.json.JSON;
+
+import android.support.annotation.IntRange;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Base64;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * データをバイナリとして保持し、大きなデータはDeflate圧縮する形式
+ *
+ * {@link FirebaseModelAdapter} が登録されたクラスは、Adapterが返却する値(Map/List/Long/Double/Boolean/String)を
+ * タグ付きのバイナリとして保持し、復旧時にJSONの解析を行わない。
+ * Adapterの無いクラスはJSONを保持し、閾値未満の場合は圧縮の効果が薄いため、ヘッダを付与せずJSON/Textのまま出力する。
+ * 閾値以上のデータはDeflate圧縮し、TEXTカラムに格納できるようBase64で保持する。
+ *
+ * バージョン1はDeflate圧縮したJSONのみを保持していたため、復旧時はバージョン毎に読み分ける。
+ */
+public class DeflateDumpCodec extends FirebaseDumpCodec {
+
+    /**
+     * 圧縮を行うデータサイズ(byte)のデフォルト値
+     */
+    public static final int DEFAULT_COMPRESS_THRESHOLD_BYTES = 4 * 1024;
+
+    /**
+     * 本体を圧縮している
+     */
+    static final int FLAG_DEFLATE = 0x01;
+
+    /**
+     * 本体がタグ付きのバイナリである, 無い場合はUTF-8のJSON
+     */
+    static final int FLAG_BINARY = 0x02;
+
+    static final int TAG_NULL = 0;
+
+    static final int TAG_FALSE = 1;
+
+    static final int TAG_TRUE = 2;
+
+    static final int TAG_LONG = 3;
+
+    static final int TAG_DOUBLE = 4;
+
+    static final int TAG_STRING = 5;
+
+    static final int TAG_LIST = 6;
+
+    static final int TAG_MAP = 7;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * 圧縮を行うデータサイズ(byte)
+     */
+    private final int mCompressThresholdBytes;
+
+    /**
+     * 圧縮レベル
+     */
+    private final int mCompressLevel;
+
+    public DeflateDumpCodec() {
+        this(DEFAULT_COMPRESS_THRESHOLD_BYTES, Deflater.BEST_SPEED);
+    }
+
+    /**
+     * @param compressThresholdBytes 圧縮を行うデータサイズ(byte)
+     * @param compressLevel          圧縮レベル, {@link Deflater#BEST_SPEED} から {@link Deflater#BEST_COMPRESSION} を指定する
+     */
+    public DeflateDumpCodec(@IntRange(from = 0) int compressThresholdBytes, @IntRange(from = 0, to = 9) int compressLevel) {
+        mCompressThresholdBytes = compressThresholdBytes;
+        mCompressLevel = compressLevel;
+    }
+
+    @NonNull
+    @Override
+    public String getName() {
+        return "deflate";
+    }
+
+    @Override
+    public int getVersion() {
+        return 2;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Nullable
+    @Override
+    public String encode(@NonNull Object value) {
+        FirebaseModelAdapter<Object> adapter = (FirebaseModelAdapter<Object>) FirebaseModelAdapter.get(value.getClass());
+        if (adapter != null) {
+            try {
+                return getHeader() + encodeBody(FLAG_BINARY, encodeBinary(adapter.toValue(value)));
+            } catch (Exception e) {
+                FbLog.debug("Dump encode failed[%s] %s", getName(), e.toString());
+                return null;
+            }
+        }
+
+        String json = JSON.encodeOrNull(value);
+        if (json == null) {
+            return null;
+        }
+
+        byte[] bytes = json.getBytes(UTF_8);
+        if (bytes.length < mCompressThresholdBytes) {
+            // 圧縮の効果が薄いため、JSONのまま保持する
+            return json;
+        }
+
+        try {
+            return getHeader() + encodeBody(0, bytes);
+        } catch (Exception e) {
+            return json;
+        }
+    }
+
+    @NonNull
+    @Override
+    protected String encodePayload(@NonNull Object value) throws Exception {
+        return encodeBody(0, encodeJson(value).getBytes(UTF_8));
+    }
+
+    /**
+     * 先頭にフラグを付与し、閾値以上であれば圧縮する
+     */
+    @NonNull
+    private String encodeBody(int flags, @NonNull byte[] body) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(body.length / 4 + 1);
+        if (body.length < mCompressThresholdBytes) {
+            buffer.write(flags);
+            buffer.write(body);
+        } else {
+            buffer.write(flags | FLAG_DEFLATE);
+            Deflater deflater = new Deflater(mCompressLevel);
+            try {
+                try (OutputStream os = new DeflaterOutputStream(buffer, deflater)) {
+                    os.write(body);
+                }
+            } finally {
+                deflater.end();
+            }
+        }
+        return Base64.encodeToString(buffer.toByteArray(), Base64.NO_WRAP);
+    }
+
+    @Nullable
+    @Override
+    protected <T> T decodePayload(@NonNull String payload, int version, @NonNull Class<T> valueClass) throws Exception {
+        byte[] bytes = Base64.decode(payload, Base64.NO_WRAP);
+        if (version < 2) {
+            try (InputStream is = new InflaterInputStream(new ByteArrayInputStream(bytes))) {
+                return JSON.decode(is, valueClass);
+            }
+        }
+
+        final int flags = bytes[0];
+        InputStream body = new ByteArrayInputStream(bytes, 1, bytes.length - 1);
+        if ((flags & FLAG_DEFLATE) != 0) {
+            body = new InflaterInputStream(body);
+        }
+        try (InputStream is = body) {
+            if ((flags & FLAG_BINARY) == 0) {
+                return JSON.decode(is, valueClass);
+            }
+
+            FirebaseModelAdapter<T> adapter = FirebaseModelAdapter.get(valueClass);
+            if (adapter == null) {
+                FbLog.debug("Dump adapter not found[%s]", valueClass.getName());
+                return null;
+            }
+            return adapter.fromValue(readValue(new DataInputStream(is)));
+        }
+    }
+
+    /**
+     * Adapterが返却した値をタグ付きのバイナリへ変換する
+     */
+    @NonNull
+    static byte[] encodeBinary(@Nullable Object value) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (DataOutputStream os = new DataOutputStream(buffer)) {
+            writeValue(os, value);
+        }
+        return buffer.toByteArray();
+    }
+
+    private static void writeValue(@NonNull DataOutputStream os, @Nullable Object value) throws IOException {
+        if (value == null) {
+            os.writeByte(TAG_NULL);
+        } else if (value instanceof Boolean) {
+            os.writeByte(((Boolean) value) ? TAG_TRUE : TAG_FALSE);
+        } else if (value instanceof Double || value instanceof Float) {
+            os.writeByte(TAG_DOUBLE);
+            os.writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            os.writeByte(TAG_LONG);
+            os.writeLong(((Number) value).longValue());
+        } else if (value instanceof String) {
+            os.writeByte(TAG_STRING);
+            writeString(os, (String) value);
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            os.writeByte(TAG_LIST);
+            os.writeInt(list.size());
+            for (Object item : list) {
+                writeValue(os, item);
+            }
+        } else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            os.writeByte(TAG_MAP);
+            os.writeInt(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                writeString(os, String.valueOf(entry.getKey()));
+                writeValue(os, entry.getValue());
+            }
+        } else {
+            throw new IllegalArgumentException("Unsupported value[" + value.getClass().getName() + "]");
+        }
+    }
+
+    /**
+     * writeUTF()は64KBを超える文字列を扱えないため、長さとUTF-8のバイト列で保持する
+     */
+    private static void writeString(@NonNull DataOutputStream os, @NonNull String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF_8);
+        os.writeInt(bytes.length);
+        os.write(bytes);
+    }
+
+    @Nullable
+    static Object readValue(@NonNull DataInputStream is) throws IOException {
+        final int tag = is.readUnsignedByte();
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_FALSE:
+                return Boolean.FALSE;
+            case TAG_TRUE:
+                return Boolean.TRUE;
+            case TAG_LONG:
+                return is.readLong();
+            case TAG_DOUBLE:
+                return is.readDouble();
+            case TAG_STRING:
+                return readString(is);
+            case TAG_LIST: {
+                final int size = is.readInt();
+                List<Object> result = new ArrayList<>(size);
+                for (int i = 0; i < size; ++i) {
+                    result.add(readValue(is));
+                }
+                return result;
+            }
+            case TAG_MAP: {
+                final int size = is.readInt();
+                Map<String, Object> result = new HashMap<>(size * 4 / 3 + 1);
+                for (int i = 0; i < size; ++i) {
+                    String key = readString(is);
+                    result.put(key, readValue(is));
+                }
+                return result;
+            }
+            default:
+                throw new IOException("Unknown tag[" + tag + "]");
+        }
+    }
+
+    @NonNull
+    private static String readString(@NonNull DataInputStream is) throws IOException {
+        byte[] bytes = new byte[is.readInt()];
+        is.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
@@ -0,0 +1,350 @@
+package com.eaglesakura.android.firebase.database.dump;
+
+import com.eaglesakura.android.firebase.FbLog;
+import com.eaglesakura.json.JSON;
+import com.eaglesakura.util.StringUtil;
+
+import android.support.annotation.IntRange;
+import android.support.annotation.Keep;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * 基準となるDumpと、そこからの差分の列としてDumpを保持する
+ *
+ * 基準のDumpは通常のDumpと同じKeyに {@link FirebaseDumpCodec} の形式で保存されるため、差分に対応しない復旧処理でも基準時点の値を復旧できる。
+ * 差分は {@link #toChainKey(String)} のKeyにJSONで保存され、基準のDumpのCRCで対応を確認する。
+ * 差分の数か差分のサイズが上限を超えた場合、現在の値を新たな基準として保存し直す。
+ *
+ * 差分はJSONのオブジェクト単位で計算し、配列や値は変化した場合に全体を置き換える。
+ */
+public class FirebaseDeltaDump {
+
+    /**
+     * 差分を保存するKeyの接尾辞
+     */
+    public static final String CHAIN_KEY_SUFFIX = "#delta";
+
+    /**
+     * 基準を保存し直すまでの差分数のデフォルト値
+     */
+    public static final int DEFAULT_MAX_CHAIN_LENGTH = 16;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * 1つの変更
+     */
+    public static class Op {
+        /**
+         * 変更対象のパス, 空の場合は全体
+         */
+        @Keep
+        public List<String> p = new ArrayList<>();
+
+        /**
+         * 設定する値
+         */
+        @Keep
+        public Object v;
+
+        /**
+         * 削除する場合はtrue
+         */
+        @Keep
+        public boolean d;
+    }
+
+    /**
+     * 差分として保存される内容
+     */
+    public static class ChainData {
+        /**
+         * 基準のDumpのCRC
+         */
+        @Keep
+        public String base;
+
+        /**
+         * 差分を保存した回数
+         */
+        @Keep
+        public int count;
+
+        /**
+         * 基準からの変更
+         */
+        @Keep
+        public List<Op> ops = new ArrayList<>();
+    }
+
+    /**
+     * 1つのKeyに対する保存状態
+     *
+     * 差分の計算のため、最後に保存した値をメモリ上に保持する。
+     * 保存済みの差分はエンコード済みの文字列として保持し、次回は新しい差分のみをエンコードして連結する。
+     */
+    public static class Chain {
+        @Nullable
+        Map<String, Object> mTree;
+
+        @Nullable
+        String mBase;
+
+        int mCount;
+
+        /**
+         * エンコード済みの差分, カンマ区切りのJSON
+         */
+        @NonNull
+        StringBuilder mEncodedOps = new StringBuilder();
+
+        int mBaseBytes;
+    }
+
+    /**
+     * 差分を保存するKeyを取得する
+     */
+    @NonNull
+    public static String toChainKey(@NonNull String key) {
+        return key + CHAIN_KEY_SUFFIX;
+    }
+
+    /**
+     * 保存する値を計算する
+     *
+     * 前回から変化が無い場合は空のMapを返却する。
+     *
+     * 差分の計算のため、値は毎回JSONへのエンコードとMapへのデコードを1回ずつ行う。
+     * 差分のKeyには基準からの全ての変更を書き込むが、エンコードするのは今回の変更のみである。
+     * 差分のサイズは基準の半分に制限されるため、1回のコストは基準の保存を上回らない。
+     *
+     * @param chain          保存状態, 呼び出し後に更新される
+     * @param key            DumpのKey
+     * @param value          保存する値
+     * @param codec          基準の保存形式
+     * @param maxChainLength 基準を保存し直すまでの差分数
+     * @return 保存するKeyと値, 差分を破棄する場合は差分のKeyに空文字を含む
+     */
+    @NonNull
+    public static Map<String, String> encode(@NonNull Chain chain, @NonNull String key, @Nullable Object value, @NonNull FirebaseDumpCodec codec, @IntRange(from = 1) int maxChainLength) {
+        Map<String, String> result = new HashMap<>();
+        Map<String, Object> tree = toTree(value);
+        if (tree == null) {
+            // オブジェクト以外は差分を取らない
+            String text = value != null ? codec.encode(value) : null;
+            result.put(key, text != null ? text : "");
+            result.put(toChainKey(key), "");
+            chain.mTree = null;
+            return result;
+        }
+
+        if (chain.mTree != null && chain.mCount < maxChainLength) {
+            List<Op> ops = new ArrayList<>();
+            diff(new ArrayList<>(), chain.mTree, tree, ops);
+            if (ops.isEmpty()) {
+                return result;
+            }
+
+            String encodedOps = encodeOps(ops);
+            if (encodedOps != null) {
+                final int count = chain.mCount + 1;
+                final int opsLength = chain.mEncodedOps.length();
+                if (opsLength > 0) {
+                    chain.mEncodedOps.append(',');
+                }
+                chain.mEncodedOps.append(encodedOps);
+                String text = "{\"base\":\"" + chain.mBase + "\",\"count\":" + count + ",\"ops\":[" + chain.mEncodedOps + "]}";
+                // 差分が大きくなった場合は、基準を保存し直す方が書き込み量と復旧時間が少ない
+                if (text.length() <= chain.mBaseBytes / 2) {
+                    chain.mTree = tree;
+                    chain.mCount = count;
+                    result.put(toChainKey(key), text);
+                    return result;
+                }
+                chain.mEncodedOps.setLength(opsLength);
+            }
+        }
+
+        // 基準を保存し直す
+        String base = codec.encode(value);
+        if (base == null) {
+            return result;
+        }
+        chain.mTree = tree;
+        chain.mBase = crc(base);
+        chain.mCount = 0;
+        chain.mEncodedOps.setLength(0);
+        chain.mBaseBytes = base.length();
+        result.put(key, base);
+        result.put(toChainKey(key), "");
+        FbLog.debug("DeltaDump rebase key[%s] bytes[%d]", key, base.length());
+        return result;
+    }
+
+    /**
+     * 変更をカンマ区切りのJSONへエンコードする
+     *
+     * @return エンコード結果, 失敗した場合はnull
+     */
+    @Nullable
+    static String encodeOps(@NonNull List<Op> ops) {
+        StringBuilder result = new StringBuilder();
+        for (Op op : ops) {
+            String json = JSON.encodeOrNull(op);
+            if (json == null) {
+                return null;
+            }
+            if (result.length() > 0) {
+                result.append(',');
+            }
+            result.append(json);
+        }
+        return result.toString();
+    }
+
+    /**
+     * 基準のDumpに差分を適用してデコードする
+     *
+     * 差分が存在しないか、基準と対応しない場合は基準のみをデコードする。
+     *
+     * @param base       基準のDump
+     * @param chain      差分, 存在しない場合はnull
+     * @param valueClass 変換対象クラス
+     */
+    @Nullable
+    public static <T> T decode(@Nullable String base, @Nullable String chain, @NonNull Class<T> valueClass) {
+        if (StringUtil.isEmpty(base)) {
+            return null;
+        }
+        if (StringUtil.isEmpty(chain)) {
+            return FirebaseDumpCodec.decode(base, valueClass);
+        }
+
+        ChainData data = JSON.decodeOrNull(chain, ChainData.class);
+        if (data == null || data.ops == null || !crc(base).equals(data.base)) {
+            FbLog.debug("DeltaDump chain mismatch");
+            return FirebaseDumpCodec.decode(base, valueClass);
+        }
+
+        Object tree = FirebaseDumpCodec.decode(base, Map.class);
+        for (Op op : data.ops) {
+            tree = apply(tree, op);
+        }
+        if (tree == null) {
+            return null;
+        }
+
+        String json = JSON.encodeOrNull(tree);
+        return json != null ? JSON.decodeOrNull(json, valueClass) : null;
+    }
+
+    /**
+     * 値をJSONのオブジェクトとして取得する
+     *
+     * @return オブジェクト, オブジェクトとして表現できない値の場合はnull
+     */
+    @SuppressWarnings("unchecked")
+    @Nullable
+    static Map<String, Object> toTree(@Nullable Object value) {
+        if (value == null) {
+            return null;
+        }
+        String json = JSON.encodeOrNull(value);
+        if (json == null || !json.startsWith("{")) {
+            return null;
+        }
+        return JSON.decodeOrNull(json, Map.class);
+    }
+
+    /**
+     * 2つの値の差分を列挙する
+     */
+    @SuppressWarnings("unchecked")
+    static void diff(@NonNull List<String> path, @Nullable Object from, @Nullable Object to, @NonNull List<Op> out) {
+        if (from instanceof Map && to instanceof Map) {
+            Map<String, Object> fromMap = (Map<String, Object>) from;
+            Map<String, Object> toMap = (Map<String, Object>) to;
+            for (String key : fromMap.keySet()) {
+                if (!toMap.containsKey(key)) {
+                    out.add(newOp(path, key, null, true));
+                }
+            }
+            for (Map.Entry<String, Object> entry : toMap.entrySet()) {
+                if (!fromMap.containsKey(entry.getKey())) {
+                    out.add(newOp(path, entry.getKey(), entry.getValue(), entry.getValue() == null));
+                } else {
+                    List<String> child = new ArrayList<>(path);
+                    child.add(entry.getKey());
+                    diff(child, fromMap.get(entry.getKey()), entry.getValue(), out);
+                }
+            }
+            return;
+        }
+
+        if (from == null ? to != null : !from.equals(to)) {
+            out.add(newOp(path, null, to, to == null));
+        }
+    }
+
+    @NonNull
+    private static Op newOp(@NonNull List<String> path, @Nullable String key, @Nullable Object value, boolean delete) {
+        Op op = new Op();
+        op.p.addAll(path);
+        if (key != null) {
+            op.p.add(key);
+        }
+        op.v = delete ? null : value;
+        op.d = delete;
+        return op;
+    }
+
+    /**
+     * 変更を適用する
+     *
+     * @return 適用後の値
+     */
+    @SuppressWarnings("unchecked")
+    @Nullable
+    static Object apply(@Nullable Object tree, @NonNull Op op) {
+        List<String> path = op.p != null ? op.p : Collections.<String>emptyList();
+        if (path.isEmpty()) {
+            return op.d ? null : op.v;
+        }
+
+        Map<String, Object> root = tree instanceof Map ? (Map<String, Object>) tree : new LinkedHashMap<>();
+        Map<String, Object> current = root;
+        for (int i = 0; i < path.size() - 1; ++i) {
+            Object child = current.get(path.get(i));
+            if (!(child instanceof Map)) {
+                child = new LinkedHashMap<String, Object>();
+                current.put(path.get(i), child);
+            }
+            current = (Map<String, Object>) child;
+        }
+
+        final String last = path.get(path.size() - 1);
+        if (op.d) {
+            current.remove(last);
+        } else {
+            current.put(last, op.v);
+        }
+        return root;
+    }
+
+    @NonNull
+    static String crc(@NonNull String text) {
+        CRC32 crc = new CRC32();
+        crc.update(text.getBytes(UTF_8));
+        return Long.toHexString(crc.getValue()) + ":" + text.length();
+    }
+}
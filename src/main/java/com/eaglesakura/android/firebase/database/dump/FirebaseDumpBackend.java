@@ -0,0 +1,80 @@
+package com.eaglesakura.android.firebase.database.dump;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.Collection;
+
+/**
+ * Dumpデータの実際の保存先
+ *
+ * FirebaseDumpStoreからのみ呼び出され、呼び出しは常に直列化される。
+ */
+public interface FirebaseDumpBackend extends Closeable {
+
+    /**
+     * 値を取得する
+     *
+     * @return 値, 存在しない場合はnull
+     */
+    @Nullable
+    FirebaseDumpStore.Entry get(@NonNull String key);
+
+    /**
+     * 値をまとめて書き込む
+     *
+     * 不可分に反映されるかは保存先による。
+     * TextKeyValueDumpBackendは1トランザクションで反映し、MappedLogDumpBackendは書き込み途中で終了した場合に先頭から一部のみが残る場合がある。
+     *
+     * @param entries 書き込む値, {@link FirebaseDumpStore.Entry#getValue()} がnullの場合は削除する
+     */
+    void write(@NonNull Collection<FirebaseDumpStore.Entry> entries);
+
+    /**
+     * 保存されている全ての値を列挙する
+     *
+     * 値そのものは読み込まず、Keyと書き込み時刻、値のサイズのみを通知する。
+     *
+     * @return 列挙できない場合はfalse
+     */
+    boolean scan(@NonNull KeyVisitor visitor);
+
+    /**
+     * 削除によって不要になった領域を解放する
+     *
+     * 処理に時間がかかるため、バックグラウンドから呼び出される。
+     */
+    void compact();
+
+    @Override
+    void close();
+
+    /**
+     * 列挙された値を受け取る
+     */
+    interface KeyVisitor {
+        /**
+         * @param key   Key
+         * @param date  書き込み時刻
+         * @param bytes 値のサイズ
+         */
+        void visit(@NonNull String key, long date, int bytes);
+    }
+
+    /**
+     * 保存先を生成する
+     */
+    interface Factory {
+        /**
+         * 保存先を開く
+         *
+         * @param context      Application Context
+         * @param databasePath FirebaseData#getDatabasePath()で指定されたパス
+         */
+        @NonNull
+        FirebaseDumpBackend open(@NonNull Context context, @NonNull File databasePath);
+    }
+}
@@ -0,0 +1,230 @@
+package com.eaglesakura.android.firebase.database.dump;
+
+import com.eaglesakura.android.firebase.FbLog;
+import com.eaglesakura.json.JSON;
+import com.eaglesakura.util.StringUtil;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Dumpデータのエンコード形式
+ *
+ * エンコード結果の先頭には形式名とバージョンを示すヘッダが付与される。
+ * ヘッダの無いデータは旧来のJSON/Textとして扱うため、既存のDumpデータもそのまま復旧できる。
+ */
+public abstract class FirebaseDumpCodec {
+
+    /**
+     * ヘッダの開始文字列
+     *
+     * JSONの先頭には現れない制御文字から始める。
+     */
+    static final String HEADER_PREFIX = "\u0001fbd:";
+
+    /**
+     * ヘッダの区切り文字
+     */
+    static final char HEADER_SEPARATOR = ':';
+
+    /**
+     * 形式名を取得する
+     *
+     * ヘッダに記録され、復旧時の形式判定に利用される。
+     */
+    @NonNull
+    public abstract String getName();
+
+    /**
+     * 形式のバージョンを取得する
+     *
+     * 復旧時には、このバージョン以下のデータのみを受け付ける。
+     */
+    public abstract int getVersion();
+
+    /**
+     * ヘッダを含まない本体をエンコードする
+     */
+    @NonNull
+    protected abstract String encodePayload(@NonNull Object value) throws Exception;
+
+    /**
+     * ヘッダを含まない本体をデコードする
+     *
+     * @param payload    本体
+     * @param version    エンコード時のバージョン
+     * @param valueClass 変換対象クラス
+     */
+    @Nullable
+    protected abstract <T> T decodePayload(@NonNull String payload, int version, @NonNull Class<T> valueClass) throws Exception;
+
+    /**
+     * 値をエンコードする
+     *
+     * @return ヘッダ付きのエンコード結果, エンコードに失敗した場合はnull
+     */
+    @Nullable
+    public String encode(@NonNull Object value) {
+        try {
+            return getHeader() + encodePayload(value);
+        } catch (Exception e) {
+            FbLog.debug("Dump encode failed[%s] %s", getName(), e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * 形式名とバージョンを示すヘッダを取得する
+     */
+    @NonNull
+    protected String getHeader() {
+        return HEADER_PREFIX + getName() + HEADER_SEPARATOR + getVersion() + HEADER_SEPARATOR;
+    }
+
+    /**
+     * 値をJSONへエンコードする
+     *
+     * @throws IllegalArgumentException エンコードできない値が指定された
+     */
+    @NonNull
+    static String encodeJson(@NonNull Object value) {
+        String json = JSON.encodeOrNull(value);
+        if (json == null) {
+            throw new IllegalArgumentException("JSON encode failed[" + value.getClass().getName() + "]");
+        }
+        return json;
+    }
+
+    /**
+     * JSON/Text形式
+     *
+     * 互換性のため、ヘッダを付与せずにJSONをそのまま出力する。
+     */
+    public static final FirebaseDumpCodec JSON_TEXT = new FirebaseDumpCodec() {
+        @NonNull
+        @Override
+        public String getName() {
+            return "json";
+        }
+
+        @Override
+        public int getVersion() {
+            return 1;
+        }
+
+        @NonNull
+        @Override
+        protected String encodePayload(@NonNull Object value) throws Exception {
+            return encodeJson(value);
+        }
+
+        @Nullable
+        @Override
+        protected <T> T decodePayload(@NonNull String payload, int version, @NonNull Class<T> valueClass) throws Exception {
+            return JSON.decodeOrNull(payload, valueClass);
+        }
+
+        @Nullable
+        @Override
+        public String encode(@NonNull Object value) {
+            return JSON.encodeOrNull(value);
+        }
+    };
+
+    /**
+     * 登録済みの形式
+     */
+    private static final Map<String, FirebaseDumpCodec> sCodecs = new HashMap<>();
+
+    /**
+     * 標準で利用する形式
+     */
+    private static FirebaseDumpCodec sDefaultCodec = JSON_TEXT;
+
+    static {
+        register(JSON_TEXT);
+        register(new DeflateDumpCodec());
+    }
+
+    /**
+     * 復旧時に利用する形式を登録する
+     *
+     * 同名の形式が登録済みの場合は上書きする。
+     */
+    public static void register(@NonNull FirebaseDumpCodec codec) {
+        synchronized (sCodecs) {
+            sCodecs.put(codec.getName(), codec);
+        }
+    }
+
+    /**
+     * 標準で利用する形式を指定する
+     *
+     * 指定した形式は復旧用にも登録される。
+     */
+    public static void setDefault(@NonNull FirebaseDumpCodec codec) {
+        register(codec);
+        synchronized (sCodecs) {
+            sDefaultCodec = codec;
+        }
+    }
+
+    /**
+     * 標準で利用する形式を取得する
+     */
+    @NonNull
+    public static FirebaseDumpCodec getDefault() {
+        synchronized (sCodecs) {
+            return sDefaultCodec;
+        }
+    }
+
+    /**
+     * Dumpデータをデコードする
+     *
+     * ヘッダが無い場合はJSON/Textとして扱う。
+     * 未知の形式や、登録済みの形式より新しいバージョンの場合はnullを返却する。
+     *
+     * @param text       Dumpデータ
+     * @param valueClass 変換対象クラス
+     */
+    @Nullable
+    public static <T> T decode(@Nullable String text, @NonNull Class<T> valueClass) {
+        if (StringUtil.isEmpty(text)) {
+            return null;
+        }
+
+        if (!text.startsWith(HEADER_PREFIX)) {
+            // 旧来のJSON/Text
+            return JSON.decodeOrNull(text, valueClass);
+        }
+
+        int nameEnd = text.indexOf(HEADER_SEPARATOR, HEADER_PREFIX.length());
+        int versionEnd = nameEnd < 0 ? -1 : text.indexOf(HEADER_SEPARATOR, nameEnd + 1);
+        if (versionEnd < 0) {
+            FbLog.debug("Dump header broken");
+            return null;
+        }
+
+        String name = text.substring(HEADER_PREFIX.length(), nameEnd);
+        FirebaseDumpCodec codec;
+        synchronized (sCodecs) {
+            codec = sCodecs.get(name);
+        }
+
+        try {
+            int version = Integer.parseInt(text.substring(nameEnd + 1, versionEnd));
+            if (codec == null || version > codec.getVersion()) {
+                FbLog.debug("Dump codec not supported[%s] version[%d]", name, version);
+                return null;
+            }
+            return codec.decodePayload(text.substring(versionEnd + 1), version, valueClass);
+        } catch (Exception e) {
+            FbLog.debug("Dump decode failed[%s] %s", name, e.toString());
+            return null;
+        }
+    }
+}
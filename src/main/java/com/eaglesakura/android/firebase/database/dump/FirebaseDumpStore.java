@@ -0,0 +1,1178 @@
+package com.eaglesakura.android.firebase.database.dump;
+
+import com.eaglesakura.android.firebase.FbLog;
+
+import android.content.Context;
+import android.support.annotation.IntRange;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dumpデータの保存先を管理する
+ *
+ * ファイル毎に1インスタンスを共有し、保存先({@link FirebaseDumpBackend})は初回アクセス時に開いたまま保持する。
+ * 書き込みは一旦キューに積まれ、期限到達・件数超過・flush()のいずれかで1回の書き込みにまとめて反映される。
+ * キュー内の値はget()から即座に参照できる。
+ *
+ * 有効期限を指定して書き込まれた値は、期限を過ぎるとget()から参照できなくなり、{@link #sweep(OrphanFilter)} で削除される。
+ * 有効期限は保存先の形式に依存しないよう、値毎に {@link #EXPIRE_KEY_SUFFIX} を付与したKeyへ保存する。
+ */
+public class FirebaseDumpStore {
+
+    /**
+     * 書き込みをキューに保持する最大時間(ms)のデフォルト値
+     */
+    public static final long DEFAULT_FLUSH_DELAY_MS = 1000;
+
+    /**
+     * キューに保持する最大件数のデフォルト値
+     */
+    public static final int DEFAULT_MAX_QUEUE_SIZE = 256;
+
+    /**
+     * 有効期限を保存するKeyの接尾辞
+     *
+     * 値のKeyに付与したKeyへ、有効期限を10進数の文字列で保存する。
+     */
+    public static final String EXPIRE_KEY_SUFFIX = "#expire";
+
+    /**
+     * sweep()で1回に削除する行数のデフォルト値
+     */
+    public static final int DEFAULT_SWEEP_BATCH_SIZE = 64;
+
+    /**
+     * 保存先を整理する間隔(ms)のデフォルト値
+     */
+    public static final long DEFAULT_COMPACT_INTERVAL_MS = 1000 * 3600 * 24;
+
+    /**
+     * startSweep()から最初のsweep()までの時間(ms)
+     *
+     * 起動直後の読み込みと競合しないよう遅延させる。
+     */
+    static final long SWEEP_INITIAL_DELAY_MS = 1000 * 30;
+
+    /**
+     * 1件のDumpデータ
+     */
+    public static class Entry {
+        @NonNull
+        final String mKey;
+
+        /**
+         * 値, nullの場合は削除を示す
+         */
+        @Nullable
+        final String mValue;
+
+        /**
+         * 書き込み時刻
+         */
+        final long mDate;
+
+        /**
+         * 有効期限, 0の場合は無期限
+         */
+        final long mExpireAt;
+
+        public Entry(@NonNull String key, @Nullable String value, long date) {
+            this(key, value, date, 0);
+        }
+
+        public Entry(@NonNull String key, @Nullable String value, long date, long expireAt) {
+            mKey = key;
+            mValue = value;
+            mDate = date;
+            mExpireAt = expireAt;
+        }
+
+        @NonNull
+        public String getKey() {
+            return mKey;
+        }
+
+        @Nullable
+        public String getValue() {
+            return mValue;
+        }
+
+        public long getDate() {
+            return mDate;
+        }
+
+        public long getExpireAt() {
+            return mExpireAt;
+        }
+
+        /**
+         * 有効期限を過ぎている場合はtrue
+         */
+        public boolean isExpired(long now) {
+            return mExpireAt > 0 && now >= mExpireAt;
+        }
+    }
+
+    /**
+     * 孤立した値を判定する
+     *
+     * 接続先のパスやスキーマの変更で参照されなくなったKeyを削除するために利用する。
+     */
+    public interface OrphanFilter {
+        /**
+         * @param key  Key
+         * @param date 書き込み時刻
+         * @return 削除する場合はtrue
+         */
+        boolean isOrphan(@NonNull String key, long date);
+    }
+
+    /**
+     * Keyの先頭部分毎の保存量
+     */
+    public static class PrefixStats {
+        @NonNull
+        final String mPrefix;
+
+        int mCount;
+
+        long mBytes;
+
+        PrefixStats(@NonNull String prefix) {
+            mPrefix = prefix;
+        }
+
+        @NonNull
+        public String getPrefix() {
+            return mPrefix;
+        }
+
+        /**
+         * 行数
+         */
+        public int getCount() {
+            return mCount;
+        }
+
+        /**
+         * 値の合計サイズ
+         */
+        public long getBytes() {
+            return mBytes;
+        }
+    }
+
+    @NonNull
+    final Context mContext;
+
+    @NonNull
+    final File mDatabasePath;
+
+    /**
+     * 書き込み待ちのデータ
+     */
+    private final Map<String, Entry> mQueue = new LinkedHashMap<>();
+
+    /**
+     * 書き込み中のデータ
+     *
+     * 書き込みが完了するまではget()から参照できるようにする。
+     */
+    private Map<String, Entry> mFlushing = new HashMap<>();
+
+    /**
+     * 遅延書き込みのタスク
+     */
+    @Nullable
+    private ScheduledFuture<?> mFlushTask;
+
+    /**
+     * 遅延して開かれる保存先
+     */
+    @Nullable
+    private FirebaseDumpBackend mBackend;
+
+    private long mFlushDelayMs = DEFAULT_FLUSH_DELAY_MS;
+
+    private int mMaxQueueSize = DEFAULT_MAX_QUEUE_SIZE;
+
+    /**
+     * 定期的なsweep()のタスク
+     */
+    @Nullable
+    private ScheduledFuture<?> mSweepTask;
+
+    private int mSweepBatchSize = DEFAULT_SWEEP_BATCH_SIZE;
+
+    private long mCompactIntervalMs = DEFAULT_COMPACT_INTERVAL_MS;
+
+    /**
+     * 最後に保存先を整理した時刻, ioLockで保護する
+     */
+    private long mLastCompactDate;
+
+    /**
+     * キューに積まれた行数
+     */
+    private long mQueuedRowCount;
+
+    /**
+     * 同一Keyへの書き込みで上書きされ、ストレージに書き込まれなかった行数
+     */
+    private long mCoalescedRowCount;
+
+    /**
+     * 書き込みを行った行数
+     */
+    private long mFlushedRowCount;
+
+    /**
+     * 書き込みを行った回数
+     */
+    private long mFlushCount;
+
+    /**
+     * 書き込みにかかった合計時間(ms)
+     */
+    private long mTotalFlushTimeMs;
+
+    /**
+     * 書き込みにかかった最大時間(ms)
+     */
+    private long mMaxFlushTimeMs;
+
+    /**
+     * sweep()を行った回数
+     */
+    private long mSweepCount;
+
+    /**
+     * sweep()で削除した期限切れの行数
+     */
+    private long mExpiredRowCount;
+
+    /**
+     * sweep()で削除した孤立した行数
+     */
+    private long mOrphanRowCount;
+
+    /**
+     * 保存先を整理した回数
+     */
+    private long mCompactCount;
+
+    /**
+     * キュー操作用のlock
+     */
+    private final Object lock = new Object();
+
+    /**
+     * 保存先操作用のlock
+     */
+    private final Object ioLock = new Object();
+
+    FirebaseDumpStore(@NonNull Context context, @NonNull File databasePath) {
+        mContext = context.getApplicationContext();
+        mDatabasePath = databasePath;
+        mLastCompactDate = System.currentTimeMillis();
+    }
+
+    @NonNull
+    public File getDatabasePath() {
+        return mDatabasePath;
+    }
+
+    /**
+     * 書き込みをキューに保持する最大時間(ms)を指定する
+     *
+     * 0以下の場合、put()毎に即座に書き込む。
+     */
+    public FirebaseDumpStore setFlushDelayMs(long flushDelayMs) {
+        synchronized (lock) {
+            mFlushDelayMs = flushDelayMs;
+        }
+        return this;
+    }
+
+    /**
+     * キューに保持する最大件数を指定する
+     *
+     * 件数を超えた時点で書き込みを行う。
+     */
+    public FirebaseDumpStore setMaxQueueSize(@IntRange(from = 1) int maxQueueSize) {
+        synchronized (lock) {
+            mMaxQueueSize = maxQueueSize;
+        }
+        return this;
+    }
+
+    /**
+     * sweep()で1回に削除する行数を指定する
+     *
+     * 削除の間は保存先をロックするため、読み書きを待たせる時間を制限する。
+     */
+    public FirebaseDumpStore setSweepBatchSize(@IntRange(from = 1) int sweepBatchSize) {
+        synchronized (lock) {
+            mSweepBatchSize = sweepBatchSize;
+        }
+        return this;
+    }
+
+    /**
+     * 保存先を整理する間隔(ms)を指定する
+     *
+     * sweep()の時点で前回の整理から指定時間が経過していれば、削除が無くても整理する。
+     */
+    public FirebaseDumpStore setCompactIntervalMs(long compactIntervalMs) {
+        synchronized (lock) {
+            mCompactIntervalMs = compactIntervalMs;
+        }
+        return this;
+    }
+
+    /**
+     * 値を書き込む
+     */
+    public void put(@NonNull String key, @NonNull String value) {
+        put(key, value, 0);
+    }
+
+    /**
+     * 有効期限を指定して値を書き込む
+     *
+     * @param ttlMs 有効期間(ms), 0以下の場合は無期限
+     */
+    public void put(@NonNull String key, @NonNull String value, long ttlMs) {
+        final long date = System.currentTimeMillis();
+        enqueue(new Entry(key, value, date, toExpireAt(date, ttlMs)));
+    }
+
+    /**
+     * 値を削除する
+     */
+    public void remove(@NonNull String key) {
+        enqueue(new Entry(key, null, System.currentTimeMillis()));
+    }
+
+    /**
+     * 複数の値をまとめて書き込む
+     *
+     * 全ての値を1度にキューに積むため、同じ書き込みで反映される。
+     */
+    public void putAll(@NonNull Map<String, String> values) {
+        putAll(values, 0);
+    }
+
+    /**
+     * 有効期限を指定して複数の値をまとめて書き込む
+     *
+     * put()と同じく、件数超過時を除いて呼び出し元では書き込まない。
+     *
+     * @param ttlMs 有効期間(ms), 0以下の場合は無期限
+     */
+    public void putAll(@NonNull Map<String, String> values, long ttlMs) {
+        final long date = System.currentTimeMillis();
+        final long expireAt = toExpireAt(date, ttlMs);
+        boolean flushNow;
+        synchronized (lock) {
+            for (Map.Entry<String, String> value : values.entrySet()) {
+                enqueueLocked(new Entry(value.getKey(), value.getValue(), date, expireAt));
+            }
+            flushNow = scheduleFlushLocked();
+        }
+
+        if (flushNow) {
+            flush();
+        }
+    }
+
+    /**
+     * 複数の値を、キューに積まれていた値と共に1回の書き込みで即座に反映する
+     *
+     * 保存先がトランザクションに対応している場合(TextKeyValueDumpBackend)、全ての値が反映されるか、いずれも反映されない。
+     * 書き込みに失敗した場合は例外を投げる。
+     *
+     * @param entries 書き込む値, {@link Entry#getValue()} がnullの場合は削除する
+     */
+    public void writeAll(@NonNull Collection<Entry> entries) {
+        synchronized (lock) {
+            for (Entry entry : entries) {
+                enqueueLocked(entry);
+            }
+        }
+        flush();
+    }
+
+    /**
+     * 有効期間から有効期限を計算する
+     *
+     * @param date  書き込み時刻
+     * @param ttlMs 有効期間(ms), 0以下の場合は無期限
+     * @return 有効期限, 無期限の場合は0
+     */
+    public static long toExpireAt(long date, long ttlMs) {
+        return ttlMs > 0 ? (date + ttlMs) : 0;
+    }
+
+    /**
+     * lockを保持した状態で呼び出す
+     */
+    private void enqueueLocked(Entry entry) {
+        if (mQueue.put(entry.mKey, entry) != null) {
+            ++mCoalescedRowCount;
+        }
+        ++mQueuedRowCount;
+    }
+
+    /**
+     * 遅延書き込みを予約する
+     *
+     * lockを保持した状態で呼び出す。
+     *
+     * @return 即座に書き込む必要がある場合true
+     */
+    private boolean scheduleFlushLocked() {
+        if (mFlushDelayMs <= 0 || mQueue.size() >= mMaxQueueSize) {
+            return true;
+        } else if (mFlushTask == null) {
+            mFlushTask = sFlushExecutor.schedule(this::flushScheduled, mFlushDelayMs, TimeUnit.MILLISECONDS);
+        }
+        return false;
+    }
+
+    private void enqueue(Entry entry) {
+        boolean flushNow;
+        synchronized (lock) {
+            enqueueLocked(entry);
+            flushNow = scheduleFlushLocked();
+        }
+
+        if (flushNow) {
+            flush();
+        }
+    }
+
+    /**
+     * 値を取得する
+     *
+     * 書き込み待ちの値がある場合、その値を返却する。
+     *
+     * @return 値, 存在しないか削除待ち、期限切れの場合はnull
+     */
+    @Nullable
+    public Entry get(@NonNull String key) {
+        final long now = System.currentTimeMillis();
+        synchronized (lock) {
+            Entry entry = mQueue.get(key);
+            if (entry == null) {
+                entry = mFlushing.get(key);
+            }
+            if (entry != null) {
+                return (entry.mValue != null && !entry.isExpired(now)) ? entry : null;
+            }
+        }
+
+        synchronized (ioLock) {
+            return readLocked(openBackend(), key, now);
+        }
+    }
+
+    /**
+     * 複数の値を取得する
+     *
+     * 保存先を1度だけロックし、まとめて読み込む。
+     *
+     * @return Keyと値のMap, 存在しないKeyは含まれない
+     */
+    @NonNull
+    public Map<String, Entry> getAll(@NonNull Iterable<String> keys) {
+        final long now = System.currentTimeMillis();
+        Map<String, Entry> result = new HashMap<>();
+        List<String> readKeys = new ArrayList<>();
+        synchronized (lock) {
+            for (String key : keys) {
+                Entry entry = mQueue.get(key);
+                if (entry == null) {
+                    entry = mFlushing.get(key);
+                }
+
+                if (entry == null) {
+                    readKeys.add(key);
+                } else if (entry.mValue != null && !entry.isExpired(now)) {
+                    result.put(key, entry);
+                }
+            }
+        }
+
+        if (readKeys.isEmpty()) {
+            return result;
+        }
+
+        synchronized (ioLock) {
+            FirebaseDumpBackend backend = openBackend();
+            for (String key : readKeys) {
+                Entry entry = readLocked(backend, key, now);
+                if (entry != null) {
+                    result.put(key, entry);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * ioLockを保持した状態で呼び出す
+     *
+     * @return 値, 存在しないか期限切れの場合はnull
+     */
+    @Nullable
+    private Entry readLocked(@NonNull FirebaseDumpBackend backend, @NonNull String key, long now) {
+        Entry entry = backend.get(key);
+        if (entry == null) {
+            return null;
+        }
+        final long expireAt = readExpireAt(backend, key);
+        if (expireAt <= 0) {
+            return entry;
+        }
+        entry = new Entry(key, entry.mValue, entry.mDate, expireAt);
+        return entry.isExpired(now) ? null : entry;
+    }
+
+    /**
+     * ioLockを保持した状態で呼び出す
+     *
+     * @return 有効期限, 保存されていない場合は0
+     */
+    private static long readExpireAt(@NonNull FirebaseDumpBackend backend, @NonNull String key) {
+        Entry entry = backend.get(toExpireKey(key));
+        if (entry == null || entry.mValue == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(entry.mValue);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * ioLockを保持した状態で呼び出す
+     *
+     * 有効期限の行も同じ書き込みで反映する。
+     * 有効期限の無い値を書き込んだ場合は、以前の有効期限が保存されている場合のみ削除する。
+     */
+    private void writeLocked(@NonNull Collection<Entry> entries) {
+        FirebaseDumpBackend backend = openBackend();
+        Set<String> keys = new HashSet<>();
+        for (Entry entry : entries) {
+            keys.add(entry.mKey);
+        }
+
+        List<Entry> rows = new ArrayList<>(entries);
+        for (Entry entry : entries) {
+            final String expireKey = toExpireKey(entry.mKey);
+            if (isExpireKey(entry.mKey) || keys.contains(expireKey)) {
+                continue;
+            }
+
+            if (entry.mValue != null && entry.mExpireAt > 0) {
+                rows.add(new Entry(expireKey, String.valueOf(entry.mExpireAt), entry.mDate));
+
+                // 差分のみを書き込んだ場合、基準の有効期限も延長する
+                if (entry.mKey.endsWith(FirebaseDeltaDump.CHAIN_KEY_SUFFIX) && !entry.mValue.isEmpty()) {
+                    String baseKey = toBaseKey(entry.mKey);
+                    if (!keys.contains(baseKey)) {
+                        long baseExpireAt = readExpireAt(backend, baseKey);
+                        if (baseExpireAt > 0 && baseExpireAt < entry.mExpireAt) {
+                            rows.add(new Entry(toExpireKey(baseKey), String.valueOf(entry.mExpireAt), entry.mDate));
+                        }
+                    }
+                }
+            } else if (backend.get(expireKey) != null) {
+                rows.add(new Entry(expireKey, null, entry.mDate));
+            }
+        }
+        backend.write(rows);
+    }
+
+    /**
+     * 遅延書き込みを行う
+     *
+     * 失敗した値はキューに戻っているため、次の遅延書き込みを予約する。
+     */
+    private void flushScheduled() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            FbLog.debug("Dump flush failed[%s] %s", mDatabasePath.getName(), e.toString());
+            synchronized (lock) {
+                if (!mQueue.isEmpty() && mFlushDelayMs > 0 && mFlushTask == null) {
+                    mFlushTask = sFlushExecutor.schedule(this::flushScheduled, mFlushDelayMs, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+    }
+
+    /**
+     * 書き込み待ちの値を全てストレージへ反映する
+     *
+     * 書き込みに失敗した場合、値をキューに戻して例外を投げる。
+     * 書き込み中に同じKeyへ新しい値が積まれていた場合は、新しい値を優先する。
+     */
+    public void flush() {
+        synchronized (ioLock) {
+            Map<String, Entry> batch;
+            synchronized (lock) {
+                if (mFlushTask != null) {
+                    mFlushTask.cancel(false);
+                    mFlushTask = null;
+                }
+                if (mQueue.isEmpty()) {
+                    return;
+                }
+                batch = new LinkedHashMap<>(mQueue);
+                mQueue.clear();
+                mFlushing = batch;
+            }
+
+            final long startTime = System.currentTimeMillis();
+            try {
+                writeLocked(batch.values());
+            } catch (RuntimeException e) {
+                synchronized (lock) {
+                    // 書き込み中に積まれた値の方が新しいため、存在しないKeyのみを戻す
+                    Map<String, Entry> queue = new LinkedHashMap<>(batch);
+                    queue.putAll(mQueue);
+                    mQueue.clear();
+                    mQueue.putAll(queue);
+                    mFlushing = new HashMap<>();
+                }
+                throw e;
+            }
+
+            final long flushTime = System.currentTimeMillis() - startTime;
+            synchronized (lock) {
+                mFlushing = new HashMap<>();
+                mFlushedRowCount += batch.size();
+                ++mFlushCount;
+                mTotalFlushTimeMs += flushTime;
+                mMaxFlushTimeMs = Math.max(mMaxFlushTimeMs, flushTime);
+            }
+            FbLog.debug("Dump flush rows[%d] time[%d ms]", batch.size(), flushTime);
+        }
+    }
+
+    /**
+     * 書き込み待ちの値を反映し、保存先を閉じる
+     *
+     * 再度アクセスした時点で自動的に開き直される。
+     */
+    public void close() {
+        flush();
+        synchronized (ioLock) {
+            if (mBackend != null) {
+                mBackend.close();
+                mBackend = null;
+            }
+        }
+    }
+
+    /**
+     * 一定時間以上書き込まれていない値を孤立した値として扱う
+     *
+     * 復旧のみを行い、再度Dumpされない値も削除されるため、間隔は十分に長く取る。
+     *
+     * @param idleTimeMs 孤立したとみなす時間(ms)
+     */
+    @NonNull
+    public static OrphanFilter idleFor(long idleTimeMs) {
+        return (key, date) -> date > 0 && (System.currentTimeMillis() - date) > idleTimeMs;
+    }
+
+    /**
+     * 期限切れの値と孤立した値を削除する
+     *
+     * 差分Dumpのうち、基準が存在しない差分は常に孤立した値として扱う。
+     * 削除は {@link #setSweepBatchSize(int)} 行毎に分けて行い、その間は通常の読み書きを受け付ける。
+     * 列挙後に書き込まれた値と、書き込み待ちの値は削除しない。
+     * 一定行数以上を削除した場合か、前回の整理から {@link #setCompactIntervalMs(long)} 以上経過した場合は保存先を整理する。
+     *
+     * @param filter 孤立した値の判定, nullの場合は期限切れと基準の無い差分のみを削除する
+     * @return 削除した行数
+     */
+    public int sweep(@Nullable OrphanFilter filter) {
+        flush();
+
+        final long now = System.currentTimeMillis();
+        final Map<String, Long> dates = new HashMap<>();
+        final Map<String, Long> expireAts = new HashMap<>();
+        synchronized (ioLock) {
+            FirebaseDumpBackend backend = openBackend();
+            if (!backend.scan((key, date, bytes) -> dates.put(key, date))) {
+                FbLog.debug("Dump sweep skipped[%s]", mDatabasePath.getName());
+                return 0;
+            }
+            for (String key : dates.keySet()) {
+                if (isExpireKey(key)) {
+                    String owner = toExpireOwnerKey(key);
+                    expireAts.put(owner, readExpireAt(backend, owner));
+                }
+            }
+        }
+
+        Set<String> expired = new LinkedHashSet<>();
+        Set<String> orphans = new LinkedHashSet<>();
+        Set<String> expireRows = new LinkedHashSet<>();
+        for (Map.Entry<String, Long> entry : dates.entrySet()) {
+            final String key = entry.getKey();
+            if (isExpireKey(key)) {
+                // 値の無い有効期限は削除する
+                if (!dates.containsKey(toExpireOwnerKey(key))) {
+                    expireRows.add(key);
+                }
+                continue;
+            }
+
+            Long expireAt = expireAts.get(key);
+            if (expireAt != null && expireAt > 0 && now >= expireAt) {
+                expired.add(key);
+            } else if (filter != null && filter.isOrphan(key, entry.getValue())) {
+                orphans.add(key);
+            } else if (key.endsWith(FirebaseDeltaDump.CHAIN_KEY_SUFFIX) && !dates.containsKey(toBaseKey(key))) {
+                orphans.add(key);
+            }
+        }
+
+        // 基準を削除する場合は差分も削除する
+        for (String key : new ArrayList<>(expired)) {
+            String chainKey = FirebaseDeltaDump.toChainKey(key);
+            if (dates.containsKey(chainKey) && !orphans.contains(chainKey)) {
+                expired.add(chainKey);
+            }
+        }
+        for (String key : new ArrayList<>(orphans)) {
+            String chainKey = FirebaseDeltaDump.toChainKey(key);
+            if (dates.containsKey(chainKey) && !expired.contains(chainKey)) {
+                orphans.add(chainKey);
+            }
+        }
+
+        final int batchSize;
+        final long compactIntervalMs;
+        synchronized (lock) {
+            batchSize = mSweepBatchSize;
+            compactIntervalMs = mCompactIntervalMs;
+        }
+
+        // 値と共に有効期限も削除する
+        for (String key : expired) {
+            if (dates.containsKey(toExpireKey(key))) {
+                expireRows.add(toExpireKey(key));
+            }
+        }
+        for (String key : orphans) {
+            if (dates.containsKey(toExpireKey(key))) {
+                expireRows.add(toExpireKey(key));
+            }
+        }
+
+        List<String> targets = new ArrayList<>(expired);
+        targets.addAll(orphans);
+        targets.addAll(expireRows);
+        int expiredRows = 0;
+        int orphanRows = 0;
+        for (int i = 0; i < targets.size(); i += batchSize) {
+            List<String> part = targets.subList(i, Math.min(targets.size(), i + batchSize));
+            synchronized (ioLock) {
+                FirebaseDumpBackend backend = openBackend();
+                List<Entry> rows = new ArrayList<>();
+                synchronized (lock) {
+                    for (String key : part) {
+                        String owner = isExpireKey(key) ? toExpireOwnerKey(key) : key;
+                        if (isPendingLocked(owner) || isPendingLocked(toBaseKey(owner))) {
+                            continue;
+                        }
+                        rows.add(new Entry(key, null, now));
+                    }
+                }
+
+                Iterator<Entry> iterator = rows.iterator();
+                while (iterator.hasNext()) {
+                    // 列挙後に書き込まれた値は残す
+                    Entry current = backend.get(iterator.next().mKey);
+                    if (current == null || current.mDate != dates.get(current.mKey)) {
+                        iterator.remove();
+                    }
+                }
+
+                if (!rows.isEmpty()) {
+                    writeLocked(rows);
+                    for (Entry row : rows) {
+                        if (expired.contains(row.mKey)) {
+                            ++expiredRows;
+                        } else if (orphans.contains(row.mKey)) {
+                            ++orphanRows;
+                        }
+                    }
+                }
+            }
+        }
+
+        final int deleted = expiredRows + orphanRows;
+        boolean compacted = false;
+        synchronized (ioLock) {
+            if (deleted >= batchSize || (now - mLastCompactDate) >= compactIntervalMs) {
+                openBackend().compact();
+                mLastCompactDate = System.currentTimeMillis();
+                compacted = true;
+            }
+        }
+
+        synchronized (lock) {
+            ++mSweepCount;
+            mExpiredRowCount += expiredRows;
+            mOrphanRowCount += orphanRows;
+            if (compacted) {
+                ++mCompactCount;
+            }
+        }
+        FbLog.debug("Dump sweep[%s] rows[%d] expired[%d] orphan[%d] compact[%s] time[%d ms]",
+                mDatabasePath.getName(), dates.size(), expiredRows, orphanRows, String.valueOf(compacted), System.currentTimeMillis() - now);
+        return deleted;
+    }
+
+    /**
+     * lockを保持した状態で呼び出す
+     */
+    private boolean isPendingLocked(@NonNull String key) {
+        return mQueue.containsKey(key) || mFlushing.containsKey(key);
+    }
+
+    /**
+     * 有効期限を保存するKeyを取得する
+     */
+    @NonNull
+    static String toExpireKey(@NonNull String key) {
+        return key + EXPIRE_KEY_SUFFIX;
+    }
+
+    private static boolean isExpireKey(@NonNull String key) {
+        return key.endsWith(EXPIRE_KEY_SUFFIX);
+    }
+
+    /**
+     * 有効期限のKeyから、値のKeyを取得する
+     */
+    @NonNull
+    private static String toExpireOwnerKey(@NonNull String expireKey) {
+        return expireKey.substring(0, expireKey.length() - EXPIRE_KEY_SUFFIX.length());
+    }
+
+    /**
+     * 差分のKeyであれば基準のKeyを返却し、そうでなければそのまま返却する
+     */
+    @NonNull
+    private static String toBaseKey(@NonNull String key) {
+        if (key.endsWith(FirebaseDeltaDump.CHAIN_KEY_SUFFIX)) {
+            return key.substring(0, key.length() - FirebaseDeltaDump.CHAIN_KEY_SUFFIX.length());
+        }
+        return key;
+    }
+
+    /**
+     * 定期的にsweep()を行う
+     *
+     * 既に開始している場合は設定を置き換える。
+     *
+     * @param intervalMs sweep()の間隔(ms)
+     * @param filter     孤立した値の判定
+     */
+    public FirebaseDumpStore startSweep(long intervalMs, @Nullable OrphanFilter filter) {
+        synchronized (lock) {
+            if (mSweepTask != null) {
+                mSweepTask.cancel(false);
+            }
+            mSweepTask = sSweepExecutor.scheduleWithFixedDelay(() -> {
+                try {
+                    sweep(filter);
+                } catch (RuntimeException e) {
+                    // 例外で定期実行が停止しないようにする
+                    FbLog.debug("Dump sweep failed[%s] %s", mDatabasePath.getName(), e.toString());
+                }
+            }, Math.min(intervalMs, SWEEP_INITIAL_DELAY_MS), intervalMs, TimeUnit.MILLISECONDS);
+        }
+        return this;
+    }
+
+    /**
+     * 定期的なsweep()を停止する
+     */
+    public FirebaseDumpStore stopSweep() {
+        synchronized (lock) {
+            if (mSweepTask != null) {
+                mSweepTask.cancel(false);
+                mSweepTask = null;
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Keyの先頭部分毎の保存量を取得する
+     *
+     * 先頭部分はKeyの最初の'/', '@', '#'の手前までとする。書き込み待ちの値は反映してから集計する。
+     *
+     * @return 保存量の大きい順
+     */
+    @NonNull
+    public List<PrefixStats> getPrefixStats() {
+        flush();
+
+        final Map<String, PrefixStats> stats = new HashMap<>();
+        synchronized (ioLock) {
+            openBackend().scan((key, date, bytes) -> {
+                if (isExpireKey(key)) {
+                    return;
+                }
+                String prefix = toPrefix(key);
+                PrefixStats item = stats.get(prefix);
+                if (item == null) {
+                    item = new PrefixStats(prefix);
+                    stats.put(prefix, item);
+                }
+                ++item.mCount;
+                item.mBytes += bytes;
+            });
+        }
+
+        List<PrefixStats> result = new ArrayList<>(stats.values());
+        Collections.sort(result, (a, b) -> a.mBytes == b.mBytes ? 0 : (a.mBytes < b.mBytes ? 1 : -1));
+        return result;
+    }
+
+    /**
+     * 集計に利用するKeyの先頭部分を取得する
+     */
+    @NonNull
+    static String toPrefix(@NonNull String key) {
+        final int start = key.startsWith("/") ? 1 : 0;
+        for (int i = start; i < key.length(); ++i) {
+            final char c = key.charAt(i);
+            if (c == '/' || c == '@' || c == '#') {
+                return key.substring(0, i);
+            }
+        }
+        return key;
+    }
+
+    /**
+     * ioLockを保持した状態で呼び出す
+     */
+    @NonNull
+    private FirebaseDumpBackend openBackend() {
+        if (mBackend == null) {
+            FirebaseDumpBackend.Factory factory;
+            synchronized (sInstances) {
+                factory = sBackendFactory;
+            }
+            mBackend = factory.open(mContext, mDatabasePath);
+        }
+        return mBackend;
+    }
+
+    /**
+     * 書き込み待ちの行数を取得する
+     */
+    @IntRange(from = 0)
+    public int getPendingRowCount() {
+        synchronized (lock) {
+            return mQueue.size();
+        }
+    }
+
+    /**
+     * キューに積まれた行数を取得する
+     */
+    public long getQueuedRowCount() {
+        synchronized (lock) {
+            return mQueuedRowCount;
+        }
+    }
+
+    /**
+     * 同一Keyへの書き込みで上書きされ、ストレージに書き込まれなかった行数を取得する
+     */
+    public long getCoalescedRowCount() {
+        synchronized (lock) {
+            return mCoalescedRowCount;
+        }
+    }
+
+    /**
+     * ストレージへ書き込んだ行数を取得する
+     */
+    public long getFlushedRowCount() {
+        synchronized (lock) {
+            return mFlushedRowCount;
+        }
+    }
+
+    /**
+     * ストレージへの書き込み回数を取得する
+     */
+    public long getFlushCount() {
+        synchronized (lock) {
+            return mFlushCount;
+        }
+    }
+
+    /**
+     * 1回の書き込みにかかった平均時間(ms)を取得する
+     */
+    public double getAverageFlushTimeMs() {
+        synchronized (lock) {
+            return mFlushCount > 0 ? ((double) mTotalFlushTimeMs / mFlushCount) : 0;
+        }
+    }
+
+    /**
+     * 1回の書き込みにかかった最大時間(ms)を取得する
+     */
+    public long getMaxFlushTimeMs() {
+        synchronized (lock) {
+            return mMaxFlushTimeMs;
+        }
+    }
+
+    /**
+     * sweep()を行った回数を取得する
+     */
+    public long getSweepCount() {
+        synchronized (lock) {
+            return mSweepCount;
+        }
+    }
+
+    /**
+     * sweep()で削除した期限切れの行数を取得する
+     */
+    public long getExpiredRowCount() {
+        synchronized (lock) {
+            return mExpiredRowCount;
+        }
+    }
+
+    /**
+     * sweep()で削除した孤立した行数を取得する
+     */
+    public long getOrphanRowCount() {
+        synchronized (lock) {
+            return mOrphanRowCount;
+        }
+    }
+
+    /**
+     * 保存先を整理した回数を取得する
+     */
+    public long getCompactCount() {
+        synchronized (lock) {
+            return mCompactCount;
+        }
+    }
+
+    /**
+     * 遅延書き込みを行うスレッド
+     */
+    private static final ScheduledExecutorService sFlushExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "FirebaseDumpStore");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * sweep()を行うスレッド
+     *
+     * 遅延書き込みを妨げないよう、別のスレッドで行う。
+     */
+    private static final ScheduledExecutorService sSweepExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "FirebaseDumpStore-Sweep");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    /**
+     * 保存先の生成処理
+     */
+    @NonNull
+    private static FirebaseDumpBackend.Factory sBackendFactory = TextKeyValueDumpBackend.FACTORY;
+
+    /**
+     * ファイル毎のインスタンス
+     */
+    private static final Map<String, FirebaseDumpStore> sInstances = new HashMap<>();
+
+    /**
+     * 指定したファイルに対するインスタンスを取得する
+     */
+    @NonNull
+    public static FirebaseDumpStore getInstance(@NonNull Context context, @NonNull File databasePath) {
+        synchronized (sInstances) {
+            String key = databasePath.getAbsolutePath();
+            FirebaseDumpStore result = sInstances.get(key);
+            if (result == null) {
+                result = new FirebaseDumpStore(context, databasePath);
+                sInstances.put(key, result);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * 保存先の生成処理を指定する
+     *
+     * 以降に開かれる保存先に反映されるため、Application#onCreate等、Dumpデータへアクセスする前に呼び出す。
+     * 保存先を切り替えた場合、以前の保存先に書き込まれたデータは引き継がれない。
+     *
+     * @see TextKeyValueDumpBackend#FACTORY
+     * @see MappedLogDumpBackend#FACTORY
+     */
+    public static void setBackendFactory(@NonNull FirebaseDumpBackend.Factory factory) {
+        synchronized (sInstances) {
+            sBackendFactory = factory;
+        }
+    }
+
+    /**
+     * 全てのインスタンスの書き込み待ちの値をストレージへ反映する
+     *
+     * Activity#onPause等、プロセスが終了する可能性がある時点で呼び出す。
+     */
+    public static void flushAll() {
+        List<FirebaseDumpStore> stores;
+        synchronized (sInstances) {
+            stores = new ArrayList<>(sInstances.values());
+        }
+        for (FirebaseDumpStore store : stores) {
+            store.flush();
+        }
+    }
+}
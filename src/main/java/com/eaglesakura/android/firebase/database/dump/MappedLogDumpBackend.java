@@ -0,0 +1,587 @@
+package com.eaglesakura.android.firebase.database.dump;
+
+import com.eaglesakura.android.firebase.FbLog;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+/**
+ * 追記専用のログファイルにDumpデータを保存する
+ *
+ * 起動時にファイル全体をメモリマップして走査し、Keyと値の位置のみをメモリ上に保持する。
+ * 値の読み込みはメモリマップから直接行うため、SQLiteのopen/queryのコストが発生しない。
+ * 上書き・削除によって不要になった領域が一定以上になった場合、バックグラウンドで有効な値のみを新しいファイルへ書き出す。
+ *
+ * メモリマップの位置はintで扱うため、ファイルサイズは {@link #MAX_FILE_SIZE} までに制限され、超える書き込みは例外となる。
+ */
+public class MappedLogDumpBackend implements FirebaseDumpBackend {
+
+    /**
+     * ログファイルの拡張子
+     */
+    public static final String FILE_EXTENSION = ".log";
+
+    /**
+     * FirebaseData#getDatabasePath()と同じ場所に、拡張子を付与したログファイルを生成する
+     */
+    public static final Factory FACTORY = (context, databasePath) -> new MappedLogDumpBackend(new File(databasePath.getPath() + FILE_EXTENSION));
+
+    /**
+     * レコードの開始を示す値
+     */
+    static final int RECORD_MAGIC = 0x46424431;
+
+    /**
+     * レコードヘッダのサイズ
+     *
+     * magic(4) + crc(4) + date(8) + keyLength(4) + valueLength(4)
+     */
+    static final int HEADER_SIZE = 24;
+
+    /**
+     * CRCの計算を開始するヘッダ内の位置
+     */
+    static final int CRC_START = 8;
+
+    /**
+     * 削除を示す値の長さ
+     */
+    static final int TOMBSTONE = -1;
+
+    /**
+     * 整理を行う最小のファイルサイズ
+     */
+    static final long COMPACT_MIN_FILE_SIZE = 1024 * 1024;
+
+    /**
+     * ログファイルの最大サイズ
+     */
+    public static final long MAX_FILE_SIZE = Integer.MAX_VALUE;
+
+    /**
+     * メモリマップ外の追記領域がこのサイズを超えた場合に、メモリマップを作り直す
+     *
+     * 追記直後のレコードは都度メモリマップを作り直さず、FileChannelから直接読み込む。
+     */
+    static final long REMAP_THRESHOLD = 256 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * 値の位置
+     */
+    static class Location {
+        /**
+         * レコードの開始位置
+         */
+        final long mRecordOffset;
+
+        /**
+         * レコード全体のサイズ
+         */
+        final int mRecordSize;
+
+        /**
+         * 値の長さ
+         */
+        final int mValueLength;
+
+        /**
+         * 書き込み時刻
+         */
+        final long mDate;
+
+        Location(long recordOffset, int recordSize, int valueLength, long date) {
+            mRecordOffset = recordOffset;
+            mRecordSize = recordSize;
+            mValueLength = valueLength;
+            mDate = date;
+        }
+
+        long getValueOffset() {
+            return mRecordOffset + mRecordSize - mValueLength;
+        }
+    }
+
+    @NonNull
+    final File mFile;
+
+    private RandomAccessFile mRandomAccessFile;
+
+    private FileChannel mChannel;
+
+    /**
+     * 読み込み用のメモリマップ
+     */
+    @Nullable
+    private MappedByteBuffer mMapped;
+
+    /**
+     * 次のレコードの書き込み位置
+     */
+    private long mWritePosition;
+
+    /**
+     * Keyと値の位置
+     */
+    private Map<String, Location> mIndex = new HashMap<>();
+
+    /**
+     * 有効なレコードの合計サイズ
+     */
+    private long mLiveBytes;
+
+    /**
+     * 整理中の場合はtrue
+     */
+    private boolean mCompacting;
+
+    private boolean mClosed;
+
+    private final Object lock = new Object();
+
+    public MappedLogDumpBackend(@NonNull File file) {
+        mFile = file;
+        try {
+            openFile();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @NonNull
+    public File getFile() {
+        return mFile;
+    }
+
+    private void openFile() throws IOException {
+        File parent = mFile.getParentFile();
+        if (parent != null && !parent.isDirectory()) {
+            parent.mkdirs();
+        }
+
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        mChannel = mRandomAccessFile.getChannel();
+        mMapped = null;
+
+        final long fileSize = mChannel.size();
+        if (fileSize > MAX_FILE_SIZE) {
+            mChannel.close();
+            mRandomAccessFile.close();
+            throw new IOException("Dump log too large " + mFile + " size[" + fileSize + "]");
+        }
+        Map<String, Location> index = new HashMap<>();
+        long position = 0;
+        if (fileSize > 0) {
+            position = parseRecords(mapRange(fileSize), 0, fileSize, 0, index);
+        }
+
+        if (position < fileSize) {
+            // 書き込み途中で終了したレコードを切り捨てる
+            FbLog.debug("Dump log truncated[%s] %d -> %d", mFile.getName(), fileSize, position);
+            mChannel.truncate(position);
+            mMapped = null;
+        }
+
+        mIndex = index;
+        mWritePosition = position;
+        mLiveBytes = 0;
+        for (Location location : index.values()) {
+            mLiveBytes += location.mRecordSize;
+        }
+    }
+
+    /**
+     * 先頭から指定サイズまでをメモリマップする
+     */
+    @NonNull
+    private MappedByteBuffer mapRange(long size) throws IOException {
+        if (mMapped == null || mMapped.capacity() < size) {
+            mMapped = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        return mMapped;
+    }
+
+    /**
+     * レコードを走査し、位置をindexへ反映する
+     *
+     * @param buffer      読み込むバッファ
+     * @param start       走査開始位置
+     * @param end         走査終了位置
+     * @param offsetDelta indexへ記録する位置の補正値
+     * @param index       反映先
+     * @return 正常に読み込めた最後のレコードの終端
+     */
+    private static long parseRecords(ByteBuffer buffer, long start, long end, long offsetDelta, Map<String, Location> index) {
+        CRC32 crc = new CRC32();
+        long position = start;
+        while (position + HEADER_SIZE <= end) {
+            final int offset = (int) position;
+            if (buffer.getInt(offset) != RECORD_MAGIC) {
+                break;
+            }
+
+            final int recordCrc = buffer.getInt(offset + 4);
+            final long date = buffer.getLong(offset + 8);
+            final int keyLength = buffer.getInt(offset + 16);
+            final int valueLength = buffer.getInt(offset + 20);
+            if (keyLength <= 0 || valueLength < TOMBSTONE) {
+                break;
+            }
+
+            final int recordSize = HEADER_SIZE + keyLength + Math.max(valueLength, 0);
+            if (position + recordSize > end) {
+                break;
+            }
+
+            byte[] body = new byte[recordSize - CRC_START];
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset + CRC_START);
+            view.get(body);
+            crc.reset();
+            crc.update(body, 0, body.length);
+            if ((int) crc.getValue() != recordCrc) {
+                break;
+            }
+
+            String key = new String(body, HEADER_SIZE - CRC_START, keyLength, UTF_8);
+            if (valueLength == TOMBSTONE) {
+                index.remove(key);
+            } else {
+                index.put(key, new Location(position + offsetDelta, recordSize, valueLength, date));
+            }
+            position += recordSize;
+        }
+        return position;
+    }
+
+    /**
+     * 1レコードをエンコードする
+     */
+    private static byte[] encodeRecord(String key, @Nullable String value, long date) {
+        byte[] keyBytes = key.getBytes(UTF_8);
+        byte[] valueBytes = value != null ? value.getBytes(UTF_8) : null;
+        int recordSize = HEADER_SIZE + keyBytes.length + (valueBytes != null ? valueBytes.length : 0);
+
+        ByteBuffer buffer = ByteBuffer.allocate(recordSize);
+        buffer.putInt(RECORD_MAGIC);
+        buffer.putInt(0);   // CRCは後で書き込む
+        buffer.putLong(date);
+        buffer.putInt(keyBytes.length);
+        buffer.putInt(valueBytes != null ? valueBytes.length : TOMBSTONE);
+        buffer.put(keyBytes);
+        if (valueBytes != null) {
+            buffer.put(valueBytes);
+        }
+
+        byte[] record = buffer.array();
+        CRC32 crc = new CRC32();
+        crc.update(record, CRC_START, record.length - CRC_START);
+        buffer.putInt(4, (int) crc.getValue());
+        return record;
+    }
+
+    @Nullable
+    @Override
+    public FirebaseDumpStore.Entry get(@NonNull String key) {
+        synchronized (lock) {
+            Location location = mIndex.get(key);
+            if (location == null) {
+                return null;
+            }
+
+            try {
+                return new FirebaseDumpStore.Entry(key, new String(readValue(location), UTF_8), location.mDate);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * 値を読み込む
+     *
+     * メモリマップ外の値は、追記領域が小さい間はFileChannelから直接読み込む。
+     * lockを保持した状態で呼び出す。
+     */
+    @NonNull
+    private byte[] readValue(@NonNull Location location) throws IOException {
+        byte[] value = new byte[location.mValueLength];
+        final long offset = location.getValueOffset();
+        if (mMapped == null || offset + value.length > mMapped.capacity()) {
+            if (mMapped != null && (mWritePosition - mMapped.capacity()) < REMAP_THRESHOLD) {
+                ByteBuffer buffer = ByteBuffer.wrap(value);
+                long position = offset;
+                while (buffer.hasRemaining()) {
+                    int read = mChannel.read(buffer, position);
+                    if (read < 0) {
+                        throw new EOFException("Dump log record out of range " + mFile);
+                    }
+                    position += read;
+                }
+                return value;
+            }
+            mapRange(mWritePosition);
+        }
+
+        ByteBuffer view = mMapped.duplicate();
+        view.position((int) offset);
+        view.get(value);
+        return value;
+    }
+
+    @Override
+    public void write(@NonNull Collection<FirebaseDumpStore.Entry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+
+        List<byte[]> records = new ArrayList<>(entries.size());
+        long totalSize = 0;
+        for (FirebaseDumpStore.Entry entry : entries) {
+            byte[] record = encodeRecord(entry.getKey(), entry.getValue(), entry.getDate());
+            records.add(record);
+            totalSize += record.length;
+        }
+
+        if (totalSize > MAX_FILE_SIZE) {
+            throw new IllegalStateException("Dump log batch too large " + mFile + " size[" + totalSize + "]");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) totalSize);
+        for (byte[] record : records) {
+            buffer.put(record);
+        }
+        buffer.flip();
+
+        synchronized (lock) {
+            if (mWritePosition + totalSize > MAX_FILE_SIZE) {
+                throw new IllegalStateException("Dump log too large " + mFile + " size[" + (mWritePosition + totalSize) + "]");
+            }
+            try {
+                long position = mWritePosition;
+                while (buffer.hasRemaining()) {
+                    position += mChannel.write(buffer, position);
+                }
+                mChannel.force(false);
+
+                // 書き込んだレコードをindexへ反映する
+                int index = 0;
+                long recordOffset = mWritePosition;
+                for (FirebaseDumpStore.Entry entry : entries) {
+                    int recordSize = records.get(index++).length;
+                    Location old;
+                    if (entry.getValue() != null) {
+                        int valueLength = recordSize - HEADER_SIZE - entry.getKey().getBytes(UTF_8).length;
+                        old = mIndex.put(entry.getKey(), new Location(recordOffset, recordSize, valueLength, entry.getDate()));
+                        mLiveBytes += recordSize;
+                    } else {
+                        old = mIndex.remove(entry.getKey());
+                    }
+                    if (old != null) {
+                        mLiveBytes -= old.mRecordSize;
+                    }
+                    recordOffset += recordSize;
+                }
+                mWritePosition = position;
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+
+            if (!mCompacting && mWritePosition >= COMPACT_MIN_FILE_SIZE && (mWritePosition - mLiveBytes) > mLiveBytes) {
+                // 不要な領域が有効な領域を上回ったら整理する
+                mCompacting = true;
+                sCompactExecutor.execute(this::runCompaction);
+            }
+        }
+    }
+
+    @Override
+    public boolean scan(@NonNull KeyVisitor visitor) {
+        Map<String, Location> snapshot;
+        synchronized (lock) {
+            snapshot = new HashMap<>(mIndex);
+        }
+        for (Map.Entry<String, Location> entry : snapshot.entrySet()) {
+            visitor.visit(entry.getKey(), entry.getValue().mDate, entry.getValue().mValueLength);
+        }
+        return true;
+    }
+
+    /**
+     * 有効なレコードのみを新しいファイルへ書き出し、置き換える
+     *
+     * バックグラウンドで整理中の場合は何もしない。
+     */
+    @Override
+    public void compact() {
+        synchronized (lock) {
+            if (mCompacting || mClosed) {
+                return;
+            }
+            mCompacting = true;
+        }
+        runCompaction();
+    }
+
+    /**
+     * 有効なレコードのみを新しいファイルへ書き出し、置き換える
+     *
+     * 書き出し中に追記されたレコードは、置き換え直前に新しいファイルへ追記する。
+     * mCompactingを設定した状態で呼び出す。
+     */
+    private void runCompaction() {
+        final File tempFile = new File(mFile.getPath() + ".compact");
+        try {
+            Map<String, Location> snapshot;
+            long snapshotEnd;
+            ByteBuffer source;
+            synchronized (lock) {
+                if (mClosed) {
+                    return;
+                }
+                snapshot = new HashMap<>(mIndex);
+                snapshotEnd = mWritePosition;
+                source = mapRange(snapshotEnd).duplicate();
+            }
+
+            // 追記専用のため、snapshotEndまでの領域はlock外で読み込める
+            Map<String, Location> newIndex = new HashMap<>();
+            long newPosition = 0;
+            RandomAccessFile temp = new RandomAccessFile(tempFile, "rw");
+            boolean swapped = false;
+            try {
+                FileChannel tempChannel = temp.getChannel();
+                tempChannel.truncate(0);
+                for (Map.Entry<String, Location> entry : snapshot.entrySet()) {
+                    Location location = entry.getValue();
+                    ByteBuffer record = source.duplicate();
+                    record.position((int) location.mRecordOffset);
+                    record.limit((int) (location.mRecordOffset + location.mRecordSize));
+                    long position = newPosition;
+                    while (record.hasRemaining()) {
+                        position += tempChannel.write(record, position);
+                    }
+                    newIndex.put(entry.getKey(), new Location(newPosition, location.mRecordSize, location.mValueLength, location.mDate));
+                    newPosition = position;
+                }
+
+                synchronized (lock) {
+                    if (mClosed) {
+                        return;
+                    }
+
+                    if (mWritePosition > snapshotEnd) {
+                        // 書き出し中に追記されたレコードを反映する
+                        ByteBuffer tail = mapRange(mWritePosition).duplicate();
+                        parseRecords(tail, snapshotEnd, mWritePosition, newPosition - snapshotEnd, newIndex);
+                        tail.position((int) snapshotEnd);
+                        tail.limit((int) mWritePosition);
+                        long position = newPosition;
+                        while (tail.hasRemaining()) {
+                            position += tempChannel.write(tail, position);
+                        }
+                        newPosition = position;
+                    }
+                    tempChannel.force(false);
+
+                    // 置き換えに失敗した場合は元のファイルを使い続けるため、元のファイルは置き換え後に閉じる
+                    if (!tempFile.renameTo(mFile)) {
+                        throw new IOException("rename failed " + tempFile);
+                    }
+
+                    final long oldSize = mWritePosition;
+                    RandomAccessFile oldFile = mRandomAccessFile;
+                    FileChannel oldChannel = mChannel;
+                    mRandomAccessFile = temp;
+                    mChannel = tempChannel;
+                    mMapped = null;
+                    mIndex = newIndex;
+                    mWritePosition = newPosition;
+                    mLiveBytes = newPosition;
+                    swapped = true;
+                    try {
+                        oldChannel.close();
+                        oldFile.close();
+                    } catch (IOException e) {
+                        FbLog.debug("Dump log close failed[%s] %s", mFile.getName(), e.toString());
+                    }
+                    FbLog.debug("Dump log compacted[%s] %d -> %d", mFile.getName(), oldSize, newPosition);
+                }
+            } finally {
+                if (!swapped) {
+                    temp.close();
+                    tempFile.delete();
+                }
+            }
+        } catch (IOException e) {
+            FbLog.debug("Dump log compaction failed[%s] %s", mFile.getName(), e.toString());
+            tempFile.delete();
+        } finally {
+            synchronized (lock) {
+                mCompacting = false;
+            }
+        }
+    }
+
+    /**
+     * 有効なKey数を取得する
+     */
+    public int size() {
+        synchronized (lock) {
+            return mIndex.size();
+        }
+    }
+
+    /**
+     * ログファイルのサイズを取得する
+     */
+    public long getFileSize() {
+        synchronized (lock) {
+            return mWritePosition;
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (lock) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            mMapped = null;
+            try {
+                mChannel.close();
+                mRandomAccessFile.close();
+            } catch (IOException e) {
+                FbLog.debug("Dump log close failed[%s] %s", mFile.getName(), e.toString());
+            }
+        }
+    }
+
+    /**
+     * 整理を行うスレッド
+     */
+    private static final ExecutorService sCompactExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "MappedLogDumpBackend");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+}
@@ -0,0 +1,204 @@
+package com.eaglesakura.android.firebase.database.dump;
+
+import com.eaglesakura.android.db.TextKeyValueStore;
+import com.eaglesakura.android.firebase.FbLog;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * TextKeyValueStore(SQLite)と同じ形式のファイルにDumpデータを保存する
+ *
+ * 標準の保存先である。読み書き・列挙・VACUUMは全てこのクラスが開いた1つの接続で行い、接続はclose()まで保持する。
+ * write()は1トランザクションで反映されるため、途中で失敗した場合はいずれの値も反映されない。
+ * 既存のテーブルの列が想定と異なる場合、テーブルには触れず、TextKeyValueStoreのAPIを経由して読み書きする。
+ */
+public class TextKeyValueDumpBackend implements FirebaseDumpBackend {
+
+    /**
+     * 標準の生成処理
+     */
+    public static final Factory FACTORY = TextKeyValueDumpBackend::open;
+
+    /**
+     * TextKeyValueStoreのテーブル名
+     */
+    static final String TABLE_NAME = TextKeyValueStore.TABLE_NAME_DEFAULT;
+
+    /**
+     * TextKeyValueStoreのKey列
+     */
+    static final String COLUMN_KEY = "_key";
+
+    /**
+     * TextKeyValueStoreの値列
+     */
+    static final String COLUMN_VALUE = "_value";
+
+    /**
+     * TextKeyValueStoreの書き込み時刻列
+     */
+    static final String COLUMN_DATE = "_date";
+
+    @NonNull
+    private final File mDatabasePath;
+
+    @NonNull
+    private final SQLiteDatabase mDatabase;
+
+    @NonNull
+    private final SQLiteStatement mInsertStatement;
+
+    @NonNull
+    private final SQLiteStatement mDeleteStatement;
+
+    private TextKeyValueDumpBackend(@NonNull File databasePath, @NonNull SQLiteDatabase database) {
+        mDatabasePath = databasePath;
+        mDatabase = database;
+        try {
+            mInsertStatement = mDatabase.compileStatement("INSERT OR REPLACE INTO " + TABLE_NAME
+                    + " (" + COLUMN_KEY + ", " + COLUMN_VALUE + ", " + COLUMN_DATE + ") VALUES (?, ?, ?)");
+            mDeleteStatement = mDatabase.compileStatement("DELETE FROM " + TABLE_NAME + " WHERE " + COLUMN_KEY + " = ?");
+        } catch (RuntimeException e) {
+            mDatabase.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 保存先を開く
+     *
+     * 既存のテーブルの列が想定と異なる場合、TextKeyValueStoreのAPIを経由する保存先を返す。
+     */
+    @NonNull
+    public static FirebaseDumpBackend open(@NonNull Context context, @NonNull File databasePath) {
+        File parent = databasePath.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            FbLog.debug("Dump mkdirs failed[%s]", parent.getAbsolutePath());
+        }
+
+        SQLiteDatabase database = SQLiteDatabase.openDatabase(databasePath.getAbsolutePath(), null, SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.CREATE_IF_NECESSARY);
+        boolean supported;
+        try {
+            supported = prepareTable(database);
+        } catch (RuntimeException e) {
+            database.close();
+            throw e;
+        }
+
+        if (!supported) {
+            database.close();
+            FbLog.debug("Dump schema mismatch[%s], use TextKeyValueStore", databasePath.getName());
+            return new TextKeyValueStoreDumpBackend(context, databasePath);
+        }
+        return new TextKeyValueDumpBackend(databasePath, database);
+    }
+
+    /**
+     * テーブルが無ければ生成し、存在すれば列を確認する
+     *
+     * @return 直接読み書きできる場合true, 既存のテーブルの列が想定と異なる場合false
+     */
+    private static boolean prepareTable(@NonNull SQLiteDatabase database) {
+        Set<String> columns = new HashSet<>();
+        Cursor info = database.rawQuery("PRAGMA table_info(" + TABLE_NAME + ")", null);
+        try {
+            final int nameIndex = info.getColumnIndex("name");
+            while (info.moveToNext()) {
+                columns.add(info.getString(nameIndex));
+            }
+        } finally {
+            info.close();
+        }
+
+        if (columns.isEmpty()) {
+            database.execSQL("CREATE TABLE " + TABLE_NAME + " ("
+                    + COLUMN_KEY + " TEXT PRIMARY KEY NOT NULL, "
+                    + COLUMN_VALUE + " TEXT, "
+                    + COLUMN_DATE + " INTEGER DEFAULT 0)");
+            return true;
+        }
+        return columns.contains(COLUMN_KEY) && columns.contains(COLUMN_VALUE) && columns.contains(COLUMN_DATE);
+    }
+
+    @Nullable
+    @Override
+    public FirebaseDumpStore.Entry get(@NonNull String key) {
+        Cursor cursor = mDatabase.rawQuery("SELECT " + COLUMN_VALUE + ", " + COLUMN_DATE + " FROM " + TABLE_NAME + " WHERE " + COLUMN_KEY + " = ?", new String[]{key});
+        try {
+            if (!cursor.moveToNext() || cursor.isNull(0)) {
+                return null;
+            }
+            return new FirebaseDumpStore.Entry(key, cursor.getString(0), cursor.getLong(1));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public void write(@NonNull Collection<FirebaseDumpStore.Entry> entries) {
+        mDatabase.beginTransaction();
+        try {
+            for (FirebaseDumpStore.Entry entry : entries) {
+                if (entry.getValue() != null) {
+                    mInsertStatement.bindString(1, entry.getKey());
+                    mInsertStatement.bindString(2, entry.getValue());
+                    mInsertStatement.bindLong(3, entry.getDate());
+                    mInsertStatement.executeInsert();
+                } else {
+                    mDeleteStatement.bindString(1, entry.getKey());
+                    mDeleteStatement.executeUpdateDelete();
+                }
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+    }
+
+    @Override
+    public boolean scan(@NonNull KeyVisitor visitor) {
+        try {
+            // 値は読み込まず、UTF-8でのバイト数のみを取得する
+            Cursor cursor = mDatabase.rawQuery("SELECT " + COLUMN_KEY + ", length(CAST(" + COLUMN_VALUE + " AS BLOB)), " + COLUMN_DATE
+                    + " FROM " + TABLE_NAME, null);
+            try {
+                while (cursor.moveToNext()) {
+                    visitor.visit(cursor.getString(0), cursor.getLong(2), cursor.getInt(1));
+                }
+            } finally {
+                cursor.close();
+            }
+            return true;
+        } catch (SQLException e) {
+            FbLog.debug("Dump scan failed[%s] %s", mDatabasePath.getName(), e.toString());
+            return false;
+        }
+    }
+
+    @Override
+    public void compact() {
+        try {
+            mDatabase.execSQL("VACUUM");
+        } catch (SQLException e) {
+            FbLog.debug("Dump vacuum failed[%s] %s", mDatabasePath.getName(), e.toString());
+        }
+    }
+
+    @Override
+    public void close() {
+        mInsertStatement.close();
+        mDeleteStatement.close();
+        mDatabase.close();
+    }
+}
@@ -0,0 +1,63 @@
+package com.eaglesakura.android.firebase.database.dump;
+
+import com.eaglesakura.android.db.DBOpenType;
+import com.eaglesakura.android.db.TextKeyValueStore;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.util.Collection;
+
+/**
+ * TextKeyValueStoreのAPIを経由してDumpデータを保存する
+ *
+ * テーブルの列がTextKeyValueDumpBackendの想定と異なる場合に利用する。
+ * 1行ずつ書き込むため、write()の途中で失敗した場合は一部のみが反映される。列挙には対応しないため、sweep()は行われない。
+ */
+class TextKeyValueStoreDumpBackend implements FirebaseDumpBackend {
+
+    @NonNull
+    private final TextKeyValueStore mStore;
+
+    TextKeyValueStoreDumpBackend(@NonNull Context context, @NonNull File databasePath) {
+        mStore = new TextKeyValueStore(context, databasePath, TextKeyValueStore.TABLE_NAME_DEFAULT);
+        mStore.open(DBOpenType.Write);
+    }
+
+    @Nullable
+    @Override
+    public FirebaseDumpStore.Entry get(@NonNull String key) {
+        TextKeyValueStore.Data data = mStore.get(key);
+        if (data == null || data.value == null) {
+            return null;
+        }
+        return new FirebaseDumpStore.Entry(key, data.value, data.date);
+    }
+
+    @Override
+    public void write(@NonNull Collection<FirebaseDumpStore.Entry> entries) {
+        for (FirebaseDumpStore.Entry entry : entries) {
+            if (entry.getValue() != null) {
+                mStore.putDirect(entry.getKey(), entry.getValue());
+            } else {
+                mStore.remove(entry.getKey());
+            }
+        }
+    }
+
+    @Override
+    public boolean scan(@NonNull KeyVisitor visitor) {
+        return false;
+    }
+
+    @Override
+    public void compact() {
+    }
+
+    @Override
+    public void close() {
+        mStore.close();
+    }
+}
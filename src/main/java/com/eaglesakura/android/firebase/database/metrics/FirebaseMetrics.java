@@ -0,0 +1,130 @@
+package com.eaglesakura.android.firebase.database.metrics;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * FirebaseDataの同期処理の計測値を受け取る
+ *
+ * 必要なメソッドのみをオーバーライドし、{@link #setInstance(FirebaseMetrics)} で登録する。
+ * 登録されていない場合は計測自体を行わない。
+ * 各メソッドはFirebaseのコールバックスレッドや任意のスレッドから呼び出されるため、スレッドセーフに実装し、即座に返却する必要がある。
+ */
+public abstract class FirebaseMetrics {
+
+    /**
+     * connect()から最初の値を受信するまでの時間
+     *
+     * @param path        接続対象のパス
+     * @param elapsedNano 経過時間(ns)
+     */
+    public void onFirstValue(@NonNull String path, long elapsedNano) {
+    }
+
+    /**
+     * 値を受信した
+     *
+     * @param path 接続対象のパス
+     */
+    public void onSnapshot(@NonNull String path) {
+    }
+
+    /**
+     * DataSnapshotからオブジェクトへの変換時間
+     *
+     * @param path        接続対象のパス
+     * @param elapsedNano 経過時間(ns)
+     */
+    public void onDecode(@NonNull String path, long elapsedNano) {
+    }
+
+    /**
+     * リスナへの配信時間
+     *
+     * @param path        接続対象のパス
+     * @param elapsedNano 経過時間(ns)
+     */
+    public void onDispatch(@NonNull String path, long elapsedNano) {
+    }
+
+    /**
+     * 送信からサーバーの応答までの時間
+     *
+     * @param path        接続対象のパス
+     * @param elapsedNano 経過時間(ns)
+     * @param success     書き込みに成功した場合はtrue
+     */
+    public void onCommit(@NonNull String path, long elapsedNano, boolean success) {
+    }
+
+    /**
+     * ローカルへのDump
+     *
+     * @param path        接続対象のパス
+     * @param bytes       Dumpデータのサイズ(UTF-8)
+     * @param elapsedNano エンコードにかかった時間(ns)
+     */
+    public void onDump(@NonNull String path, int bytes, long elapsedNano) {
+    }
+
+    /**
+     * ローカルからの復旧
+     *
+     * @param path        接続対象のパス
+     * @param bytes       Dumpデータのサイズ(UTF-8), 存在しない場合は0
+     * @param elapsedNano 読み込みとデコードにかかった時間(ns)
+     */
+    public void onRestore(@NonNull String path, int bytes, long elapsedNano) {
+    }
+
+    /**
+     * 文字列のUTF-8でのサイズを取得する
+     */
+    public static int sizeOf(@Nullable String value) {
+        if (value == null) {
+            return 0;
+        }
+
+        int result = 0;
+        final int length = value.length();
+        for (int i = 0; i < length; ++i) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                result += 1;
+            } else if (c < 0x800) {
+                result += 2;
+            } else if (Character.isHighSurrogate(c) && (i + 1) < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                result += 4;
+                ++i;
+            } else {
+                result += 3;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 登録済みのインスタンス
+     */
+    @Nullable
+    private static volatile FirebaseMetrics sInstance;
+
+    /**
+     * 計測値を受け取るインスタンスを登録する
+     *
+     * @param metrics 登録するインスタンス, nullの場合は計測を停止する
+     */
+    public static void setInstance(@Nullable FirebaseMetrics metrics) {
+        sInstance = metrics;
+    }
+
+    /**
+     * 登録済みのインスタンスを取得する
+     *
+     * @return 登録済みのインスタンス, 計測を行わない場合はnull
+     */
+    @Nullable
+    public static FirebaseMetrics getInstance() {
+        return sInstance;
+    }
+}
@@ -0,0 +1,213 @@
+package com.eaglesakura.android.firebase.database.metrics;
+
+import com.eaglesakura.android.firebase.FbLog;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 計測値をパス毎に集計してメモリ上に保持する
+ *
+ * <pre>
+ * InMemoryFirebaseMetrics metrics = new InMemoryFirebaseMetrics();
+ * FirebaseMetrics.setInstance(metrics);
+ * ...
+ * metrics.dump();
+ * </pre>
+ */
+public class InMemoryFirebaseMetrics extends FirebaseMetrics {
+
+    /**
+     * 計測の種類
+     */
+    public enum Kind {
+        FirstValue,
+        Snapshot,
+        Decode,
+        Dispatch,
+        Commit,
+        Dump,
+        Restore,
+    }
+
+    /**
+     * 1種類の集計値
+     */
+    public static class Stats {
+        long mCount;
+
+        long mTotalNano;
+
+        long mMaxNano;
+
+        long mTotalBytes;
+
+        long mFailedCount;
+
+        Stats() {
+        }
+
+        Stats(@NonNull Stats origin) {
+            mCount = origin.mCount;
+            mTotalNano = origin.mTotalNano;
+            mMaxNano = origin.mMaxNano;
+            mTotalBytes = origin.mTotalBytes;
+            mFailedCount = origin.mFailedCount;
+        }
+
+        void add(long elapsedNano, long bytes, boolean success) {
+            ++mCount;
+            mTotalNano += elapsedNano;
+            mMaxNano = Math.max(mMaxNano, elapsedNano);
+            mTotalBytes += bytes;
+            if (!success) {
+                ++mFailedCount;
+            }
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public double getTotalTimeMs() {
+            return mTotalNano / 1000000.0;
+        }
+
+        public double getAverageTimeMs() {
+            return mCount > 0 ? (mTotalNano / 1000000.0 / mCount) : 0;
+        }
+
+        public double getMaxTimeMs() {
+            return mMaxNano / 1000000.0;
+        }
+
+        public long getTotalBytes() {
+            return mTotalBytes;
+        }
+
+        public long getFailedCount() {
+            return mFailedCount;
+        }
+    }
+
+    /**
+     * パス毎の集計値
+     */
+    private final Map<String, Map<Kind, Stats>> mStats = new HashMap<>();
+
+    private final Object lock = new Object();
+
+    private void add(@NonNull String path, @NonNull Kind kind, long elapsedNano, long bytes, boolean success) {
+        synchronized (lock) {
+            Map<Kind, Stats> pathStats = mStats.get(path);
+            if (pathStats == null) {
+                pathStats = new EnumMap<>(Kind.class);
+                mStats.put(path, pathStats);
+            }
+            Stats stats = pathStats.get(kind);
+            if (stats == null) {
+                stats = new Stats();
+                pathStats.put(kind, stats);
+            }
+            stats.add(elapsedNano, bytes, success);
+        }
+    }
+
+    @Override
+    public void onFirstValue(@NonNull String path, long elapsedNano) {
+        add(path, Kind.FirstValue, elapsedNano, 0, true);
+    }
+
+    @Override
+    public void onSnapshot(@NonNull String path) {
+        add(path, Kind.Snapshot, 0, 0, true);
+    }
+
+    @Override
+    public void onDecode(@NonNull String path, long elapsedNano) {
+        add(path, Kind.Decode, elapsedNano, 0, true);
+    }
+
+    @Override
+    public void onDispatch(@NonNull String path, long elapsedNano) {
+        add(path, Kind.Dispatch, elapsedNano, 0, true);
+    }
+
+    @Override
+    public void onCommit(@NonNull String path, long elapsedNano, boolean success) {
+        add(path, Kind.Commit, elapsedNano, 0, success);
+    }
+
+    @Override
+    public void onDump(@NonNull String path, int bytes, long elapsedNano) {
+        add(path, Kind.Dump, elapsedNano, bytes, true);
+    }
+
+    @Override
+    public void onRestore(@NonNull String path, int bytes, long elapsedNano) {
+        add(path, Kind.Restore, elapsedNano, bytes, true);
+    }
+
+    /**
+     * 集計値を取得する
+     *
+     * @return 集計値のコピー, 計測されていない場合はnull
+     */
+    @Nullable
+    public Stats getStats(@NonNull String path, @NonNull Kind kind) {
+        synchronized (lock) {
+            Map<Kind, Stats> pathStats = mStats.get(path);
+            if (pathStats == null) {
+                return null;
+            }
+            Stats stats = pathStats.get(kind);
+            return stats != null ? new Stats(stats) : null;
+        }
+    }
+
+    /**
+     * 計測済みのパスを取得する
+     */
+    @NonNull
+    public List<String> getPaths() {
+        List<String> result;
+        synchronized (lock) {
+            result = new ArrayList<>(mStats.keySet());
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * 集計値をリセットする
+     */
+    public void clear() {
+        synchronized (lock) {
+            mStats.clear();
+        }
+    }
+
+    /**
+     * 集計値をログへ出力する
+     */
+    public void dump() {
+        for (String path : getPaths()) {
+            for (Kind kind : Kind.values()) {
+                Stats stats = getStats(path, kind);
+                if (stats == null) {
+                    continue;
+                }
+                FbLog.debug("Metrics path[%s] %s count[%d] avg[%.3f ms] max[%.3f ms] total[%.3f ms] bytes[%d] failed[%d]",
+                        path, kind.name(), stats.getCount(), stats.getAverageTimeMs(), stats.getMaxTimeMs(), stats.getTotalTimeMs(),
+                        stats.getTotalBytes(), stats.getFailedCount());
+            }
+        }
+    }
+}
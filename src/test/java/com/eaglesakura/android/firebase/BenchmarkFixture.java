@@ -0,0 +1,71 @@
+package com.eaglesakura.android.firebase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ベンチマークで共通に利用するモデル
+ */
+public class BenchmarkFixture {
+
+    public static class Item {
+        public String id;
+
+        public String name;
+
+        public String description;
+
+        public long updatedAt;
+
+        public double score;
+
+        public boolean enabled;
+
+        public List<String> tags = new ArrayList<>();
+    }
+
+    public static class Model {
+        public String owner;
+
+        public int schemaVersion;
+
+        public Map<String, Item> items = new HashMap<>();
+    }
+
+    private BenchmarkFixture() {
+    }
+
+    /**
+     * 指定した番号のItemを生成する
+     *
+     * descriptionは繰り返しの多い文字列であり、圧縮の効果を確認できる。
+     */
+    public static Item newItem(int index) {
+        Item item = new Item();
+        item.id = "item-" + index;
+        item.name = "name " + (index % 97);
+        item.description = "description text for item " + index + " / repeated phrases compress well";
+        item.updatedAt = 1500000000000L + index * 1000L;
+        item.score = index * 0.25;
+        item.enabled = (index % 3) != 0;
+        item.tags.add("tag-" + (index % 7));
+        item.tags.add("tag-" + (index % 11));
+        return item;
+    }
+
+    /**
+     * 指定した要素数のModelを生成する
+     */
+    public static Model newModel(int itemCount) {
+        Model model = new Model();
+        model.owner = "owner-0123456789";
+        model.schemaVersion = 3;
+        for (int i = 0; i < itemCount; ++i) {
+            Item item = newItem(i);
+            model.items.put(item.id, item);
+        }
+        return model;
+    }
+}
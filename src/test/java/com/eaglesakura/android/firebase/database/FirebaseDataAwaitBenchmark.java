@@ -0,0 +1,88 @@
+package com.eaglesakura.android.firebase.database;
+
+import com.eaglesakura.android.firebase.FbLog;
+import com.eaglesakura.android.firebase.UnitTestCase;
+import com.eaglesakura.util.Util;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * await()の待機方式による起床レイテンシとCPU時間を比較する
+ *
+ * 旧実装の1ms sleepループと、wait/notifyによる待機を同じ条件で計測する。
+ */
+public class FirebaseDataAwaitBenchmark extends UnitTestCase {
+
+    /**
+     * 計測回数
+     */
+    static final int TRY_COUNT = 20;
+
+    /**
+     * 別スレッドから値が配信されるまでの時間
+     */
+    static final long PUBLISH_DELAY_MS = 50;
+
+    interface Waiter {
+        void await(FirebaseData<String> data) throws Throwable;
+    }
+
+    static class Result {
+        long latencyNano;
+
+        long cpuNano;
+
+        @Override
+        public String toString() {
+            return String.format("latency avg[%.3f ms] cpu avg[%.3f ms]",
+                    (double) latencyNano / TRY_COUNT / TimeUnit.MILLISECONDS.toNanos(1),
+                    (double) cpuNano / TRY_COUNT / TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    private Result measure(Waiter waiter) throws Throwable {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        Result result = new Result();
+        for (int i = 0; i < TRY_COUNT; ++i) {
+            FirebaseData<String> data = FirebaseData.newInstance(String.class).checkNetworkStatus(false);
+            AtomicLong publishTime = new AtomicLong();
+            Thread publisher = new Thread(() -> {
+                Util.sleep(PUBLISH_DELAY_MS);
+                publishTime.set(System.nanoTime());
+                data.mock("value");
+            });
+
+            publisher.start();
+            long cpuStart = threadMXBean.getCurrentThreadCpuTime();
+            waiter.await(data);
+            long wakeTime = System.nanoTime();
+            result.cpuNano += (threadMXBean.getCurrentThreadCpuTime() - cpuStart);
+            publisher.join();
+            result.latencyNano += (wakeTime - publishTime.get());
+
+            assertNotNull(data.getValue());
+        }
+        return result;
+    }
+
+    @Test
+    public void sleepLoopとwaitNotifyを比較する() throws Throwable {
+        Result sleepLoop = measure(data -> {
+            // 旧実装と同等のループ
+            while (data.getValue() == null) {
+                Util.sleep(1);
+            }
+        });
+        Result waitNotify = measure(data -> data.await(() -> false));
+
+        FbLog.debug("await sleep loop  : %s", sleepLoop.toString());
+        FbLog.debug("await wait/notify : %s", waitNotify.toString());
+    }
+}
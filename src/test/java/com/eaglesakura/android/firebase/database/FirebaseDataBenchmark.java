@@ -0,0 +1,192 @@
+package com.eaglesakura.android.firebase.database;
+
+import com.eaglesakura.android.firebase.BenchmarkFixture.Model;
+import com.eaglesakura.android.firebase.FbLog;
+import com.eaglesakura.android.firebase.UnitTestCase;
+import com.eaglesakura.android.firebase.database.dump.FirebaseDumpStore;
+import com.eaglesakura.json.JSON;
+
+import org.junit.Test;
+
+import android.content.Context;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.eaglesakura.android.firebase.BenchmarkFixture.newModel;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * FirebaseDataの主要な処理を、ネットワーク無しでモックデータを用いて計測する
+ *
+ * 性能改善の前後で同じ条件の数値を比較するための基準値を出力する。
+ */
+public class FirebaseDataBenchmark extends UnitTestCase {
+
+    /**
+     * 計測前に実行する回数
+     */
+    static final int WARMUP_COUNT = 100;
+
+    /**
+     * 計測回数
+     */
+    static final int TRY_COUNT = 1000;
+
+    /**
+     * パス毎に固定のモデルを返却する
+     */
+    class MockProvider implements FirebaseMockDataProvider {
+        final Map<String, Object> mValues = new HashMap<>();
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public <T> T getData(FirebaseData<T> data, String path) {
+            return (T) mValues.get(path);
+        }
+
+        @Override
+        public Context getContext() {
+            return FirebaseDataBenchmark.this.getContext();
+        }
+    }
+
+    interface Task {
+        void run(int index) throws Throwable;
+    }
+
+    /**
+     * 1回あたりの平均時間(ms)を計測する
+     */
+    static double measure(int count, Task task) throws Throwable {
+        for (int i = 0; i < WARMUP_COUNT; ++i) {
+            task.run(i);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < count; ++i) {
+            task.run(i);
+        }
+        return (System.nanoTime() - start) / 1000000.0 / count;
+    }
+
+    @Test
+    public void リスナへの配信() throws Throwable {
+        Model model = newModel(10);
+        for (int listenerCount : new int[]{1, 10, 100}) {
+            FirebaseData<Model> data = FirebaseData.newInstance(Model.class);
+            AtomicLong received = new AtomicLong();
+            List<FirebaseData.OnUpdateListener<Model>> listeners = new ArrayList<>();
+            for (int i = 0; i < listenerCount; ++i) {
+                FirebaseData.OnUpdateListener<Model> listener = (self, value) -> received.incrementAndGet();
+                listeners.add(listener);
+                data.registerOnUpdateListener(listener);
+            }
+
+            double timeMs = measure(TRY_COUNT, index -> data.publishValue(model, 0));
+            FbLog.debug("dispatch listeners[%d] avg[%.4f ms] received[%d]", listenerCount, timeMs, received.get());
+        }
+    }
+
+    @Test
+    public void getValueの競合() throws Throwable {
+        Model model = newModel(10);
+        FirebaseData<Model> data = FirebaseData.newInstance(Model.class).mock(model);
+        for (int threadCount : new int[]{1, 4}) {
+            AtomicBoolean running = new AtomicBoolean(true);
+            AtomicLong readCount = new AtomicLong();
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < threadCount; ++i) {
+                threads.add(new Thread(() -> {
+                    long count = 0;
+                    while (running.get()) {
+                        if (data.getValue() != null) {
+                            ++count;
+                        }
+                    }
+                    readCount.addAndGet(count);
+                }));
+            }
+            // 値を更新し続けるスレッド
+            Thread writer = new Thread(() -> {
+                while (running.get()) {
+                    data.publishValue(model, 0);
+                }
+            });
+
+            writer.start();
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            Thread.sleep(500);
+            running.set(false);
+            writer.join();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            FbLog.debug("getValue threads[%d] reads[%d/s]", threadCount, readCount.get() * 2);
+            assertTrue(readCount.get() > 0);
+        }
+    }
+
+    @Test
+    public void dumpとrestoreの処理量() throws Throwable {
+        final int instanceCount = 200;
+        MockProvider provider = new MockProvider();
+        for (int i = 0; i < instanceCount; ++i) {
+            provider.mValues.put("benchmark/" + i, newModel(10));
+        }
+
+        List<FirebaseData<Model>> instances = new ArrayList<>();
+        for (int i = 0; i < instanceCount; ++i) {
+            instances.add(FirebaseData.newInstance(Model.class).mock(provider).connect("benchmark/" + i));
+        }
+
+        long dumpStart = System.nanoTime();
+        for (FirebaseData<Model> data : instances) {
+            data.dump();
+        }
+        FirebaseDumpStore.flushAll();
+        double dumpMs = (System.nanoTime() - dumpStart) / 1000000.0;
+
+        // 値を持たないインスタンスへ復旧する
+        MockProvider empty = new MockProvider();
+        List<FirebaseData<Model>> restored = new ArrayList<>();
+        for (int i = 0; i < instanceCount; ++i) {
+            restored.add(FirebaseData.newInstance(Model.class).mock(empty).connect("benchmark/" + i));
+        }
+
+        long restoreStart = System.nanoTime();
+        for (FirebaseData<Model> data : restored) {
+            data.restore();
+        }
+        double restoreMs = (System.nanoTime() - restoreStart) / 1000000.0;
+
+        for (FirebaseData<Model> data : restored) {
+            assertNotNull(data.getValue());
+            assertEquals(10, data.getValue().items.size());
+        }
+
+        FbLog.debug("dump rows[%d] total[%.3f ms] rows/s[%.1f]", instanceCount, dumpMs, instanceCount * 1000 / dumpMs);
+        FbLog.debug("restore rows[%d] total[%.3f ms] rows/s[%.1f]", instanceCount, restoreMs, instanceCount * 1000 / restoreMs);
+    }
+
+    @Test
+    public void JSONのエンコードとデコード() throws Throwable {
+        for (int itemCount : new int[]{1, 100, 1000}) {
+            Model model = newModel(itemCount);
+            String json = JSON.encodeOrNull(model);
+            assertNotNull(json);
+
+            int count = Math.max(10, TRY_COUNT / itemCount);
+            double encodeMs = measure(count, index -> JSON.encodeOrNull(model));
+            double decodeMs = measure(count, index -> JSON.decodeOrNull(json, Model.class));
+            FbLog.debug("json items[%d] size[%d chars] encode[%.4f ms] decode[%.4f ms]", itemCount, json.length(), encodeMs, decodeMs);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package com.eaglesakura.android.firebase.database;
+
+import com.google.android.gms.tasks.Task;
+
+import com.eaglesakura.android.firebase.UnitTestCase;
+
+import org.junit.Test;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * commitWindow()による連続したコミットのまとめ方を確認する
+ *
+ * Firebaseへの送信は端末外で行えないため、送信された値を記録する。
+ * 時刻と遅延送信はテスト側で進め、実時間には依存しない。
+ */
+public class FirebaseDataCommitWindowTest extends UnitTestCase {
+
+    /**
+     * 手動で実行する遅延タスク
+     */
+    static class ManualFuture implements ScheduledFuture<Object> {
+        final Runnable mTask;
+
+        final long mDueNano;
+
+        boolean mCancelled;
+
+        ManualFuture(Runnable task, long dueNano) {
+            mTask = task;
+            mDueNano = dueNano;
+        }
+
+        @Override
+        public long getDelay(@NonNull TimeUnit unit) {
+            return 0;
+        }
+
+        @Override
+        public int compareTo(@NonNull Delayed o) {
+            return 0;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            mCancelled = true;
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return mCancelled;
+        }
+
+        @Override
+        public Object get() {
+            return null;
+        }
+
+        @Override
+        public Object get(long timeout, @NonNull TimeUnit unit) {
+            return null;
+        }
+    }
+
+    static class RecordingData extends FirebaseData<Integer> {
+        final List<Integer> mSent = new ArrayList<>();
+
+        final List<ManualFuture> mScheduled = new ArrayList<>();
+
+        long mNowNano = TimeUnit.SECONDS.toNanos(100);
+
+        RecordingData() {
+            super(Integer.class);
+        }
+
+        @Override
+        Task<Void> writeValue(@Nullable Integer value) {
+            mSent.add(value);
+            return null;
+        }
+
+        @Override
+        long nanoTime() {
+            return mNowNano;
+        }
+
+        @Override
+        ScheduledFuture<?> scheduleCommitFlush(@NonNull Runnable task, long delayNano) {
+            ManualFuture future = new ManualFuture(task, mNowNano + delayNano);
+            mScheduled.add(future);
+            return future;
+        }
+
+        /**
+         * 時刻を進め、期限に達した遅延タスクを実行する
+         */
+        void advance(long ms) {
+            mNowNano += TimeUnit.MILLISECONDS.toNanos(ms);
+            boolean executed;
+            do {
+                executed = false;
+                for (ManualFuture future : new ArrayList<>(mScheduled)) {
+                    if (!future.mCancelled && future.mDueNano <= mNowNano) {
+                        mScheduled.remove(future);
+                        future.mTask.run();
+                        executed = true;
+                    }
+                }
+            } while (executed);
+        }
+    }
+
+    @Test
+    public void 連続したコミットは最後の値のみを送信する() {
+        RecordingData data = new RecordingData();
+        data.commitWindow(100, 5000);
+        for (int i = 1; i <= 10; ++i) {
+            data.commit(i);
+            data.advance(10);
+        }
+
+        // 値は即座に反映され、送信は遅延される
+        assertEquals(10, (int) data.getValue());
+        assertTrue(data.mSent.isEmpty());
+
+        // 最後のコミットからwindowが経過すると送信される
+        data.advance(89);
+        assertTrue(data.mSent.isEmpty());
+        data.advance(1);
+        assertEquals(Collections.singletonList(10), data.mSent);
+        assertEquals(9, data.getCoalescedCommitCount());
+        assertEquals(1, data.getSentCommitCount());
+
+        // 送信後は何もしない
+        data.advance(1000);
+        assertEquals(1, data.mSent.size());
+    }
+
+    @Test
+    public void コミットが続いても最大遅延で送信する() {
+        RecordingData data = new RecordingData();
+        data.commitWindow(100, 300);
+
+        // windowの間隔より短くコミットし続ける
+        for (int i = 1; i <= 20; ++i) {
+            data.commit(i);
+            data.advance(20);
+        }
+
+        // 最初のコミットから300msの時点の値が送信され、以降は新しい送信待ちとなる
+        assertEquals(Collections.singletonList(15), data.mSent);
+
+        // コミットが止まると、最後のコミットからwindowの経過で送信される
+        data.advance(100);
+        assertEquals(Arrays.asList(15, 20), data.mSent);
+    }
+
+    @Test
+    public void flushCommitで即座に送信する() {
+        RecordingData data = new RecordingData();
+        data.commitWindow(1000, 5000);
+        data.commit(1);
+        data.commit(2);
+        data.flushCommit();
+        assertEquals(Collections.singletonList(2), data.mSent);
+
+        // 送信待ちが無ければ何もしない
+        data.flushCommit();
+        data.advance(5000);
+        assertEquals(1, data.mSent.size());
+
+        // windowを無効にすると送信待ちを送信し、以降は都度送信する
+        data.commit(3);
+        data.commitWindow(0, 0);
+        data.commit(4);
+        assertEquals(Arrays.asList(2, 3, 4), data.mSent);
+    }
+
+    @Test
+    public void 破棄した送信待ちは送信されない() {
+        RecordingData data = new RecordingData();
+        data.commitWindow(50, 5000);
+        data.commit(1);
+        data.discardPendingCommit();
+        data.advance(5000);
+        assertTrue(data.mSent.isEmpty());
+        assertEquals(1, (int) data.getValue());
+    }
+
+    @Test
+    public void 未接続のインスタンスも送信待ちを送信して切断できる() {
+        RecordingData data = new RecordingData();
+        data.commitWindow(1000, 5000);
+        data.commit(1);
+        data.disconnect();
+        assertEquals(Collections.singletonList(1), data.mSent);
+    }
+}
@@ -0,0 +1,140 @@
+package com.eaglesakura.android.firebase.database;
+
+import com.eaglesakura.android.firebase.FbLog;
+import com.eaglesakura.android.firebase.UnitTestCase;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 配信中の書き込みスレッドと、読み込みスレッドの競合を計測する
+ *
+ * 旧実装と同じく読み込みでlockを取得する場合と、State経由でlock無しに読み込む場合を比較する。
+ */
+public class FirebaseDataStateBenchmark extends UnitTestCase {
+
+    /**
+     * 読み込みスレッド数
+     */
+    static final int READER_COUNT = 4;
+
+    /**
+     * 計測時間
+     */
+    static final long MEASURE_TIME_MS = 1000;
+
+    /**
+     * 配信時にlockを保持する時間
+     */
+    static final long DISPATCH_TIME_NANO = TimeUnit.MICROSECONDS.toNanos(50);
+
+    interface Reader {
+        int read();
+    }
+
+    static class Result {
+        long readCount;
+
+        long maxReadNano;
+
+        long writeCount;
+
+        @Override
+        public String toString() {
+            return String.format("reads[%d/s] max read latency[%.3f ms] writes[%d/s]",
+                    readCount * 1000 / MEASURE_TIME_MS,
+                    maxReadNano / 1000000.0,
+                    writeCount * 1000 / MEASURE_TIME_MS);
+        }
+    }
+
+    static void spin(long nano) {
+        final long end = System.nanoTime() + nano;
+        while (System.nanoTime() < end) {
+            // 配信処理を模擬する
+        }
+    }
+
+    private Result measure(Reader reader, Runnable writer) throws Throwable {
+        Result result = new Result();
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong readCount = new AtomicLong();
+        AtomicLong maxReadNano = new AtomicLong();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < READER_COUNT; ++i) {
+            threads.add(new Thread(() -> {
+                long count = 0;
+                long max = 0;
+                while (running.get()) {
+                    long start = System.nanoTime();
+                    reader.read();
+                    max = Math.max(max, System.nanoTime() - start);
+                    ++count;
+                }
+                readCount.addAndGet(count);
+                synchronized (maxReadNano) {
+                    maxReadNano.set(Math.max(maxReadNano.get(), max));
+                }
+            }));
+        }
+        Thread writerThread = new Thread(() -> {
+            while (running.get()) {
+                writer.run();
+                ++result.writeCount;
+            }
+        });
+        threads.add(writerThread);
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        Thread.sleep(MEASURE_TIME_MS);
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        result.readCount = readCount.get();
+        result.maxReadNano = maxReadNano.get();
+        return result;
+    }
+
+    @Test
+    public void lockによる読み込みとStateによる読み込みを比較する() throws Throwable {
+        // 旧実装と同じく、配信中もlockを保持する
+        Object lock = new Object();
+        int[] lockedState = new int[2];
+        Result locked = measure(() -> {
+            synchronized (lock) {
+                return lockedState[0] + lockedState[1];
+            }
+        }, () -> {
+            synchronized (lock) {
+                ++lockedState[0];
+                ++lockedState[1];
+                spin(DISPATCH_TIME_NANO);
+            }
+        });
+
+        FirebaseData<Integer> data = FirebaseData.newInstance(Integer.class);
+        data.registerOnUpdateListener((FirebaseData.OnUpdateListener<Integer>) (self, value) -> spin(DISPATCH_TIME_NANO));
+        AtomicLong value = new AtomicLong();
+        Result lockFree = measure(() -> {
+            FirebaseData.State<Integer> state = data.getState();
+            return state.getSyncCount();
+        }, () -> {
+            data.publishValue((int) value.incrementAndGet(), 0);
+        });
+
+        FbLog.debug("locked    : %s", locked.toString());
+        FbLog.debug("lock free : %s", lockFree.toString());
+        assertTrue(lockFree.readCount > 0);
+    }
+}
@@ -0,0 +1,53 @@
+package com.eaglesakura.android.firebase.database;
+
+import com.eaglesakura.android.firebase.UnitTestCase;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Stateから読み込む値と更新カウンタの一貫性を確認する
+ */
+public class FirebaseDataStateTest extends UnitTestCase {
+
+    /**
+     * 書き込み回数
+     */
+    static final int UPDATE_COUNT = 10000;
+
+    @Test
+    public void Stateの値と更新カウンタは一貫している() throws Throwable {
+        FirebaseData<Integer> data = FirebaseData.newInstance(Integer.class);
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong readCount = new AtomicLong();
+        AtomicLong mismatch = new AtomicLong();
+        Thread reader = new Thread(() -> {
+            while (running.get()) {
+                FirebaseData.State<Integer> state = data.getState();
+                Integer current = state.getValue();
+                if (current != null && current != state.getSyncCount()) {
+                    mismatch.incrementAndGet();
+                }
+                readCount.incrementAndGet();
+            }
+        });
+        reader.start();
+
+        // n回目の更新で値nを配信する
+        for (int i = 1; i <= UPDATE_COUNT; ++i) {
+            data.publishValue(i, 0);
+        }
+        running.set(false);
+        reader.join();
+
+        assertTrue(readCount.get() > 0);
+        assertEquals(0, mismatch.get());
+        assertEquals(UPDATE_COUNT, data.getState().getSyncCount());
+        assertEquals(UPDATE_COUNT, (int) data.getState().getValue());
+    }
+}
@@ -0,0 +1,46 @@
+package com.eaglesakura.android.firebase.database;
+
+import com.eaglesakura.android.firebase.FbLog;
+import com.eaglesakura.android.firebase.UnitTestCase;
+import com.eaglesakura.android.firebase.database.FirebaseDataStreamTest.SlowSubscriber;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 重い購読者に対して、更新の受信側が待たされないことを確認する
+ *
+ * Firebaseからの受信は端末外で再現できないため、リスナへ通知される値を直接渡す。
+ */
+public class FirebaseDataStreamBenchmark extends UnitTestCase {
+
+    static final int UPDATE_COUNT = 1000;
+
+    @Test
+    public void 重い購読者が受信を待たせない() throws Throwable {
+        FirebaseData<Integer> data = new FirebaseData<>(Integer.class);
+        FirebaseDataStream<Integer> stream = data.stream().onOverflow(FirebaseDataStream.Overflow.Latest);
+        SlowSubscriber subscriber = new SlowSubscriber(5, 1);
+        FirebaseDataStream.StreamSubscription subscription = FirebaseDataStreamTest.subscribe(stream, subscriber);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < UPDATE_COUNT; ++i) {
+            subscription.onDataUpdated(data, i);
+        }
+        double offerUs = (System.nanoTime() - start) / 1000.0 / UPDATE_COUNT;
+
+        // 最後の値は必ず配信される
+        long timeout = System.currentTimeMillis() + 1000;
+        while (!subscriber.mValues.contains(UPDATE_COUNT - 1) && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        subscription.cancel();
+
+        assertTrue(subscriber.mValues.contains(UPDATE_COUNT - 1));
+        assertTrue(subscriber.mValues.size() < UPDATE_COUNT);
+        assertEquals(UPDATE_COUNT, subscriber.mValues.size() + stream.getDroppedCount());
+        FbLog.debug("stream offer[%.3f us] delivered[%d] dropped[%d]", offerUs, subscriber.mValues.size(), stream.getDroppedCount());
+    }
+}
@@ -0,0 +1,121 @@
+package com.eaglesakura.android.firebase.database;
+
+import com.eaglesakura.android.firebase.UnitTestCase;
+
+import org.junit.Test;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 購読者の要求数に応じた値の保持・破棄を確認する
+ *
+ * Firebaseからの受信は端末外で再現できないため、リスナへ通知される値を直接渡す。
+ */
+public class FirebaseDataStreamTest extends UnitTestCase {
+
+    /**
+     * 1件毎に指定時間かかる購読者
+     */
+    static class SlowSubscriber implements FirebaseDataStream.Subscriber<Integer> {
+        final long mSleepMs;
+
+        final long mInitialRequest;
+
+        final List<Integer> mValues = Collections.synchronizedList(new ArrayList<>());
+
+        FirebaseDataStream.Subscription mSubscription;
+
+        SlowSubscriber(long sleepMs, long initialRequest) {
+            mSleepMs = sleepMs;
+            mInitialRequest = initialRequest;
+        }
+
+        @Override
+        public void onSubscribe(@NonNull FirebaseDataStream.Subscription subscription) {
+            mSubscription = subscription;
+            if (mInitialRequest > 0) {
+                subscription.request(mInitialRequest);
+            }
+        }
+
+        @Override
+        public void onNext(@Nullable Integer value) {
+            try {
+                Thread.sleep(mSleepMs);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            mValues.add(value);
+            mSubscription.request(1);
+        }
+
+        @Override
+        public void onError(@NonNull Throwable error) {
+        }
+    }
+
+    static FirebaseDataStream.StreamSubscription subscribe(FirebaseDataStream<Integer> stream, SlowSubscriber subscriber) {
+        return (FirebaseDataStream.StreamSubscription) stream.subscribe(subscriber);
+    }
+
+    @Test
+    public void 保持数を超えた値は古い順に破棄される() throws Throwable {
+        FirebaseData<Integer> data = new FirebaseData<>(Integer.class);
+        FirebaseDataStream<Integer> stream = data.stream().buffer(4);
+        SlowSubscriber subscriber = new SlowSubscriber(0, 0);
+        FirebaseDataStream.StreamSubscription subscription = subscribe(stream, subscriber);
+        for (int i = 0; i < 10; ++i) {
+            subscription.onDataUpdated(data, i);
+        }
+        assertEquals(6, stream.getDroppedCount());
+
+        // 要求した時点で保持していた値が配信される
+        subscription.request(4);
+        long timeout = System.currentTimeMillis() + 1000;
+        while (subscriber.mValues.size() < 4 && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        subscription.cancel();
+        assertEquals(6, (int) subscriber.mValues.get(0));
+        assertEquals(9, (int) subscriber.mValues.get(3));
+    }
+
+    @Test
+    public void 要求の無い値は破棄される() throws Throwable {
+        FirebaseData<Integer> data = new FirebaseData<>(Integer.class);
+        FirebaseDataStream<Integer> stream = data.stream()
+                .onOverflow(FirebaseDataStream.Overflow.Drop)
+                .distinctUntilChanged()
+                .observeOn(Runnable::run);
+
+        CountDownLatch latch = new CountDownLatch(1);
+        SlowSubscriber subscriber = new SlowSubscriber(0, 0) {
+            @Override
+            public void onNext(@Nullable Integer value) {
+                mValues.add(value);
+                latch.countDown();
+            }
+        };
+        FirebaseDataStream.StreamSubscription subscription = subscribe(stream, subscriber);
+        subscription.onDataUpdated(data, 1);
+        subscription.request(1);
+        subscription.onDataUpdated(data, 2);
+        subscription.onDataUpdated(data, 2);
+        subscription.onDataUpdated(data, 3);
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        subscription.cancel();
+
+        assertEquals(Collections.singletonList(2), subscriber.mValues);
+        assertEquals(2, stream.getDroppedCount());
+    }
+}
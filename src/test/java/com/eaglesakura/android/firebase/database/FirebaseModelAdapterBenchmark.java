@@ -0,0 +1,113 @@
+package com.eaglesakura.android.firebase.database;
+
+import com.eaglesakura.android.firebase.BenchmarkFixture.Item;
+import com.eaglesakura.android.firebase.FbLog;
+import com.eaglesakura.android.firebase.UnitTestCase;
+import com.eaglesakura.json.JSON;
+
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static com.eaglesakura.android.firebase.database.FirebaseModelAdapterTest.ITEM_ADAPTER;
+import static com.eaglesakura.android.firebase.database.FirebaseModelAdapterTest.newValue;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * FirebaseModelAdapterと、リフレクション・JSONによる変換を比較する
+ *
+ * DataSnapshotは端末外で生成できないため、DataSnapshot.getValue()と同じ形式の値を入力とし、
+ * リフレクション側はgetValue(Class)と同様にpublicフィールドへ値を設定する処理で代替する。
+ * JSON側はDumpの復旧と同じく、JSON.decodeOrNull()でモデルへ変換する。
+ */
+public class FirebaseModelAdapterBenchmark extends UnitTestCase {
+
+    static final int WARMUP_COUNT = 1000;
+
+    static final int TRY_COUNT = 100000;
+
+    /**
+     * リフレクションでpublicフィールドへ値を設定する
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T reflect(Map<String, Object> value, Class<T> clazz) throws Exception {
+        T result = clazz.newInstance();
+        for (Field field : clazz.getFields()) {
+            if (Modifier.isStatic(field.getModifiers())) {
+                continue;
+            }
+            Object item = value.get(field.getName());
+            if (item == null) {
+                continue;
+            }
+            Class<?> type = field.getType();
+            if (type == long.class) {
+                field.setLong(result, ((Number) item).longValue());
+            } else if (type == double.class) {
+                field.setDouble(result, ((Number) item).doubleValue());
+            } else if (type == boolean.class) {
+                field.setBoolean(result, (Boolean) item);
+            } else if (type == List.class) {
+                field.set(result, new ArrayList<>((List<Object>) item));
+            } else {
+                field.set(result, item);
+            }
+        }
+        return result;
+    }
+
+    interface Task {
+        void run(int index) throws Throwable;
+    }
+
+    static double measure(Task task) throws Throwable {
+        for (int i = 0; i < WARMUP_COUNT; ++i) {
+            task.run(i);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < TRY_COUNT; ++i) {
+            task.run(i);
+        }
+        return (System.nanoTime() - start) / 1000.0 / TRY_COUNT;
+    }
+
+    @Test
+    public void Adapterとリフレクションのデコードを比較する() throws Throwable {
+        List<Map<String, Object>> values = new ArrayList<>();
+        List<String> texts = new ArrayList<>();
+        for (int i = 0; i < 100; ++i) {
+            values.add(newValue(i));
+            texts.add(JSON.encodeOrNull(newValue(i)));
+        }
+
+        // 変換結果が一致する
+        for (Map<String, Object> value : values) {
+            Item adapted = ITEM_ADAPTER.fromValue(value);
+            Item reflected = reflect(value, Item.class);
+            assertNotNull(adapted);
+            assertEquals(reflected.id, adapted.id);
+            assertEquals(reflected.updatedAt, adapted.updatedAt);
+            assertEquals(reflected.score, adapted.score, 0.0);
+            assertEquals(reflected.enabled, adapted.enabled);
+            assertEquals(reflected.tags, adapted.tags);
+        }
+        for (int i = 0; i < texts.size(); ++i) {
+            Item decoded = JSON.decodeOrNull(texts.get(i), Item.class);
+            assertNotNull(decoded);
+            assertEquals(values.get(i).get("id"), decoded.id);
+            assertEquals(values.get(i).get("tags"), decoded.tags);
+        }
+
+        double adapterUs = measure(index -> ITEM_ADAPTER.fromValue(values.get(index % values.size())));
+        double reflectUs = measure(index -> reflect(values.get(index % values.size()), Item.class));
+        double jsonUs = measure(index -> JSON.decodeOrNull(texts.get(index % texts.size()), Item.class));
+        // Map形式の値をJSONを経由してモデルへ変換する場合
+        double jsonTreeUs = measure(index -> JSON.decodeOrNull(JSON.encodeOrNull(values.get(index % values.size())), Item.class));
+        FbLog.debug("decode adapter[%.3f us] reflection[%.3f us] json[%.3f us] json(from Map)[%.3f us]", adapterUs, reflectUs, jsonUs, jsonTreeUs);
+    }
+}
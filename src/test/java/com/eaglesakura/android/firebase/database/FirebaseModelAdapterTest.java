@@ -0,0 +1,83 @@
+package com.eaglesakura.android.firebase.database;
+
+import com.eaglesakura.android.firebase.BenchmarkFixture.Item;
+import com.eaglesakura.android.firebase.UnitTestCase;
+
+import org.junit.Test;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Adapterの登録と、送信する値への変換を確認する
+ */
+public class FirebaseModelAdapterTest extends UnitTestCase {
+
+    static final FirebaseModelAdapter<Item> ITEM_ADAPTER = new FirebaseModelAdapter<Item>() {
+        @Nullable
+        @Override
+        public Item fromValue(@Nullable Object value) {
+            if (value == null) {
+                return null;
+            }
+            Map<String, Object> map = asMap(value);
+            Item result = new Item();
+            result.id = asString(map.get("id"));
+            result.name = asString(map.get("name"));
+            result.updatedAt = asLong(map.get("updatedAt"), 0);
+            result.score = asDouble(map.get("score"), 0);
+            result.enabled = asBoolean(map.get("enabled"), false);
+            result.tags = asStringList(map.get("tags"));
+            return result;
+        }
+
+        @Nullable
+        @Override
+        public Object toValue(@NonNull Item model) {
+            Map<String, Object> result = new HashMap<>();
+            result.put("id", model.id);
+            result.put("name", model.name);
+            result.put("updatedAt", model.updatedAt);
+            result.put("score", model.score);
+            result.put("enabled", model.enabled);
+            result.put("tags", new ArrayList<>(model.tags));
+            return result;
+        }
+    };
+
+    /**
+     * DataSnapshot.getValue()と同じ形式の値を生成する
+     */
+    static Map<String, Object> newValue(int index) {
+        Map<String, Object> result = new HashMap<>();
+        result.put("id", "item-" + index);
+        result.put("name", "name " + index);
+        result.put("updatedAt", 1500000000000L + index);
+        result.put("score", index * 0.5);
+        result.put("enabled", (index % 2) == 0);
+        List<Object> tags = new ArrayList<>();
+        tags.add("tag-" + (index % 5));
+        tags.add("tag-" + (index % 7));
+        result.put("tags", tags);
+        return result;
+    }
+
+    @Test
+    public void 登録済みのAdapterが自動的に利用される() throws Throwable {
+        FirebaseModelAdapter.register(Item.class, ITEM_ADAPTER);
+        assertEquals(ITEM_ADAPTER, FirebaseModelAdapter.get(Item.class));
+
+        Object encoded = FirebaseModelAdapter.encode(ITEM_ADAPTER.fromValue(newValue(1)));
+        assertEquals(newValue(1), encoded);
+
+        // Adapterの無いクラスはそのまま送信される
+        assertEquals("text", FirebaseModelAdapter.encode("text"));
+    }
+}
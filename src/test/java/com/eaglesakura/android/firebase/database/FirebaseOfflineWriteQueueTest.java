@@ -0,0 +1,337 @@
+package com.eaglesakura.android.firebase.database;
+
+import com.google.android.gms.tasks.Task;
+
+import com.eaglesakura.android.firebase.UnitTestCase;
+import com.eaglesakura.json.JSON;
+
+import org.junit.Test;
+
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 送信待ちの書き込みのまとめ方・保存・送信順を確認する
+ *
+ * Firebaseへの送信は端末外で行えないため、送信されたパスを記録する。
+ */
+public class FirebaseOfflineWriteQueueTest extends UnitTestCase {
+
+    static class RecordingQueue extends FirebaseOfflineWriteQueue {
+        final List<List<String>> mBatches = Collections.synchronizedList(new ArrayList<>());
+
+        volatile boolean mOnline;
+
+        /**
+         * このパスを含む送信は拒否される
+         */
+        volatile String mRejectPath;
+
+        volatile SendResult mResult = SendResult.Committed;
+
+        RecordingQueue(@NonNull File file) {
+            super(file);
+        }
+
+        @Override
+        boolean isOnline() {
+            return mOnline;
+        }
+
+        @NonNull
+        @Override
+        SendResult send(@NonNull Map<String, Object> values) throws InterruptedException {
+            List<String> paths = new ArrayList<>(values.keySet());
+            Collections.sort(paths);
+            mBatches.add(paths);
+            if (mRejectPath != null && values.containsKey(mRejectPath)) {
+                return SendResult.Rejected;
+            }
+            return mResult;
+        }
+
+        /**
+         * 送信待ちが無くなるまで送信する
+         */
+        void replayAll() throws InterruptedException {
+            mOnline = true;
+            scheduleReplay();
+            final long timeout = System.currentTimeMillis() + 1000 * 5;
+            while (getDepth() > 0 && System.currentTimeMillis() < timeout) {
+                Thread.sleep(5);
+            }
+            mOnline = false;
+        }
+    }
+
+    /**
+     * 送信待ちから取り除かれた後、完了通知が届くまで待つ
+     */
+    static void awaitComplete(Task<?>... tasks) throws InterruptedException {
+        final long timeout = System.currentTimeMillis() + 1000 * 5;
+        for (Task<?> task : tasks) {
+            while (!task.isComplete() && System.currentTimeMillis() < timeout) {
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    static File newQueueFile() throws Exception {
+        File dir = File.createTempFile("offline-queue", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdirs());
+        return new File(dir, FirebaseOfflineWriteQueue.QUEUE_FILE_NAME);
+    }
+
+    @Test
+    public void 同じパスへの書き込みは最新のみが残る() throws Throwable {
+        RecordingQueue queue = new RecordingQueue(newQueueFile());
+        Task<Void> first = queue.enqueue("/users/a/", null);
+        Task<Void> second = queue.enqueue("users/a", null);
+
+        assertEquals(1, queue.getDepth());
+        assertEquals(2, queue.getEnqueuedCount());
+        assertEquals(1, queue.getSupersededCount());
+        assertTrue(first.isSuccessful());
+        assertFalse(second.isComplete());
+
+        // 送信済みのものは残らない
+        queue.replayAll();
+        assertEquals(Collections.singletonList(Arrays.asList("users/a")), queue.mBatches);
+        awaitComplete(second);
+        assertTrue(second.isSuccessful());
+        assertEquals(1, queue.getCommittedCount());
+    }
+
+    @Test
+    public void 親子関係にあるパスへの送信待ちを検出する() throws Throwable {
+        RecordingQueue queue = new RecordingQueue(newQueueFile());
+        queue.enqueue("users/a", null);
+
+        assertTrue(queue.hasPendingWrite("/users/a/"));
+        assertTrue(queue.hasPendingWrite("users"));
+        assertTrue(queue.hasPendingWrite("users/a/name"));
+        assertFalse(queue.hasPendingWrite("users/b"));
+        assertFalse(queue.hasPendingWrite("users/ab"));
+    }
+
+    @Test
+    public void supersedeした書き込みは送信されない() throws Throwable {
+        RecordingQueue queue = new RecordingQueue(newQueueFile());
+        Task<Void> task = queue.enqueue("users/a", null);
+        queue.enqueue("users/b", null);
+
+        // 他の経路で送信した場合は成功として扱う
+        queue.supersede("/users/a");
+        assertTrue(task.isSuccessful());
+        assertFalse(queue.hasPendingWrite("users/a"));
+        assertEquals(1, queue.getSupersededCount());
+
+        queue.replayAll();
+        assertEquals(Collections.singletonList(Arrays.asList("users/b")), queue.mBatches);
+    }
+
+    @Test
+    public void 親子関係にあるパスは書き込み順に別の送信となる() throws Throwable {
+        RecordingQueue queue = new RecordingQueue(newQueueFile());
+        queue.enqueue("a", null);
+        queue.enqueue("a/b", null);
+        queue.enqueue("c", null);
+        // 上書きされた書き込みは最後の書き込みとして扱われ、子より後に送信される
+        queue.enqueue("a", null);
+
+        queue.replayAll();
+        assertEquals(Arrays.asList(
+                Arrays.asList("a/b", "c"),
+                Arrays.asList("a")
+        ), queue.mBatches);
+        assertEquals(0, queue.getDepth());
+    }
+
+    @Test
+    public void 送信件数の上限で分割される() throws Throwable {
+        RecordingQueue queue = new RecordingQueue(newQueueFile());
+        queue.maxBatchSize(2);
+        for (int i = 0; i < 5; ++i) {
+            queue.enqueue("item/" + i, null);
+        }
+
+        queue.replayAll();
+        assertEquals(Arrays.asList(
+                Arrays.asList("item/0", "item/1"),
+                Arrays.asList("item/2", "item/3"),
+                Arrays.asList("item/4")
+        ), queue.mBatches);
+        assertEquals(5, queue.getCommittedCount());
+    }
+
+    @Test
+    public void 拒否された書き込みのみが破棄される() throws Throwable {
+        RecordingQueue queue = new RecordingQueue(newQueueFile());
+        queue.mRejectPath = "bad";
+        Task<Void> good = queue.enqueue("good", null);
+        Task<Void> bad = queue.enqueue("bad", null);
+
+        // まとめた送信が拒否されると、1件ずつ送信し直す
+        queue.replayAll();
+        assertEquals(Arrays.asList(
+                Arrays.asList("bad", "good"),
+                Arrays.asList("good"),
+                Arrays.asList("bad")
+        ), queue.mBatches);
+        awaitComplete(good, bad);
+        assertTrue(good.isSuccessful());
+        assertTrue(bad.isComplete());
+        assertFalse(bad.isSuccessful());
+        assertEquals(1, queue.getCommittedCount());
+        assertEquals(1, queue.getFailedCount());
+    }
+
+    @Test
+    public void 完了しなかった書き込みは残る() throws Throwable {
+        RecordingQueue queue = new RecordingQueue(newQueueFile());
+        queue.mResult = FirebaseOfflineWriteQueue.SendResult.Retry;
+        Task<Void> task = queue.enqueue("retry", null);
+
+        queue.mOnline = true;
+        queue.scheduleReplay();
+        final long timeout = System.currentTimeMillis() + 1000 * 5;
+        while (queue.mBatches.isEmpty() && System.currentTimeMillis() < timeout) {
+            Thread.sleep(5);
+        }
+        queue.mOnline = false;
+
+        assertEquals(1, queue.mBatches.size());
+        assertEquals(1, queue.getDepth());
+        assertFalse(task.isComplete());
+        assertEquals(0, queue.getFailedCount());
+    }
+
+    @Test
+    public void オンライン復帰時は再送を待たずに送信する() throws Throwable {
+        RecordingQueue queue = new RecordingQueue(newQueueFile());
+        queue.mResult = FirebaseOfflineWriteQueue.SendResult.Retry;
+        Task<Void> task = queue.enqueue("retry", null);
+
+        queue.mOnline = true;
+        queue.scheduleReplay();
+        long timeout = System.currentTimeMillis() + 1000 * 5;
+        while (queue.mBatches.isEmpty() && System.currentTimeMillis() < timeout) {
+            Thread.sleep(5);
+        }
+        // 再送の予約を待つ
+        Thread.sleep(50);
+        assertEquals(1, queue.mBatches.size());
+
+        // 再送の間隔より早く送信される
+        queue.mResult = FirebaseOfflineWriteQueue.SendResult.Committed;
+        queue.onOnline();
+        timeout = System.currentTimeMillis() + FirebaseOfflineWriteQueue.RETRY_DELAY_MS / 2;
+        while (queue.getDepth() > 0 && System.currentTimeMillis() < timeout) {
+            Thread.sleep(5);
+        }
+        queue.mOnline = false;
+
+        assertEquals(0, queue.getDepth());
+        assertEquals(2, queue.mBatches.size());
+        awaitComplete(task);
+        assertTrue(task.isSuccessful());
+    }
+
+    @Test
+    public void 書き込みは返却前に保存される() throws Throwable {
+        File file = newQueueFile();
+        RecordingQueue queue = new RecordingQueue(file);
+        queue.enqueue("a", "value-a");
+
+        // 保存を待たずに終了した場合を想定し、別のインスタンスで読み込む
+        RecordingQueue restored = new RecordingQueue(file);
+        assertEquals(1, restored.getDepth());
+    }
+
+    @Test
+    public void 保存した書き込みを書き込み順に復元する() throws Throwable {
+        File file = newQueueFile();
+        RecordingQueue queue = new RecordingQueue(file);
+        queue.enqueue("a", "value-a");
+        queue.enqueue("b", "value-b");
+        queue.enqueue("a", "value-a2");
+        queue.flush();
+        assertTrue(file.isFile());
+
+        RecordingQueue restored = new RecordingQueue(file);
+        restored.maxBatchSize(1);
+        assertEquals(2, restored.getDepth());
+
+        // 復元後の書き込みは、復元した書き込みより後に送信される
+        restored.enqueue("c", null);
+        restored.replayAll();
+        assertEquals(Arrays.asList(
+                Arrays.asList("b"),
+                Arrays.asList("a"),
+                Arrays.asList("c")
+        ), restored.mBatches);
+
+        // 送信待ちが無くなるとファイルは削除される
+        restored.flush();
+        assertFalse(file.isFile());
+    }
+
+    @Test
+    public void ファイル内の順序に依らず書き込み順に送信する() throws Throwable {
+        File file = newQueueFile();
+        FirebaseOfflineWriteQueue.Journal journal = new FirebaseOfflineWriteQueue.Journal();
+        journal.seq = 10;
+        for (long seq : new long[]{7, 3, 5}) {
+            FirebaseOfflineWriteQueue.Record record = new FirebaseOfflineWriteQueue.Record();
+            record.seq = seq;
+            record.path = "seq/" + seq;
+            journal.records.add(record);
+        }
+        String text = JSON.encodeOrNull(journal);
+        assertNotNull(text);
+        try (OutputStream os = new FileOutputStream(file)) {
+            os.write(text.getBytes("UTF-8"));
+        }
+
+        RecordingQueue queue = new RecordingQueue(file);
+        queue.maxBatchSize(1);
+        queue.enqueue("seq/new", null);
+        queue.replayAll();
+        assertEquals(Arrays.asList(
+                Arrays.asList("seq/3"),
+                Arrays.asList("seq/5"),
+                Arrays.asList("seq/7"),
+                Arrays.asList("seq/new")
+        ), queue.mBatches);
+    }
+
+    @Test
+    public void 破損したファイルは破棄される() throws Throwable {
+        File file = newQueueFile();
+        try (OutputStream os = new FileOutputStream(file)) {
+            os.write("{broken".getBytes("UTF-8"));
+        }
+
+        RecordingQueue queue = new RecordingQueue(file);
+        assertEquals(0, queue.getDepth());
+
+        // 以降の書き込みは通常通り送信される
+        queue.enqueue("after", null);
+        queue.replayAll();
+        assertEquals(Collections.singletonList(Arrays.asList("after")), queue.mBatches);
+    }
+}
@@ -0,0 +1,137 @@
+package com.eaglesakura.android.firebase.database;
+
+import com.eaglesakura.android.firebase.UnitTestCase;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * ページの保持範囲を確認する
+ *
+ * Firebaseからの受信は端末外で再現できないため、読み込み結果を直接渡す。
+ */
+public class FirebasePagedListTest extends UnitTestCase {
+
+    static final int PAGE_SIZE = 4;
+
+    static FirebasePagedList<String> newList() {
+        return new FirebasePagedList<>(String.class)
+                .pageSize(PAGE_SIZE)
+                .windowPages(3)
+                .prefetchDistance(0);
+    }
+
+    /**
+     * 1ページ分の読み込み結果を渡す
+     */
+    static void deliver(FirebasePagedList<String> list, int pageIndex, boolean hasNext) {
+        List<String> keys = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < PAGE_SIZE; ++i) {
+            keys.add(String.format("key-%04d", pageIndex * PAGE_SIZE + i));
+            values.add("value-" + (pageIndex * PAGE_SIZE + i));
+        }
+        FirebasePagedList.Cursor next = hasNext ? new FirebasePagedList.Cursor(null, keys.get(keys.size() - 1)) : null;
+        list.onPageLoaded(pageIndex, 0, keys, values, next);
+    }
+
+    @Test
+    public void 参照位置から離れたページは破棄される() throws Throwable {
+        FirebasePagedList<String> list = newList();
+        for (int i = 0; i < 8; ++i) {
+            deliver(list, i, true);
+        }
+        // 参照位置(0ページ目)の前後のみが残る
+        assertEquals(2, list.getLoadedPageCount());
+        assertNotNull(list.getPage(0));
+        assertNotNull(list.getPage(1));
+        assertNull(list.getPage(2));
+
+        // 参照位置を移動すると、離れたページが破棄される
+        assertNull(list.get(5 * PAGE_SIZE));
+        assertNull(list.getPage(0));
+        assertNull(list.getPage(1));
+        assertEquals(8 * PAGE_SIZE, list.size());
+    }
+
+    @Test
+    public void 参照位置の周囲のページは保持される() throws Throwable {
+        FirebasePagedList<String> list = newList();
+        for (int i = 0; i < 4; ++i) {
+            deliver(list, i, true);
+        }
+        list.get(PAGE_SIZE);
+        deliver(list, 2, true);
+        assertEquals("value-" + PAGE_SIZE, list.get(PAGE_SIZE));
+        assertNotNull(list.getPage(0));
+        assertNotNull(list.getPage(2));
+        assertNull(list.getPage(3));
+    }
+
+    @Test
+    public void 範囲外のページを待機できる() throws Throwable {
+        FirebasePagedList<String> list = newList();
+        for (int i = 0; i < 5; ++i) {
+            deliver(list, i, true);
+        }
+        assertNull(list.getPage(5));
+
+        AtomicReference<Object> result = new AtomicReference<>();
+        final long timeout = System.currentTimeMillis() + 1000 * 5;
+        Thread thread = new Thread(() -> {
+            try {
+                result.set(list.awaitPage(5, () -> System.currentTimeMillis() > timeout));
+            } catch (Throwable e) {
+                result.set(e);
+            }
+        });
+        thread.start();
+
+        // 待機中に届いたページは参照位置から離れていても破棄されない
+        Thread.sleep(100);
+        list.get(0);
+        deliver(list, 5, false);
+        thread.join();
+
+        assertTrue(String.valueOf(result.get()), result.get() instanceof List);
+        assertEquals("value-" + (5 * PAGE_SIZE), ((List<?>) result.get()).get(0));
+        assertTrue(!list.hasMore());
+    }
+
+    @Test
+    public void loadPageで参照位置が移動する() throws Throwable {
+        FirebasePagedList<String> list = newList();
+        for (int i = 0; i < 6; ++i) {
+            deliver(list, i, true);
+        }
+        list.loadPage(5);
+        deliver(list, 5, true);
+        assertNotNull(list.getPage(5));
+        assertNull(list.getPage(0));
+    }
+
+    @Test
+    public void 要求したページに到達すると以降のページを読み込まない() throws Throwable {
+        FirebasePagedList<String> list = newList();
+        list.mTargetPage = 3;
+        deliver(list, 0, true);
+        assertEquals(3, list.mTargetPage);
+        deliver(list, 1, true);
+        deliver(list, 2, true);
+        deliver(list, 3, true);
+        assertEquals(-1, list.mTargetPage);
+
+        // 末尾に達した場合も要求は残らない
+        list.mTargetPage = 6;
+        deliver(list, 4, false);
+        assertEquals(-1, list.mTargetPage);
+    }
+}
@@ -0,0 +1,116 @@
+package com.eaglesakura.android.firebase.database;
+
+import com.eaglesakura.android.firebase.UnitTestCase;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * サーバー時刻の補正速度と、時刻が巻き戻らないことを確認する
+ */
+public class FirebaseServerClockTest extends UnitTestCase {
+
+    /**
+     * elapsedRealtime=1000の時点でサーバー時刻が1000000となる時計を生成する
+     */
+    static FirebaseServerClock newClock() {
+        FirebaseServerClock clock = new FirebaseServerClock();
+        clock.update(1000000, 1000);
+        return clock;
+    }
+
+    @Test
+    public void 初期化前は無効な時刻を返す() {
+        FirebaseServerClock clock = new FirebaseServerClock();
+        assertFalse(clock.isInitialized());
+        assertEquals(Long.MIN_VALUE, clock.currentTimeMillis(1000));
+    }
+
+    @Test
+    public void 初回のずれは即座に反映される() {
+        FirebaseServerClock clock = newClock();
+        assertTrue(clock.isInitialized());
+        assertEquals(1000000, clock.currentTimeMillis(1000));
+        assertEquals(1001000, clock.currentTimeMillis(2000));
+    }
+
+    @Test
+    public void 過去方向のずれは巻き戻さずに補正する() {
+        FirebaseServerClock clock = newClock();
+        // サーバー時刻が500ms遅れていた
+        clock.update(1001000 - 500, 2000);
+        assertEquals(1001000, clock.currentTimeMillis(2000));
+
+        // 補正中も時刻は進み続ける
+        long last = clock.currentTimeMillis(2000);
+        for (long elapsed = 2001; elapsed <= 8000; ++elapsed) {
+            long now = clock.currentTimeMillis(elapsed);
+            assertTrue("elapsed=" + elapsed, now >= last);
+            last = now;
+        }
+        // 補正の完了後はサーバー時刻と一致する
+        assertEquals(1001000 + 6000 - 500, last);
+    }
+
+    @Test
+    public void 補正は一定の速度で行われる() {
+        FirebaseServerClock clock = newClock();
+        clock.update(1001000 - 500, 2000);
+
+        // 1000ms経過で100ms補正される
+        assertEquals(1001000 + 1000 - 100, clock.currentTimeMillis(3000));
+        // 500ms / SLEW_RATE で補正が完了する
+        assertEquals(1001000 + 5000 - 500, clock.currentTimeMillis(7000));
+        assertEquals(1001000 + 6000 - 500, clock.currentTimeMillis(8000));
+    }
+
+    @Test
+    public void 小さな未来方向のずれは徐々に補正する() {
+        FirebaseServerClock clock = newClock();
+        clock.update(1001000 + 1000, 2000);
+
+        assertEquals(1001000, clock.currentTimeMillis(2000));
+        assertEquals(1001000 + 1000 + 100, clock.currentTimeMillis(3000));
+        assertEquals(1001000 + 5000 + 500, clock.currentTimeMillis(7000));
+        assertEquals(1001000 + 10000 + 1000, clock.currentTimeMillis(12000));
+        assertEquals(1001000 + 11000 + 1000, clock.currentTimeMillis(13000));
+    }
+
+    @Test
+    public void 大きな未来方向のずれは即座に補正する() {
+        FirebaseServerClock clock = newClock();
+        final long jump = FirebaseServerClock.MAX_SLEW_MS + 1;
+        clock.update(1001000 + jump, 2000);
+        assertEquals(1001000 + jump, clock.currentTimeMillis(2000));
+    }
+
+    @Test
+    public void 大きな過去方向のずれも巻き戻さない() {
+        FirebaseServerClock clock = newClock();
+        clock.update(1001000 - FirebaseServerClock.MAX_SLEW_MS * 2, 2000);
+        assertEquals(1001000, clock.currentTimeMillis(2000));
+        assertEquals(1001000 + 1000 - 100, clock.currentTimeMillis(3000));
+    }
+
+    @Test
+    public void 前後して呼び出されても巻き戻らない() {
+        FirebaseServerClock clock = newClock();
+        assertEquals(1002000, clock.currentTimeMillis(3000));
+        // 他のスレッドが先に取得したelapsedRealtimeで呼び出された
+        assertEquals(1002000, clock.currentTimeMillis(2500));
+        assertEquals(1002500, clock.currentTimeMillis(3500));
+    }
+
+    @Test
+    public void resetでは補正せずに反映する() {
+        FirebaseServerClock clock = newClock();
+        assertEquals(1001000, clock.currentTimeMillis(2000));
+
+        clock.reset(500000, 2000);
+        assertEquals(500000, clock.currentTimeMillis(2000));
+        assertEquals(501000, clock.currentTimeMillis(3000));
+    }
+}
@@ -0,0 +1,137 @@
+package com.eaglesakura.android.firebase.database;
+
+import com.google.android.gms.tasks.Task;
+
+import com.eaglesakura.android.firebase.UnitTestCase;
+
+import org.junit.Test;
+
+import android.content.Context;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 書き込み先のパスの正規化と、親子関係の検出、コミット時の値の反映を確認する
+ *
+ * Firebaseへの送信は端末外で行えないため、モックデータに接続したインスタンスを利用する。
+ */
+public class FirebaseWriteBatchTest extends UnitTestCase {
+
+    /**
+     * 接続時に初期値を与える
+     */
+    static FirebaseMockDataProvider newProvider(Object initial) {
+        return new FirebaseMockDataProvider() {
+            @SuppressWarnings("unchecked")
+            @Override
+            public <T> T getData(FirebaseData<T> data, String path) {
+                return (T) initial;
+            }
+
+            @Override
+            public Context getContext() {
+                return null;
+            }
+        };
+    }
+
+    static FirebaseData<String> newMockData(String path, String initial) {
+        return new FirebaseData<>(String.class)
+                .mock(newProvider(initial))
+                .connect(path);
+    }
+
+    static void assertRejected(String... paths) {
+        try {
+            FirebaseWriteBatch.validatePaths(Arrays.asList(paths));
+            fail("accepted " + Arrays.toString(paths));
+        } catch (IllegalStateException e) {
+            // 拒否される
+        }
+    }
+
+    @Test
+    public void パスは前後のスラッシュを除いて扱う() {
+        assertEquals("users/a", FirebaseWriteBatch.normalizePath("/users/a/"));
+        assertEquals("users/a", FirebaseWriteBatch.normalizePath("users/a"));
+        assertEquals("", FirebaseWriteBatch.normalizePath("/"));
+    }
+
+    @Test
+    public void 親子関係に無いパスは受け付ける() {
+        FirebaseWriteBatch.validatePaths(Arrays.asList("users/a", "users/b", "items/a/name", "items/ab"));
+        FirebaseWriteBatch.validatePaths(Collections.singletonList(""));
+        FirebaseWriteBatch.validatePaths(Collections.<String>emptyList());
+    }
+
+    @Test
+    public void 親子関係にあるパスは拒否する() {
+        assertRejected("users/a", "users/a/name");
+        assertRejected("users/a/name/first", "users");
+        assertRejected("", "users/a");
+    }
+
+    @Test
+    public void 前方一致のみのパスは親子関係としない() {
+        FirebaseWriteBatch.validatePaths(Arrays.asList("users/a", "users/ab", "users/a-b"));
+    }
+
+    @Test
+    public void コミットで全ての値が反映される() throws Throwable {
+        FirebaseData<String> user = newMockData("users/a", "user");
+        FirebaseData<String> profile = newMockData("/profiles/a/", "profile");
+        FirebaseData<String> removed = newMockData("items/a", "item");
+
+        FirebaseWriteBatch batch = new FirebaseWriteBatch()
+                .set(user, "user-old")
+                .set(user, "user-new")
+                .set(profile, "profile-new")
+                .remove(removed);
+        // 同じパスへの書き込みは最後の値のみが残る
+        assertEquals(3, batch.size());
+
+        Task<Void> task = batch.commit();
+        assertTrue(task.isSuccessful());
+        assertEquals(0, batch.size());
+        assertEquals("user-new", user.getValue());
+        assertEquals("profile-new", profile.getValue());
+        assertNull(removed.getValue());
+    }
+
+    @Test
+    public void 完了を待つコミットでも値が反映される() throws Throwable {
+        FirebaseData<String> user = newMockData("users/a", "user");
+        new FirebaseWriteBatch()
+                .set(user, "user-new")
+                .commit(() -> false);
+        assertEquals("user-new", user.getValue());
+    }
+
+    @Test
+    public void 親子関係にある書き込みはコミットせずに拒否する() throws Throwable {
+        FirebaseData<String> parent = newMockData("users/a", "parent");
+        FirebaseData<String> child = newMockData("users/a/name", "child");
+        FirebaseWriteBatch batch = new FirebaseWriteBatch()
+                .set(parent, "parent-new")
+                .set(child, "child-new");
+        try {
+            batch.commit();
+            fail();
+        } catch (IllegalStateException e) {
+            // 拒否される
+        }
+        assertEquals("parent", parent.getValue());
+        assertEquals("child", child.getValue());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void 未接続のインスタンスは受け付けない() {
+        new FirebaseWriteBatch().set(new FirebaseData<>(String.class), "value");
+    }
+}
@@ -0,0 +1,169 @@
+package com.eaglesakura.android.firebase.database.dump;
+
+import com.eaglesakura.android.firebase.BenchmarkFixture.Model;
+import com.eaglesakura.android.firebase.UnitTestCase;
+import com.eaglesakura.android.firebase.database.FirebaseModelAdapter;
+import com.eaglesakura.json.JSON;
+
+import org.junit.Test;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Base64;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+
+import static com.eaglesakura.android.firebase.BenchmarkFixture.newModel;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * バイナリ形式のエンコード・復旧と、既存の形式との互換性を確認する
+ */
+public class DeflateDumpCodecTest extends UnitTestCase {
+
+    public static class Point {
+        public String name;
+
+        public long x;
+
+        public double y;
+
+        public boolean visible;
+
+        public List<String> tags = new ArrayList<>();
+    }
+
+    static {
+        FirebaseModelAdapter.register(Point.class, new FirebaseModelAdapter<Point>() {
+            @Nullable
+            @Override
+            public Point fromValue(@Nullable Object value) {
+                if (value == null) {
+                    return null;
+                }
+                Map<String, Object> map = asMap(value);
+                Point result = new Point();
+                result.name = asString(map.get("name"));
+                result.x = asLong(map.get("x"), 0);
+                result.y = asDouble(map.get("y"), 0);
+                result.visible = asBoolean(map.get("visible"), false);
+                result.tags = asStringList(map.get("tags"));
+                return result;
+            }
+
+            @Nullable
+            @Override
+            public Object toValue(@NonNull Point model) {
+                Map<String, Object> result = new HashMap<>();
+                result.put("name", model.name);
+                result.put("x", model.x);
+                result.put("y", model.y);
+                result.put("visible", model.visible);
+                result.put("tags", model.tags);
+                return result;
+            }
+        });
+    }
+
+    public static class Plain {
+        public String text;
+    }
+
+    static Point newPoint(String name, int tagCount) {
+        Point point = new Point();
+        point.name = name;
+        point.x = Long.MAX_VALUE;
+        point.y = 0.125;
+        point.visible = true;
+        for (int i = 0; i < tagCount; ++i) {
+            point.tags.add("tag-" + i);
+        }
+        return point;
+    }
+
+    static void assertPoint(Point expected, Point actual) {
+        assertNotNull(actual);
+        assertEquals(expected.name, actual.name);
+        assertEquals(expected.x, actual.x);
+        assertEquals(expected.y, actual.y, 0.0);
+        assertEquals(expected.visible, actual.visible);
+        assertEquals(expected.tags, actual.tags);
+    }
+
+    @Test
+    public void Adapterのあるクラスはバイナリで復旧できる() {
+        DeflateDumpCodec codec = new DeflateDumpCodec();
+        for (int tagCount : new int[]{0, 3, 2000}) {
+            Point point = newPoint("日本語の名前", tagCount);
+            String encoded = codec.encode(point);
+            assertNotNull(encoded);
+            assertTrue(encoded.startsWith(FirebaseDumpCodec.HEADER_PREFIX));
+            assertPoint(point, FirebaseDumpCodec.decode(encoded, Point.class));
+        }
+    }
+
+    @Test
+    public void Adapterの無いクラスは閾値以上の場合のみ圧縮する() {
+        DeflateDumpCodec codec = new DeflateDumpCodec(64, 1);
+
+        Plain small = new Plain();
+        small.text = "small";
+        assertEquals(JSON.encodeOrNull(small), codec.encode(small));
+
+        Plain large = new Plain();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100; ++i) {
+            text.append("repeated ");
+        }
+        large.text = text.toString();
+        String encoded = codec.encode(large);
+        assertNotNull(encoded);
+        assertTrue(encoded.startsWith(FirebaseDumpCodec.HEADER_PREFIX));
+        assertEquals(large.text, FirebaseDumpCodec.decode(encoded, Plain.class).text);
+    }
+
+    @Test
+    public void バージョン1の圧縮したJSONを復旧できる() throws Exception {
+        Plain plain = new Plain();
+        plain.text = "version 1";
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (OutputStream os = new DeflaterOutputStream(buffer)) {
+            os.write(JSON.encodeOrNull(plain).getBytes("UTF-8"));
+        }
+        String encoded = FirebaseDumpCodec.HEADER_PREFIX + "deflate:1:" + Base64.encodeToString(buffer.toByteArray(), Base64.NO_WRAP);
+        assertEquals(plain.text, FirebaseDumpCodec.decode(encoded, Plain.class).text);
+    }
+
+    @Test
+    public void ヘッダの無い既存のJSONを復旧できる() {
+        Model model = newModel(10);
+        String legacy = JSON.encodeOrNull(model);
+
+        Model decoded = FirebaseDumpCodec.decode(legacy, Model.class);
+        assertNotNull(decoded);
+        assertEquals(model.owner, decoded.owner);
+    }
+
+    @Test
+    public void 閾値以上のデータのみ圧縮される() {
+        DeflateDumpCodec codec = new DeflateDumpCodec();
+
+        String small = codec.encode(newModel(1));
+        assertNotNull(small);
+        assertTrue(small.startsWith("{"));
+
+        String large = codec.encode(newModel(1000));
+        assertNotNull(large);
+        assertTrue(large.startsWith(FirebaseDumpCodec.HEADER_PREFIX));
+        assertTrue(large.length() < JSON.encodeOrNull(newModel(1000)).length());
+    }
+}
@@ -0,0 +1,205 @@
+package com.eaglesakura.android.firebase.database.dump;
+
+import com.eaglesakura.android.firebase.UnitTestCase;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 差分Dumpのエンコード・復旧と、基準の保存し直しを確認する
+ */
+public class FirebaseDeltaDumpTest extends UnitTestCase {
+
+    public static class Item {
+        public String id;
+
+        public double score;
+
+        public List<String> tags = new ArrayList<>();
+    }
+
+    public static class Model {
+        public String owner;
+
+        public int schemaVersion;
+
+        public Map<String, Item> items = new HashMap<>();
+    }
+
+    static Item newItem(int index) {
+        Item item = new Item();
+        item.id = "item-" + index;
+        item.score = index * 0.25;
+        item.tags.add("tag-" + (index % 7));
+        item.tags.add("tag-" + (index % 11));
+        return item;
+    }
+
+    static Model newModel(int itemCount) {
+        Model model = new Model();
+        model.owner = "owner";
+        model.schemaVersion = 3;
+        for (int i = 0; i < itemCount; ++i) {
+            Item item = newItem(i);
+            model.items.put(item.id, item);
+        }
+        return model;
+    }
+
+    static final String KEY = "delta/test";
+
+    static final String CHAIN_KEY = FirebaseDeltaDump.toChainKey(KEY);
+
+    static Map<String, String> encode(FirebaseDeltaDump.Chain chain, Object value, int maxChainLength) {
+        return FirebaseDeltaDump.encode(chain, KEY, value, FirebaseDumpCodec.JSON_TEXT, maxChainLength);
+    }
+
+    static void assertModel(Model expected, Model actual) {
+        assertNotNull(actual);
+        assertEquals(expected.owner, actual.owner);
+        assertEquals(expected.schemaVersion, actual.schemaVersion);
+        assertEquals(expected.items.keySet(), actual.items.keySet());
+        for (String id : expected.items.keySet()) {
+            assertEquals(expected.items.get(id).score, actual.items.get(id).score, 0.0);
+            assertEquals(expected.items.get(id).tags, actual.items.get(id).tags);
+        }
+    }
+
+    @Test
+    public void 初回は基準を保存する() {
+        FirebaseDeltaDump.Chain chain = new FirebaseDeltaDump.Chain();
+        Model model = newModel(10);
+        Map<String, String> result = encode(chain, model, FirebaseDeltaDump.DEFAULT_MAX_CHAIN_LENGTH);
+
+        assertTrue(result.get(KEY).length() > 0);
+        assertEquals("", result.get(CHAIN_KEY));
+        assertModel(model, FirebaseDeltaDump.decode(result.get(KEY), null, Model.class));
+    }
+
+    @Test
+    public void 変化が無い場合は書き込まない() {
+        FirebaseDeltaDump.Chain chain = new FirebaseDeltaDump.Chain();
+        encode(chain, newModel(10), FirebaseDeltaDump.DEFAULT_MAX_CHAIN_LENGTH);
+        assertTrue(encode(chain, newModel(10), FirebaseDeltaDump.DEFAULT_MAX_CHAIN_LENGTH).isEmpty());
+    }
+
+    @Test
+    public void 変更は差分として保存され復旧できる() {
+        FirebaseDeltaDump.Chain chain = new FirebaseDeltaDump.Chain();
+        Model model = newModel(10);
+        String base = encode(chain, model, FirebaseDeltaDump.DEFAULT_MAX_CHAIN_LENGTH).get(KEY);
+
+        // 変更・削除・追加を順に行い、毎回基準と差分から復旧できる
+        model.items.get("item-3").score = 100;
+        Map<String, String> changed = encode(chain, model, FirebaseDeltaDump.DEFAULT_MAX_CHAIN_LENGTH);
+        assertEquals(1, changed.size());
+        assertModel(model, FirebaseDeltaDump.decode(base, changed.get(CHAIN_KEY), Model.class));
+
+        model.items.remove("item-5");
+        Map<String, String> removed = encode(chain, model, FirebaseDeltaDump.DEFAULT_MAX_CHAIN_LENGTH);
+        assertEquals(1, removed.size());
+        assertModel(model, FirebaseDeltaDump.decode(base, removed.get(CHAIN_KEY), Model.class));
+
+        model.items.put("item-added", newItem(99));
+        model.items.get("item-added").id = "item-added";
+        Map<String, String> added = encode(chain, model, FirebaseDeltaDump.DEFAULT_MAX_CHAIN_LENGTH);
+        assertEquals(1, added.size());
+        assertModel(model, FirebaseDeltaDump.decode(base, added.get(CHAIN_KEY), Model.class));
+    }
+
+    @Test
+    public void 差分数が上限に達すると基準を保存し直す() {
+        FirebaseDeltaDump.Chain chain = new FirebaseDeltaDump.Chain();
+        Model model = newModel(10);
+        encode(chain, model, 2);
+
+        for (int i = 0; i < 2; ++i) {
+            model.items.get("item-1").score = i + 10;
+            assertNull(encode(chain, model, 2).get(KEY));
+        }
+
+        model.items.get("item-1").score = 20;
+        Map<String, String> rebased = encode(chain, model, 2);
+        assertNotNull(rebased.get(KEY));
+        assertEquals("", rebased.get(CHAIN_KEY));
+        assertModel(model, FirebaseDeltaDump.decode(rebased.get(KEY), null, Model.class));
+    }
+
+    @Test
+    public void 差分が大きい場合は基準を保存し直す() {
+        FirebaseDeltaDump.Chain chain = new FirebaseDeltaDump.Chain();
+        encode(chain, newModel(10), FirebaseDeltaDump.DEFAULT_MAX_CHAIN_LENGTH);
+
+        // 全要素が別のKeyへ置き換わる
+        Model model = newModel(0);
+        for (int i = 0; i < 10; ++i) {
+            model.items.put("replaced-" + i, newItem(i + 100));
+        }
+        Map<String, String> rebased = encode(chain, model, FirebaseDeltaDump.DEFAULT_MAX_CHAIN_LENGTH);
+        assertNotNull(rebased.get(KEY));
+        assertEquals("", rebased.get(CHAIN_KEY));
+    }
+
+    @Test
+    public void 基準と対応しない差分は無視される() {
+        FirebaseDeltaDump.Chain chain = new FirebaseDeltaDump.Chain();
+        Model model = newModel(10);
+        encode(chain, model, FirebaseDeltaDump.DEFAULT_MAX_CHAIN_LENGTH);
+        model.items.get("item-1").score = 50;
+        String staleChain = encode(chain, model, FirebaseDeltaDump.DEFAULT_MAX_CHAIN_LENGTH).get(CHAIN_KEY);
+
+        // 別の基準に対しては差分を適用しない
+        Model other = newModel(5);
+        String otherBase = FirebaseDumpCodec.JSON_TEXT.encode(other);
+        assertModel(other, FirebaseDeltaDump.decode(otherBase, staleChain, Model.class));
+    }
+
+    @Test
+    public void 差分の適用で変更後の値になる() {
+        Map<String, Object> from = new LinkedHashMap<>();
+        from.put("a", 1L);
+        from.put("b", "text");
+        Map<String, Object> child = new LinkedHashMap<>();
+        child.put("x", Arrays.asList("1", "2"));
+        child.put("y", true);
+        from.put("c", child);
+
+        Map<String, Object> to = new LinkedHashMap<>();
+        to.put("a", 2L);
+        Map<String, Object> toChild = new LinkedHashMap<>();
+        toChild.put("x", Arrays.asList("1", "3"));
+        toChild.put("z", "added");
+        to.put("c", toChild);
+
+        List<FirebaseDeltaDump.Op> ops = new ArrayList<>();
+        FirebaseDeltaDump.diff(new ArrayList<>(), from, to, ops);
+        Object applied = copy(from);
+        for (FirebaseDeltaDump.Op op : ops) {
+            applied = FirebaseDeltaDump.apply(applied, op);
+        }
+        assertEquals(to, applied);
+    }
+
+    @SuppressWarnings("unchecked")
+    static Object copy(Object value) {
+        if (value instanceof Map) {
+            Map<String, Object> result = new LinkedHashMap<>();
+            for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+                result.put(entry.getKey(), copy(entry.getValue()));
+            }
+            return result;
+        }
+        return value;
+    }
+}
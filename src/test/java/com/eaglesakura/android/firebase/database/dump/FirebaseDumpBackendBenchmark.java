@@ -0,0 +1,70 @@
+package com.eaglesakura.android.firebase.database.dump;
+
+import com.eaglesakura.android.firebase.FbLog;
+import com.eaglesakura.android.firebase.UnitTestCase;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * 保存先毎の書き込み時間と、起動直後の読み込み時間を比較する
+ */
+public class FirebaseDumpBackendBenchmark extends UnitTestCase {
+
+    /**
+     * 書き込むKey数
+     */
+    static final int KEY_COUNT = 2000;
+
+    static List<FirebaseDumpStore.Entry> newEntries(int count) {
+        List<FirebaseDumpStore.Entry> result = new ArrayList<>();
+        long date = System.currentTimeMillis();
+        for (int i = 0; i < count; ++i) {
+            result.add(new FirebaseDumpStore.Entry("user/" + i + "/profile", "{\"id\":" + i + ",\"name\":\"name " + i + "\",\"enabled\":true}", date));
+        }
+        return result;
+    }
+
+    File newDatabasePath(String name) {
+        File result = new File(getContext().getCacheDir(), name);
+        result.delete();
+        new File(result.getPath() + MappedLogDumpBackend.FILE_EXTENSION).delete();
+        return result;
+    }
+
+    private void measure(String label, FirebaseDumpBackend.Factory factory, File databasePath) throws Throwable {
+        List<FirebaseDumpStore.Entry> entries = newEntries(KEY_COUNT);
+
+        long writeStart = System.nanoTime();
+        try (FirebaseDumpBackend backend = factory.open(getContext(), databasePath)) {
+            backend.write(entries);
+        }
+        long writeNano = System.nanoTime() - writeStart;
+
+        // 起動直後を想定し、開き直して全て読み込む
+        long readStart = System.nanoTime();
+        try (FirebaseDumpBackend backend = factory.open(getContext(), databasePath)) {
+            for (FirebaseDumpStore.Entry entry : entries) {
+                FirebaseDumpStore.Entry read = backend.get(entry.getKey());
+                assertNotNull(read);
+                assertEquals(entry.getValue(), read.getValue());
+            }
+        }
+        long readNano = System.nanoTime() - readStart;
+
+        FbLog.debug("%s keys[%d] write[%.3f ms] open+read[%.3f ms]",
+                label, KEY_COUNT, writeNano / 1000000.0, readNano / 1000000.0);
+    }
+
+    @Test
+    public void 保存先毎の性能を比較する() throws Throwable {
+        measure("sqlite", TextKeyValueDumpBackend.FACTORY, newDatabasePath("benchmark-sqlite.db"));
+        measure("log   ", MappedLogDumpBackend.FACTORY, newDatabasePath("benchmark-log.db"));
+    }
+}
@@ -0,0 +1,133 @@
+package com.eaglesakura.android.firebase.database.dump;
+
+import com.eaglesakura.android.firebase.BenchmarkFixture.Item;
+import com.eaglesakura.android.firebase.BenchmarkFixture.Model;
+import com.eaglesakura.android.firebase.FbLog;
+import com.eaglesakura.android.firebase.UnitTestCase;
+import com.eaglesakura.android.firebase.database.FirebaseModelAdapter;
+import com.eaglesakura.json.JSON;
+
+import org.junit.Test;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.eaglesakura.android.firebase.BenchmarkFixture.newModel;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Dump形式毎のエンコード/デコード時間とサイズを比較する
+ */
+public class FirebaseDumpCodecBenchmark extends UnitTestCase {
+
+    /**
+     * 計測回数
+     */
+    static final int TRY_COUNT = 50;
+
+    /**
+     * Adapterを登録し、バイナリで保持されるModel
+     */
+    public static class AdaptedModel extends Model {
+    }
+
+    static {
+        FirebaseModelAdapter.register(AdaptedModel.class, new FirebaseModelAdapter<AdaptedModel>() {
+            @Nullable
+            @Override
+            public AdaptedModel fromValue(@Nullable Object value) {
+                if (value == null) {
+                    return null;
+                }
+                Map<String, Object> map = asMap(value);
+                AdaptedModel result = new AdaptedModel();
+                result.owner = asString(map.get("owner"));
+                result.schemaVersion = asInt(map.get("schemaVersion"), 0);
+                for (Map.Entry<String, Object> entry : asMap(map.get("items")).entrySet()) {
+                    Map<String, Object> itemMap = asMap(entry.getValue());
+                    Item item = new Item();
+                    item.id = asString(itemMap.get("id"));
+                    item.name = asString(itemMap.get("name"));
+                    item.description = asString(itemMap.get("description"));
+                    item.updatedAt = asLong(itemMap.get("updatedAt"), 0);
+                    item.score = asDouble(itemMap.get("score"), 0);
+                    item.enabled = asBoolean(itemMap.get("enabled"), false);
+                    item.tags = asStringList(itemMap.get("tags"));
+                    result.items.put(entry.getKey(), item);
+                }
+                return result;
+            }
+
+            @Nullable
+            @Override
+            public Object toValue(@NonNull AdaptedModel model) {
+                Map<String, Object> items = new HashMap<>();
+                for (Map.Entry<String, Item> entry : model.items.entrySet()) {
+                    Item item = entry.getValue();
+                    Map<String, Object> itemMap = new HashMap<>();
+                    itemMap.put("id", item.id);
+                    itemMap.put("name", item.name);
+                    itemMap.put("description", item.description);
+                    itemMap.put("updatedAt", item.updatedAt);
+                    itemMap.put("score", item.score);
+                    itemMap.put("enabled", item.enabled);
+                    itemMap.put("tags", item.tags);
+                    items.put(entry.getKey(), itemMap);
+                }
+                Map<String, Object> result = new HashMap<>();
+                result.put("owner", model.owner);
+                result.put("schemaVersion", model.schemaVersion);
+                result.put("items", items);
+                return result;
+            }
+        });
+    }
+
+    static AdaptedModel newAdaptedModel(int itemCount) {
+        AdaptedModel result = new AdaptedModel();
+        Model model = newModel(itemCount);
+        result.owner = model.owner;
+        result.schemaVersion = model.schemaVersion;
+        result.items = model.items;
+        return result;
+    }
+
+    private <T extends Model> void measure(String label, FirebaseDumpCodec codec, T model) {
+        String encoded = null;
+        long encodeStart = System.nanoTime();
+        for (int i = 0; i < TRY_COUNT; ++i) {
+            encoded = codec.encode(model);
+        }
+        long encodeNano = (System.nanoTime() - encodeStart) / TRY_COUNT;
+        assertNotNull(encoded);
+
+        Model decoded = null;
+        long decodeStart = System.nanoTime();
+        for (int i = 0; i < TRY_COUNT; ++i) {
+            decoded = FirebaseDumpCodec.decode(encoded, model.getClass());
+        }
+        long decodeNano = (System.nanoTime() - decodeStart) / TRY_COUNT;
+
+        assertNotNull(decoded);
+        assertEquals(model.items.size(), decoded.items.size());
+        final String lastId = "item-" + (model.items.size() - 1);
+        assertEquals(model.items.get(lastId).description, decoded.items.get(lastId).description);
+
+        FbLog.debug("%s items[%d] size[%d chars] encode[%.3f ms] decode[%.3f ms]",
+                label, model.items.size(), encoded.length(), encodeNano / 1000000.0, decodeNano / 1000000.0);
+    }
+
+    @Test
+    public void 形式毎の性能を比較する() {
+        for (int itemCount : new int[]{10, 1000, 10000}) {
+            Model model = newModel(itemCount);
+            measure("json   ", FirebaseDumpCodec.JSON_TEXT, model);
+            measure("deflate", new DeflateDumpCodec(), model);
+            measure("binary ", new DeflateDumpCodec(), newAdaptedModel(itemCount));
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.eaglesakura.android.firebase.database.dump;
+
+import com.eaglesakura.android.firebase.UnitTestCase;
+
+import org.junit.Test;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * 書き込み待ちの値の反映と、失敗時の扱いを確認する
+ */
+public class FirebaseDumpStoreTest extends UnitTestCase {
+
+    /**
+     * メモリ上に保持する保存先
+     */
+    static class MemoryBackend implements FirebaseDumpBackend {
+        final Map<String, FirebaseDumpStore.Entry> mRows = new HashMap<>();
+
+        /**
+         * trueの場合、write()は失敗する
+         */
+        boolean mFail;
+
+        @Nullable
+        @Override
+        public FirebaseDumpStore.Entry get(@NonNull String key) {
+            return mRows.get(key);
+        }
+
+        @Override
+        public void write(@NonNull Collection<FirebaseDumpStore.Entry> entries) {
+            if (mFail) {
+                throw new IllegalStateException("write failed");
+            }
+            for (FirebaseDumpStore.Entry entry : entries) {
+                if (entry.getValue() != null) {
+                    mRows.put(entry.getKey(), entry);
+                } else {
+                    mRows.remove(entry.getKey());
+                }
+            }
+        }
+
+        @Override
+        public boolean scan(@NonNull KeyVisitor visitor) {
+            for (FirebaseDumpStore.Entry entry : mRows.values()) {
+                visitor.visit(entry.getKey(), entry.getDate(), entry.getValue().length());
+            }
+            return true;
+        }
+
+        @Override
+        public void compact() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    FirebaseDumpStore newStore(MemoryBackend backend) {
+        FirebaseDumpStore.setBackendFactory((context, databasePath) -> backend);
+        FirebaseDumpStore store = new FirebaseDumpStore(getContext(), new File("memory.db"));
+        store.setFlushDelayMs(1000 * 60);
+        return store;
+    }
+
+    @Test
+    public void 書き込みに失敗した値はキューに戻る() {
+        MemoryBackend backend = new MemoryBackend();
+        try {
+            FirebaseDumpStore store = newStore(backend);
+            store.put("a", "a1");
+            store.put("b", "b1");
+
+            backend.mFail = true;
+            try {
+                store.flush();
+                fail();
+            } catch (IllegalStateException e) {
+                // 失敗は呼び出し元へ通知される
+            }
+            assertEquals(0, store.getFlushedRowCount());
+            assertEquals(0, store.getFlushCount());
+
+            // 失敗した値は引き続き読み込める
+            assertEquals("a1", store.get("a").getValue());
+
+            // 後から書き込んだ値は、戻した値で上書きされない
+            store.put("a", "a2");
+            backend.mFail = false;
+            store.flush();
+            assertEquals("a2", backend.mRows.get("a").getValue());
+            assertEquals("b1", backend.mRows.get("b").getValue());
+            assertEquals(2, store.getFlushedRowCount());
+            assertEquals(1, store.getFlushCount());
+        } finally {
+            FirebaseDumpStore.setBackendFactory(TextKeyValueDumpBackend.FACTORY);
+        }
+    }
+
+    @Test
+    public void 削除も書き込み待ちとして扱う() {
+        MemoryBackend backend = new MemoryBackend();
+        try {
+            FirebaseDumpStore store = newStore(backend);
+            store.put("a", "a1");
+            store.flush();
+
+            store.remove("a");
+            assertNull(store.get("a"));
+            assertEquals("a1", backend.mRows.get("a").getValue());
+            store.flush();
+            assertNull(backend.mRows.get("a"));
+        } finally {
+            FirebaseDumpStore.setBackendFactory(TextKeyValueDumpBackend.FACTORY);
+        }
+    }
+
+    @Test
+    public void 有効期限は値毎に保存される() {
+        MemoryBackend backend = new MemoryBackend();
+        try {
+            FirebaseDumpStore store = newStore(backend);
+            store.put("a", "a1", 1000 * 60);
+            store.put("b", "b1");
+            store.flush();
+
+            // 有効期限の無い値は行を追加しない
+            assertEquals(3, backend.mRows.size());
+            assertNotNull(backend.mRows.get(FirebaseDumpStore.toExpireKey("a")));
+            assertNull(backend.mRows.get(FirebaseDumpStore.toExpireKey("b")));
+            assertEquals(store.get("a").getExpireAt(), Long.parseLong(backend.mRows.get(FirebaseDumpStore.toExpireKey("a")).getValue()));
+
+            // 有効期限の無い値で上書きすると、有効期限も削除される
+            store.put("a", "a2");
+            store.flush();
+            assertNull(backend.mRows.get(FirebaseDumpStore.toExpireKey("a")));
+            assertEquals(0, store.get("a").getExpireAt());
+        } finally {
+            FirebaseDumpStore.setBackendFactory(TextKeyValueDumpBackend.FACTORY);
+        }
+    }
+
+    @Test
+    public void 期限切れと基準の無い差分を削除できる() throws Throwable {
+        File databasePath = new File(getContext().getCacheDir(), "sweep.db");
+        databasePath.delete();
+        new File(databasePath.getPath() + MappedLogDumpBackend.FILE_EXTENSION).delete();
+        FirebaseDumpStore.setBackendFactory(MappedLogDumpBackend.FACTORY);
+        try {
+            FirebaseDumpStore store = new FirebaseDumpStore(getContext(), databasePath);
+            store.put("config@1@Config", "old", 1);
+            store.put("config@2@Config", "new");
+            store.put("user/1" + FirebaseDeltaDump.CHAIN_KEY_SUFFIX, "{}");
+            store.flush();
+            Thread.sleep(10);
+
+            assertNull(store.get("config@1@Config"));
+            assertEquals(2, store.sweep(null));
+            assertEquals(1, store.getExpiredRowCount());
+            assertEquals(1, store.getOrphanRowCount());
+            assertNotNull(store.get("config@2@Config"));
+
+            List<FirebaseDumpStore.PrefixStats> stats = store.getPrefixStats();
+            assertEquals(1, stats.size());
+            assertEquals("config", stats.get(0).getPrefix());
+            assertEquals(1, stats.get(0).getCount());
+            store.close();
+        } finally {
+            FirebaseDumpStore.setBackendFactory(TextKeyValueDumpBackend.FACTORY);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.eaglesakura.android.firebase.database.dump;
+
+import com.eaglesakura.android.firebase.UnitTestCase;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * ログ形式の保存先の復旧と整理を確認する
+ */
+public class MappedLogDumpBackendTest extends UnitTestCase {
+
+    static List<FirebaseDumpStore.Entry> newEntries(int count) {
+        List<FirebaseDumpStore.Entry> result = new ArrayList<>();
+        long date = System.currentTimeMillis();
+        for (int i = 0; i < count; ++i) {
+            result.add(new FirebaseDumpStore.Entry("user/" + i + "/profile", "{\"id\":" + i + "}", date));
+        }
+        return result;
+    }
+
+    File newDatabasePath(String name) {
+        File result = new File(getContext().getCacheDir(), name);
+        result.delete();
+        new File(result.getPath() + MappedLogDumpBackend.FILE_EXTENSION).delete();
+        return result;
+    }
+
+    @Test
+    public void 書き込み途中のレコードは切り捨てられる() throws Throwable {
+        File databasePath = newDatabasePath("truncate.db");
+        List<FirebaseDumpStore.Entry> entries = newEntries(10);
+        try (FirebaseDumpBackend backend = MappedLogDumpBackend.FACTORY.open(getContext(), databasePath)) {
+            backend.write(entries);
+        }
+
+        // 最後のレコードを途中まで書き込んだ状態にする
+        File logFile = new File(databasePath.getPath() + MappedLogDumpBackend.FILE_EXTENSION);
+        try (RandomAccessFile file = new RandomAccessFile(logFile, "rw")) {
+            file.setLength(file.length() - 3);
+        }
+
+        try (MappedLogDumpBackend backend = (MappedLogDumpBackend) MappedLogDumpBackend.FACTORY.open(getContext(), databasePath)) {
+            assertEquals(9, backend.size());
+            assertNotNull(backend.get(entries.get(8).getKey()));
+            assertNull(backend.get(entries.get(9).getKey()));
+        }
+    }
+
+    @Test
+    public void 上書きと削除の後に整理できる() throws Throwable {
+        File databasePath = newDatabasePath("compact.db");
+        List<FirebaseDumpStore.Entry> entries = newEntries(100);
+        try (MappedLogDumpBackend backend = (MappedLogDumpBackend) MappedLogDumpBackend.FACTORY.open(getContext(), databasePath)) {
+            for (int i = 0; i < 10; ++i) {
+                backend.write(entries);
+            }
+            backend.write(Collections.singletonList(new FirebaseDumpStore.Entry(entries.get(0).getKey(), null, System.currentTimeMillis())));
+
+            long oldSize = backend.getFileSize();
+            backend.compact();
+            assertEquals(99, backend.size());
+            assertEquals(oldSize > backend.getFileSize(), true);
+            assertNull(backend.get(entries.get(0).getKey()));
+            assertEquals(entries.get(99).getValue(), backend.get(entries.get(99).getKey()).getValue());
+        }
+
+        // 整理後のファイルを開き直せる
+        try (MappedLogDumpBackend backend = (MappedLogDumpBackend) MappedLogDumpBackend.FACTORY.open(getContext(), databasePath)) {
+            assertEquals(99, backend.size());
+        }
+    }
+}